@@ -0,0 +1,87 @@
+package kim.hsl.bm.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Color;
+import android.os.Build;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes tiles of an in-memory image into bitmaps taken from the reuse pool.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TiledBitmapDecoderTest {
+    private static final int IMAGE_SIZE = 600;
+    private static final int TILE_SIZE = 256;
+
+    private BitmapCache mCache;
+    private TiledBitmapDecoder mDecoder;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mCache = new BitmapCache.Builder(context, "TiledBitmapDecoderTest")
+                .memoryCacheSize(4 * 1024 * 1024)
+                .reusePoolSize(4 * 1024 * 1024)
+                .build();
+
+        Bitmap image = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Bitmap.Config.ARGB_8888);
+        image.eraseColor(Color.RED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.compress(Bitmap.CompressFormat.PNG, 100, out);
+        byte[] data = out.toByteArray();
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+        mDecoder = new TiledBitmapDecoder("test", decoder, mCache, TILE_SIZE,
+                Bitmap.Config.ARGB_8888);
+    }
+
+    @After
+    public void tearDown() {
+        mDecoder.recycle();
+        mCache.release();
+    }
+
+    @Test
+    public void edgeTileInLargerPooledBitmapHasTileSize() {
+        Bitmap pooled = Bitmap.createBitmap(2 * TILE_SIZE, 2 * TILE_SIZE, Bitmap.Config.ARGB_8888);
+        pooled.eraseColor(Color.BLUE);
+        assertTrue(mCache.putReuseBitmap(pooled));
+
+        // At inSampleSize 2 a tile covers 512 source pixels, so tile (1, 1) is 512..600 and decodes to 44
+        TiledBitmapDecoder.Tile tile = mDecoder.getTile(2, 1, 1);
+        assertNotNull(tile);
+        int expected = (IMAGE_SIZE - 2 * TILE_SIZE + 1) / 2;
+        assertEquals(expected, tile.bitmap.getWidth());
+        assertEquals(expected, tile.bitmap.getHeight());
+        assertEquals(Color.RED, tile.bitmap.getPixel(expected - 1, expected - 1));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            assertSame(pooled, tile.bitmap);
+        }
+    }
+
+    @Test
+    public void fullTileInLargerPooledBitmapHasTileSize() {
+        Bitmap pooled = Bitmap.createBitmap(2 * TILE_SIZE, 2 * TILE_SIZE, Bitmap.Config.ARGB_8888);
+        assertTrue(mCache.putReuseBitmap(pooled));
+
+        TiledBitmapDecoder.Tile tile = mDecoder.getTile(1, 0, 0);
+        assertNotNull(tile);
+        assertEquals(TILE_SIZE, tile.bitmap.getWidth());
+        assertEquals(TILE_SIZE, tile.bitmap.getHeight());
+    }
+}
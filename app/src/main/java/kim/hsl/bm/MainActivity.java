@@ -13,8 +13,11 @@ import android.os.Environment;
 import android.util.Log;
 import android.widget.TextView;
 
-import kim.hsl.bm.utils.BitmapDiskLruCacheMemoryReuse;
-import kim.hsl.bm.utils.BitmapLruCacheMemoryReuse;
+import java.io.File;
+
+import kim.hsl.bm.utils.BitmapCache;
+import kim.hsl.bm.utils.BitmapLoader;
+import kim.hsl.bm.utils.DecodeScheduler;
 import kim.hsl.bm.utils.BitmapSizeReduce;
 
 public class MainActivity extends AppCompatActivity {
@@ -23,6 +26,11 @@ public class MainActivity extends AppCompatActivity {
         System.loadLibrary("native-lib");
     }
 
+    /**
+     * 后台加载的请求 , 界面销毁时取消
+     */
+    private BitmapLoader.Request mLoadRequest;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -46,20 +54,69 @@ public class MainActivity extends AppCompatActivity {
         //memoryCache();
 
         // 磁盘内存缓存
-        diskMemoryCache();
+        //diskMemoryCache();
+
+        // 后台加载
+        asyncLoad();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLoadRequest != null) {
+            mLoadRequest.cancel();
+            mLoadRequest = null;
+        }
+    }
+
+    /**
+     * 在后台线程中读取磁盘 , 解码 , 主线程中只处理回调
+     */
+    private void asyncLoad(){
+        BitmapCache cache = BitmapCache.get("diskCache");
+        if(cache == null){
+            cache = new BitmapCache.Builder(this, "diskCache")
+                    .reusePoolSize(8 * 1024 * 1024)
+                    .diskCache(new File(Environment.getExternalStorageDirectory(), "diskCache"),
+                            10 * 1024 * 1024)
+                    .build();
+        }
+        BitmapLoader loader = new BitmapLoader(cache);
+
+        // 正在显示的图片使用 VISIBLE 优先级 , 界面销毁 , 或者列表条目被回收时调用 cancel() , 见 onDestroy
+        // 不指定是否有透明度 , 由图片头和缓存的策略选择像素格式 , 没有透明度时使用 RGB_565
+        mLoadRequest = loader.loadResourceAsync(this, R.drawable.blog,
+                200, 200, DecodeScheduler.Priority.VISIBLE,
+                new BitmapLoader.Callback() {
+                    @Override
+                    public void onLoaded(Bitmap bitmap) {
+                        if(bitmap == null){
+                            return;
+                        }
+                        Log.i("Bitmap 后台加载", "blog : " + bitmap.getWidth() + " , " +
+                                bitmap.getHeight() + " , " +
+                                bitmap.getByteCount());
+                    }
+                });
     }
 
     /**
      * 图像磁盘内存缓存
      */
     private void diskMemoryCache(){
-        // 初始化 LruCache 内存缓存 , 与引用队列 , 一般在 onCreate 方法中初始化
+        // 创建内存缓存 , 复用池 , 磁盘缓存 , 一般在 Application 的 onCreate 方法中创建
         // 这里为了演示 , 放在方法的开头位置
-        BitmapDiskLruCacheMemoryReuse.getInstance().init(this, Environment.getExternalStorageDirectory() + "/diskCache");
+        BitmapCache cache = BitmapCache.get("diskCache");
+        if(cache == null){
+            cache = new BitmapCache.Builder(this, "diskCache")
+                    .reusePoolSize(8 * 1024 * 1024)
+                    .diskCache(new File(Environment.getExternalStorageDirectory(), "diskCache"),
+                            10 * 1024 * 1024)
+                    .build();
+        }
 
         // 1. 第一次尝试从 LruCache 内存中获取 Bitmap 数据
-        Bitmap bitmap = BitmapDiskLruCacheMemoryReuse.getInstance().
-                getBitmapFromLruCache(R.drawable.blog + "");
+        Bitmap bitmap = cache.getBitmapFromLruCache(R.drawable.blog + "");
 
         /*
             如果从内存中获取 Bitmap 对象失败 , 再次从磁盘中尝试获取该 Bitmap
@@ -68,12 +125,11 @@ public class MainActivity extends AppCompatActivity {
             // 要复用内存的 Bitmap 对象 , 将新的 Bitmap 写入到该 Bitmap 内存中
             Bitmap inBitmap = null;
             // 尝试获取复用对象
-            BitmapDiskLruCacheMemoryReuse.getInstance().
-                    getReuseBitmap(200, 200, 1);
+            cache.getReuseBitmap(200, 200, 1);
 
             // 2. 第二次尝试从磁盘中获取图片
-            bitmap = BitmapDiskLruCacheMemoryReuse.getInstance().getBitmapFromDisk(
-                    R.drawable.blog + "", inBitmap);
+            bitmap = cache.getBitmapFromDisk(
+                    R.drawable.blog + "", inBitmap, 200, 200);
 
 
             // 磁盘中没有找到 , 再次尝试加载该图片
@@ -83,8 +139,7 @@ public class MainActivity extends AppCompatActivity {
                         200, 200, false, inBitmap);
 
                 // 将新的 bitap 放入 LruCache 内存缓存中
-                BitmapDiskLruCacheMemoryReuse.getInstance().
-                        putBitmapToLruCache(R.drawable.blog + "", bitmap);
+                cache.putBitmapToLruCache(R.drawable.blog + "", bitmap);
             }
 
         }
@@ -96,13 +151,17 @@ public class MainActivity extends AppCompatActivity {
      * 图像缓存
      */
     private void memoryCache(){
-        // 初始化 LruCache 内存缓存 , 与引用队列 , 一般在 onCreate 方法中初始化
+        // 创建内存缓存与复用池 , 一般在 Application 的 onCreate 方法中创建
         // 这里为了演示 , 放在方法的开头位置
-        BitmapLruCacheMemoryReuse.getInstance().init(this);
+        BitmapCache cache = BitmapCache.get("memoryCache");
+        if(cache == null){
+            cache = new BitmapCache.Builder(this, "memoryCache")
+                    .reusePoolSize(8 * 1024 * 1024)
+                    .build();
+        }
 
         // 第一次从 LruCache 内存中获取 Bitmap 数据
-        Bitmap bitmap = BitmapLruCacheMemoryReuse.getInstance().
-                getBitmapFromLruCache(R.drawable.blog + "");
+        Bitmap bitmap = cache.getBitmapFromLruCache(R.drawable.blog + "");
 
         /*
             如果从内存中获取 Bitmap 对象失败 , 这里就需要创建该图片 , 并放入 LruCache 内存中
@@ -111,15 +170,13 @@ public class MainActivity extends AppCompatActivity {
             // 要复用内存的 Bitmap 对象 , 将新的 Bitmap 写入到该 Bitmap 内存中
             Bitmap inBitmap = null;
             // 尝试获取复用对象
-            BitmapLruCacheMemoryReuse.getInstance().
-                    getReuseBitmap(200, 200, 1);
+            cache.getReuseBitmap(200, 200, 1);
             // 加载指定大小格式的图像
             bitmap = BitmapSizeReduce.getResizedBitmap(this, R.drawable.blog,
                     200, 200, false, inBitmap);
 
             // 将新的 bitap 放入 LruCache 内存缓存中
-            BitmapLruCacheMemoryReuse.getInstance().
-                    putBitmapToLruCache(R.drawable.blog + "", bitmap);
+            cache.putBitmapToLruCache(R.drawable.blog + "", bitmap);
 
             Log.i("Bitmap 没有获取到创建新的", "blog : " + bitmap.getWidth() + " , " +
                     bitmap.getHeight() + " , " +
@@ -134,8 +191,7 @@ public class MainActivity extends AppCompatActivity {
 
 
         // 第一次从 LruCache 内存中获取 Bitmap 数据
-        Bitmap bitmap2 = BitmapLruCacheMemoryReuse.getInstance().
-                getBitmapFromLruCache(R.drawable.blog + "");
+        Bitmap bitmap2 = cache.getBitmapFromLruCache(R.drawable.blog + "");
 
         Log.i("Bitmap 第二次内存中获取数据", "blog : " + bitmap2.getWidth() + " , " +
                 bitmap2.getHeight() + " , " +
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kim.hsl.bm.diskcache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The binary journal format, an alternative to the text journal that is
+ * cheaper to replay when a cache is opened.
+ *
+ * <p>A binary journal starts with an 8 byte magic, then the format version,
+ * the application's version and the value count, each as a varint. The
+ * rest of the file is a sequence of records:
+ * <pre>
+ *     op (1 byte) | payload length (varint) | payload
+ * </pre>
+ * Varints are unsigned LEB128. The payloads are:
+ * <ul>
+ * <li>KEY: key id, key length, key bytes. Defines a key id for the records
+ *     that follow.
+ * <li>CLEAN: key id, then one length per value, then for caches that use a
+ *     {@link SegmentValueStore} one location per value.
+ * <li>DIRTY, REMOVE, READ: key id.
+ * </ul>
+ * Because every record is length-prefixed, a record cut short by a crash is
+ * detected and ignored instead of being misread.
+ */
+final class BinaryJournal {
+  static final byte[] MAGIC = {
+      (byte) 0x89, 'D', 'L', 'R', 'U', 'B', 'J', '\n'
+  };
+  static final int VERSION = 1;
+
+  static final int OP_KEY = 1;
+  static final int OP_CLEAN = 2;
+  static final int OP_DIRTY = 3;
+  static final int OP_REMOVE = 4;
+  static final int OP_READ = 5;
+
+  private BinaryJournal() {
+  }
+
+  /** Receives the records of a journal as it is replayed. */
+  interface Handler {
+    /**
+     * Receives a CLEAN record. {@code locations} is null unless the record
+     * carries value locations.
+     */
+    void onClean(String key, long[] lengths, long[] locations) throws IOException;
+
+    void onDirty(String key) throws IOException;
+
+    void onRemove(String key) throws IOException;
+
+    void onRead(String key) throws IOException;
+  }
+
+  /** What {@link #read} learned about the file besides its records. */
+  static final class Result {
+    /** The number of key ids defined in the file. */
+    int keyCount;
+
+    /** The number of CLEAN, DIRTY, REMOVE and READ records. */
+    int recordCount;
+
+    /** True if the file ends with an incomplete record. */
+    boolean truncated;
+  }
+
+  /** Returns true if {@code file} starts with the binary journal magic. */
+  static boolean isBinary(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] magic = new byte[MAGIC.length];
+      int read = 0;
+      while (read < magic.length) {
+        int count = in.read(magic, read, magic.length - read);
+        if (count == -1) {
+          return false;
+        }
+        read += count;
+      }
+      return Arrays.equals(magic, MAGIC);
+    } finally {
+      Util.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Replays the journal in {@code in}, passing each record to
+   * {@code handler}. The stream is not closed.
+   *
+   * @throws IOException if the header does not match or a record is malformed.
+   */
+  static Result read(InputStream in, int appVersion, int valueCount, Handler handler)
+      throws IOException {
+    Reader reader = new Reader(in);
+    Result result = new Result();
+    if (!reader.require(MAGIC.length + 3)) {
+      throw new IOException("truncated journal header");
+    }
+    for (byte b : MAGIC) {
+      if (reader.buf[reader.pos++] != b) {
+        throw new IOException("unexpected journal magic");
+      }
+    }
+    long version = reader.readVarint();
+    long fileAppVersion = reader.readVarint();
+    long fileValueCount = reader.readVarint();
+    if (version != VERSION || fileAppVersion != appVersion || fileValueCount != valueCount) {
+      throw new IOException("unexpected journal header: [" + version + ", " + fileAppVersion
+          + ", " + fileValueCount + "]");
+    }
+
+    List<String> keys = new ArrayList<String>();
+    long[] lengths = new long[valueCount];
+    long[] locations = new long[valueCount];
+    while (reader.require(1)) {
+      int recordStart = reader.pos;
+      int op = reader.buf[reader.pos++];
+      if (!reader.requireVarint()) {
+        result.truncated = true;
+        break;
+      }
+      long payloadLength = reader.readVarint();
+      if (payloadLength < 0 || payloadLength > Integer.MAX_VALUE) {
+        throw new IOException("unexpected journal record length " + payloadLength);
+      }
+      if (!reader.require((int) payloadLength)) {
+        result.truncated = true;
+        break;
+      }
+      int payloadEnd = reader.pos + (int) payloadLength;
+
+      if (op == OP_KEY) {
+        int id = (int) reader.readVarint();
+        int keyLength = (int) reader.readVarint();
+        if (id != keys.size() || reader.pos + keyLength != payloadEnd) {
+          throw new IOException("unexpected journal key at " + recordStart);
+        }
+        keys.add(new String(reader.buf, reader.pos, keyLength, Util.US_ASCII));
+      } else {
+        long id = reader.readVarint();
+        if (id < 0 || id >= keys.size()) {
+          throw new IOException("unexpected journal key id " + id);
+        }
+        String key = keys.get((int) id);
+        if (op == OP_CLEAN) {
+          for (int i = 0; i < valueCount; i++) {
+            lengths[i] = reader.readVarint();
+          }
+          boolean hasLocations = reader.pos < payloadEnd;
+          if (hasLocations) {
+            for (int i = 0; i < valueCount; i++) {
+              locations[i] = reader.readVarint();
+            }
+          }
+          if (reader.pos != payloadEnd) {
+            throw new IOException("unexpected journal line: CLEAN " + key);
+          }
+          handler.onClean(key, lengths, hasLocations ? locations : null);
+        } else if (op == OP_DIRTY) {
+          handler.onDirty(key);
+        } else if (op == OP_REMOVE) {
+          handler.onRemove(key);
+        } else if (op == OP_READ) {
+          handler.onRead(key);
+        } else {
+          throw new IOException("unexpected journal op " + op);
+        }
+        result.recordCount++;
+      }
+      reader.pos = payloadEnd;
+    }
+    result.keyCount = keys.size();
+    return result;
+  }
+
+  /**
+   * Buffers a stream so that each record can be decoded straight from a
+   * byte array. The buffer grows if a single record is larger than it.
+   */
+  private static final class Reader {
+    private final InputStream in;
+    byte[] buf = new byte[64 * 1024];
+    int pos;
+    int end;
+    private boolean eof;
+
+    Reader(InputStream in) {
+      this.in = in;
+    }
+
+    /** Makes at least {@code count} bytes available, or returns false at end of input. */
+    boolean require(int count) throws IOException {
+      if (end - pos >= count) {
+        return true;
+      }
+      if (eof) {
+        return false;
+      }
+      if (pos > 0) {
+        System.arraycopy(buf, pos, buf, 0, end - pos);
+        end -= pos;
+        pos = 0;
+      }
+      if (count > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(count, buf.length * 2));
+      }
+      while (end < count) {
+        int read = in.read(buf, end, buf.length - end);
+        if (read == -1) {
+          eof = true;
+          return false;
+        }
+        end += read;
+      }
+      return true;
+    }
+
+    /** Makes a complete varint available, or returns false at end of input. */
+    boolean requireVarint() throws IOException {
+      for (int i = 0; i < 10; i++) {
+        if (!require(i + 1)) {
+          return false;
+        }
+        if ((buf[pos + i] & 0x80) == 0) {
+          return true;
+        }
+      }
+      return true; // Malformed; readVarint() reports it.
+    }
+
+    /**
+     * Reads a varint. Callers have already required the bytes of the whole
+     * record, except for a record's length prefix which is at most 10 bytes.
+     */
+    long readVarint() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (pos == end && !require(1)) {
+          throw new IOException("truncated varint");
+        }
+        byte b = buf[pos++];
+        result |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new IOException("malformed varint");
+    }
+  }
+}
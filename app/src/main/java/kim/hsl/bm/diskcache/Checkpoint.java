@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kim.hsl.bm.diskcache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compact image of every published entry of a {@link DiskLruCache}, so that
+ * opening the cache reads one file in bulk and only replays the journal
+ * records written after it.
+ *
+ * <p>The file starts with an 8 byte magic followed by varints for the format
+ * version, the application's version, the value count, the flags, the number
+ * of entries and the next sequence number. Then, least recently used first,
+ * each entry is written as:
+ * <pre>
+ *     key length | key bytes | one length per value | [one location per value] | sequence number
+ * </pre>
+ * Locations are present if the {@link #FLAG_LOCATIONS} flag is set, which is
+ * the case for caches that use a {@link SegmentValueStore}. Version 1 files
+ * have no flags. All numbers are unsigned LEB128 varints.
+ */
+final class Checkpoint {
+  static final byte[] MAGIC = {
+      (byte) 0x89, 'D', 'L', 'R', 'U', 'C', 'P', '\n'
+  };
+  static final int VERSION = 2;
+
+  /** Set if every entry is followed by the locations of its values. */
+  static final int FLAG_LOCATIONS = 1;
+
+  private Checkpoint() {
+  }
+
+  /** Receives the entries of a checkpoint, least recently used first. */
+  interface Handler {
+    /** Receives an entry. {@code locations} is null unless the checkpoint has them. */
+    void onEntry(String key, long[] lengths, long[] locations, long sequenceNumber)
+        throws IOException;
+  }
+
+  /** Encodes a checkpoint in memory and then writes it with a single write. */
+  static final class Writer {
+    private final JournalWriter.RecordBuffer buffer = new JournalWriter.RecordBuffer();
+    private final int valueCount;
+    private final boolean hasLocations;
+    private final int entryCount;
+    private int written;
+
+    Writer(int appVersion, int valueCount, boolean hasLocations, int entryCount,
+        long nextSequenceNumber) {
+      this.valueCount = valueCount;
+      this.hasLocations = hasLocations;
+      this.entryCount = entryCount;
+      buffer.write(MAGIC)
+          .writeVarint(VERSION)
+          .writeVarint(appVersion)
+          .writeVarint(valueCount)
+          .writeVarint(hasLocations ? FLAG_LOCATIONS : 0)
+          .writeVarint(entryCount)
+          .writeVarint(nextSequenceNumber);
+    }
+
+    /** Adds an entry; {@code locations} is ignored unless the writer has locations. */
+    void add(String key, long[] lengths, long[] locations, long sequenceNumber) {
+      buffer.writeVarint(key.length()).writeAscii(key);
+      for (int i = 0; i < valueCount; i++) {
+        buffer.writeVarint(lengths[i]);
+      }
+      if (hasLocations) {
+        for (int i = 0; i < valueCount; i++) {
+          buffer.writeVarint(locations[i]);
+        }
+      }
+      buffer.writeVarint(sequenceNumber);
+      written++;
+    }
+
+    void writeTo(File file) throws IOException {
+      if (written != entryCount) {
+        throw new IllegalStateException("expected " + entryCount + " entries but got " + written);
+      }
+      OutputStream out = new FileOutputStream(file);
+      try {
+        out.write(buffer.data, 0, buffer.size);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Reads the checkpoint in {@code file}, passing every entry to
+   * {@code handler}, and returns the next sequence number it recorded.
+   *
+   * @throws IOException if the file is truncated or its header does not match.
+   */
+  static long read(File file, int appVersion, int valueCount, Handler handler)
+      throws IOException {
+    long fileLength = file.length();
+    if (fileLength > Integer.MAX_VALUE) {
+      throw new IOException("checkpoint too large: " + fileLength);
+    }
+    byte[] data = new byte[(int) fileLength];
+    InputStream in = new FileInputStream(file);
+    try {
+      int read = 0;
+      while (read < data.length) {
+        int count = in.read(data, read, data.length - read);
+        if (count == -1) {
+          throw new IOException("truncated checkpoint");
+        }
+        read += count;
+      }
+    } finally {
+      Util.closeQuietly(in);
+    }
+
+    Cursor cursor = new Cursor(data);
+    for (byte b : MAGIC) {
+      if (cursor.pos >= data.length || data[cursor.pos++] != b) {
+        throw new IOException("unexpected checkpoint magic");
+      }
+    }
+    long version = cursor.readVarint();
+    long fileAppVersion = cursor.readVarint();
+    long fileValueCount = cursor.readVarint();
+    if ((version != 1 && version != VERSION)
+        || fileAppVersion != appVersion || fileValueCount != valueCount) {
+      throw new IOException("unexpected checkpoint header: [" + version + ", " + fileAppVersion
+          + ", " + fileValueCount + "]");
+    }
+    long flags = version == 1 ? 0 : cursor.readVarint();
+    long entryCount = cursor.readVarint();
+    long nextSequenceNumber = cursor.readVarint();
+
+    long[] lengths = new long[valueCount];
+    long[] locations = (flags & FLAG_LOCATIONS) != 0 ? new long[valueCount] : null;
+    for (long e = 0; e < entryCount; e++) {
+      int keyLength = (int) cursor.readVarint();
+      if (keyLength <= 0 || cursor.pos + keyLength > data.length) {
+        throw new IOException("truncated checkpoint");
+      }
+      String key = new String(data, cursor.pos, keyLength, Util.US_ASCII);
+      cursor.pos += keyLength;
+      for (int i = 0; i < valueCount; i++) {
+        lengths[i] = cursor.readVarint();
+      }
+      if (locations != null) {
+        for (int i = 0; i < valueCount; i++) {
+          locations[i] = cursor.readVarint();
+        }
+      }
+      handler.onEntry(key, lengths, locations, cursor.readVarint());
+    }
+    if (cursor.pos != data.length) {
+      throw new IOException("unexpected data after checkpoint entries");
+    }
+    return nextSequenceNumber;
+  }
+
+  private static final class Cursor {
+    private final byte[] data;
+    int pos;
+
+    Cursor(byte[] data) {
+      this.data = data;
+    }
+
+    long readVarint() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (pos >= data.length) {
+          throw new IOException("truncated checkpoint");
+        }
+        byte b = data[pos++];
+        result |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new IOException("malformed varint");
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kim.hsl.bm.diskcache;
+
+import java.io.IOException;
+
+/**
+ * A {@link ValueStore} that packs values into segments and leaves replaced
+ * and deleted values behind as garbage. The cache's cleanup thread moves the
+ * live values out of a segment that is mostly garbage, after which the
+ * segment can be deleted. Stores that free a value's space when it is
+ * deleted do not implement this.
+ */
+interface CompactingValueStore extends ValueStore {
+  /**
+   * Returns the id of a segment worth compacting, or -1 if none is. The cache
+   * then {@link #relocate relocates} every value in that segment and calls
+   * {@link #compacted}.
+   */
+  int segmentToCompact();
+
+  /** Returns the segment that holds the value at {@code location}. */
+  int segmentOf(long location);
+
+  /** Copies a value out of the segment being compacted and returns its new location. */
+  long relocate(long location, long length) throws IOException;
+
+  /** Deletes a segment whose values were all relocated, once no reader uses it. */
+  void compacted(int segment) throws IOException;
+}
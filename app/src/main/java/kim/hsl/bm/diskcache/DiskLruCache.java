@@ -16,13 +16,10 @@
 
 package kim.hsl.bm.diskcache;
 
-import java.io.BufferedWriter;
 import java.io.Closeable;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,14 +27,23 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -79,6 +85,25 @@ import java.util.regex.Pattern;
  * observe the value at the time that {@link #get} was called. Updates and
  * removals after the call do not impact ongoing reads.
  *
+ * <p>The entry index is partitioned into {@link Options#concurrencyLevel}
+ * stripes, each guarded by its own lock. Reads and edits of keys in different
+ * stripes proceed in parallel; journal records are appended through a
+ * dedicated writer that is locked only for the duration of one record.
+ *
+ * <p>With a positive {@link Options#journalFlushLatencyMillis} the journal is
+ * group-committed: records from many operations are written with one write
+ * and one flush by a background thread, and operations no longer wait for the
+ * journal. Use {@link Editor#commitDurably} or {@link #flush} when a caller
+ * must know its records reached the filesystem.
+ *
+ * <p>Values normally live in one file each. With a positive
+ * {@link Options#segmentSize} they are packed into a few large segment files
+ * instead, and each entry remembers where in them its values are.
+ *
+ * <p>By default the least recently used entries are evicted first. Opening
+ * with {@link EvictionPolicy#W_TINY_LFU} also weighs how often and how large
+ * entries are, so a scan over many new keys does not flush the popular ones.
+ *
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
  * an error occurs while writing a cache value, the edit will fail silently.
@@ -89,14 +114,19 @@ public final class DiskLruCache implements Closeable {
   static final String JOURNAL_FILE = "journal";
   static final String JOURNAL_FILE_TEMP = "journal.tmp";
   static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+  static final String CHECKPOINT_FILE = "journal.ckpt";
+  static final String CHECKPOINT_FILE_TEMP = "journal.ckpt.tmp";
   static final String MAGIC = "libcore.io.DiskLruCache";
   static final String VERSION_1 = "1";
   static final long ANY_SEQUENCE_NUMBER = -1;
   static final Pattern LEGAL_KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,64}");
-  private static final String CLEAN = "CLEAN";
-  private static final String DIRTY = "DIRTY";
-  private static final String REMOVE = "REMOVE";
-  private static final String READ = "READ";
+  static final int DEFAULT_CONCURRENCY_LEVEL = 1;
+
+  /**
+   * Passes over the rebuild tails before the final, all-stripes pass of a
+   * journal rebuild, so steady writers cannot keep the rebuild from finishing.
+   */
+  private static final int MAX_REBUILD_CATCH_UP_PASSES = 4;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -136,55 +166,141 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * When Options.binaryJournal is set the same records are written in the
+     * BinaryJournal format instead. The format of an existing journal is
+     * detected from its first bytes; if it differs from the requested one the
+     * journal is replayed and then rewritten in the requested format.
+     *
+     * When Options.checkpointInterval is set, compaction writes a Checkpoint
+     * file "journal.ckpt" holding every published entry in LRU order, and the
+     * journal restarts with only its header (plus DIRTY lines for entries still
+     * being edited). Opening the cache loads the checkpoint in one read and
+     * replays just the journal tail. Replaying a record twice is harmless, so
+     * a crash between replacing the checkpoint and the journal loses nothing.
+     *
+     * When Options.segmentSize is set, values are packed into segment files by
+     * a SegmentValueStore instead of living in one file per value. CLEAN
+     * records then follow the lengths with one location per value:
+     *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 21054 0 832
+     * A journal written for the other layout is treated as corrupt.
      */
 
   private final File directory;
   private final File journalFile;
   private final File journalFileTmp;
   private final File journalFileBackup;
+  private final File checkpointFile;
+  private final File checkpointFileTmp;
   private final int appVersion;
-  private long maxSize;
+  private volatile long maxSize;
   private final int valueCount;
-  private long size = 0;
-  private Writer journalWriter;
-  private final LinkedHashMap<String, Entry> lruEntries =
-      new LinkedHashMap<String, Entry>(0, 0.75f, true);
-  private int redundantOpCount;
+  private final long journalFlushLatencyMillis;
+  private final boolean journalSync;
+  private final boolean binaryJournal;
+  private final int checkpointInterval;
+  private final ValueStore store;
+
+  /** The store if it needs its segments compacted, or null. */
+  private final CompactingValueStore compactingStore;
+
+  /** The W-TinyLFU policy, or null to evict the least recently used entries. */
+  private final TinyLfuPolicy policy;
+
+  /** See {@link Options#cleanupBatchEntries} and {@link Options#cleanupBatchBytes}. */
+  private final int cleanupBatchEntries;
+  private final long cleanupBatchBytes;
+  private final long cleanupPauseMillis;
+
+  /**
+   * The longest time the cleanup thread kept entries locked, in nanoseconds,
+   * overall, while evicting, and while compacting segments or the journal;
+   * and the total time across all of them.
+   */
+  private final AtomicLong longestCleanupPause = new AtomicLong();
+  private final AtomicLong longestEvictionPause = new AtomicLong();
+  private final AtomicLong longestCompactionPause = new AtomicLong();
+  private final AtomicLong totalCleanupPause = new AtomicLong();
+
+  /** True if {@link #readJournal} loaded a checkpoint before replaying the journal. */
+  private boolean checkpointLoaded;
+
+  /** The number of key ids defined in a binary journal file; see {@link BinaryJournal}. */
+  private int journalKeyCount;
+
+  /** Set by {@link #readJournal} if the journal must be rewritten before appending to it. */
+  private boolean rebuildJournalOnOpen;
+  private final AtomicLong size = new AtomicLong();
+  private volatile JournalWriter journalWriter;
+
+  /**
+   * The entry index, partitioned by key hash. Each stripe is an access-ordered
+   * map with its own lock, so the head of every stripe is its least recently
+   * used entry and the eldest entry of the whole cache is the stripe head with
+   * the smallest {@link Entry#accessOrder}.
+   */
+  private final Stripe[] stripes;
+  private final AtomicInteger redundantOpCount = new AtomicInteger();
+
+  /** Source of {@link Entry#accessOrder} stamps, shared by all stripes. */
+  private final AtomicLong accessCounter = new AtomicLong();
 
   /**
    * To differentiate between old and current snapshots, each entry is given
    * a sequence number each time an edit is committed. A snapshot is stale if
    * its sequence number is not equal to its entry's sequence number.
    */
-  private long nextSequenceNumber = 0;
+  private final AtomicLong nextSequenceNumber = new AtomicLong();
 
   /** This cache uses a single background thread to evict entries. */
   final ThreadPoolExecutor executorService =
       new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
   private final Callable<Void> cleanupCallable = new Callable<Void>() {
     public Void call() throws Exception {
-      synchronized (DiskLruCache.this) {
-        if (journalWriter == null) {
-          return null; // Closed.
-        }
-        trimToSize();
-        if (journalRebuildRequired()) {
-          rebuildJournal();
-          redundantOpCount = 0;
-        }
+      if (journalWriter == null) {
+        return null; // Closed.
+      }
+      trimToSize(true);
+      store.purgeDeleted();
+      compactSegments();
+      if (journalRebuildRequired()) {
+        rebuildJournalIncrementally();
       }
       return null;
     }
   };
 
-  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+      Options options) {
     this.directory = directory;
     this.appVersion = appVersion;
     this.journalFile = new File(directory, JOURNAL_FILE);
     this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
     this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+    this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+    this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE_TEMP);
     this.valueCount = valueCount;
     this.maxSize = maxSize;
+    this.journalFlushLatencyMillis = options.journalFlushLatencyMillis;
+    this.journalSync = options.journalSync;
+    this.binaryJournal = options.binaryJournal;
+    this.checkpointInterval = options.checkpointInterval;
+    this.store = options.segmentSize > 0
+        ? new SegmentValueStore(directory, options.segmentSize)
+        : new FileValueStore(directory, options.deferDeletes);
+    this.compactingStore = store instanceof CompactingValueStore
+        ? (CompactingValueStore) store
+        : null;
+    this.policy = options.evictionPolicy == EvictionPolicy.W_TINY_LFU
+        ? new TinyLfuPolicy(maxSize)
+        : null;
+    this.cleanupBatchEntries = options.cleanupBatchEntries;
+    this.cleanupBatchBytes = options.cleanupBatchBytes;
+    this.cleanupPauseMillis = options.cleanupPauseMillis;
+    this.stripes = new Stripe[options.concurrencyLevel];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
   }
 
   /**
@@ -198,12 +314,51 @@ public final class DiskLruCache implements Closeable {
    */
   public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
       throws IOException {
+    return open(directory, appVersion, valueCount, maxSize, new Options());
+  }
+
+  /**
+   * Opens the cache in {@code directory} with the given {@code options},
+   * creating a cache if none exists there.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes this cache should use to store
+   * @param options tuning options; see {@link Options}
+   * @throws IOException if reading or writing the cache directory fails
+   */
+  public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+      Options options) throws IOException {
     if (maxSize <= 0) {
       throw new IllegalArgumentException("maxSize <= 0");
     }
     if (valueCount <= 0) {
       throw new IllegalArgumentException("valueCount <= 0");
     }
+    if (options.concurrencyLevel <= 0) {
+      throw new IllegalArgumentException("concurrencyLevel <= 0");
+    }
+    if (options.journalFlushLatencyMillis < 0) {
+      throw new IllegalArgumentException("journalFlushLatencyMillis < 0");
+    }
+    if (options.checkpointInterval < 0) {
+      throw new IllegalArgumentException("checkpointInterval < 0");
+    }
+    if (options.segmentSize < 0) {
+      throw new IllegalArgumentException("segmentSize < 0");
+    }
+    if (options.evictionPolicy == null) {
+      throw new NullPointerException("evictionPolicy == null");
+    }
+    if (options.cleanupBatchEntries < 0) {
+      throw new IllegalArgumentException("cleanupBatchEntries < 0");
+    }
+    if (options.cleanupBatchBytes < 0) {
+      throw new IllegalArgumentException("cleanupBatchBytes < 0");
+    }
+    if (options.cleanupPauseMillis < 0) {
+      throw new IllegalArgumentException("cleanupPauseMillis < 0");
+    }
 
     // If a bkp file exists, use it instead.
     File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
@@ -218,13 +373,18 @@ public final class DiskLruCache implements Closeable {
     }
 
     // Prefer to pick up where we left off.
-    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
     if (cache.journalFile.exists()) {
       try {
         cache.readJournal();
         cache.processJournal();
-        cache.journalWriter = new BufferedWriter(
-            new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), Util.US_ASCII));
+        if (cache.rebuildJournalOnOpen) {
+          // Migrates the journal to the requested format or drops a torn record.
+          // Also writes or discards the checkpoint to match the options.
+          cache.rebuildJournal();
+        } else {
+          cache.journalWriter = cache.newJournalWriter();
+        }
         return cache;
       } catch (IOException journalIsCorrupt) {
         System.out
@@ -239,80 +399,104 @@ public final class DiskLruCache implements Closeable {
 
     // Create a new empty cache.
     directory.mkdirs();
-    cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+    cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
     cache.rebuildJournal();
     return cache;
   }
 
   private void readJournal() throws IOException {
-    StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile), Util.US_ASCII);
+    if (checkpointFile.exists()) {
+      readCheckpoint();
+      rebuildJournalOnOpen = checkpointInterval == 0;
+    }
+    if (BinaryJournal.isBinary(journalFile)) {
+      readBinaryJournal();
+    } else {
+      readTextJournal();
+      rebuildJournalOnOpen |= binaryJournal;
+    }
+  }
+
+  private void readCheckpoint() throws IOException {
+    long sequenceNumber = Checkpoint.read(checkpointFile, appVersion, valueCount,
+        new Checkpoint.Handler() {
+          @Override public void onEntry(String key, long[] lengths, long[] locations,
+              long sequenceNumber) throws IOException {
+            Entry entry = replayEntry(key);
+            entry.readable = true;
+            entry.sequenceNumber = sequenceNumber;
+            entry.setValues(lengths, locations);
+          }
+        });
+    nextSequenceNumber.set(sequenceNumber);
+    checkpointLoaded = true;
+  }
+
+  /** Sets {@link #redundantOpCount} once {@code recordCount} journal records were replayed. */
+  private void journalReplayed(int recordCount) {
+    // After a checkpoint, every replayed record is tail for the next checkpoint to absorb.
+    redundantOpCount.set(checkpointLoaded ? recordCount : recordCount - entryCount());
+  }
+
+  private void readBinaryJournal() throws IOException {
+    InputStream in = new FileInputStream(journalFile);
     try {
-      String magic = reader.readLine();
-      String version = reader.readLine();
-      String appVersionString = reader.readLine();
-      String valueCountString = reader.readLine();
-      String blank = reader.readLine();
-      if (!MAGIC.equals(magic)
-          || !VERSION_1.equals(version)
-          || !Integer.toString(appVersion).equals(appVersionString)
-          || !Integer.toString(valueCount).equals(valueCountString)
-          || !"".equals(blank)) {
-        throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
-            + valueCountString + ", " + blank + "]");
-      }
-
-      int lineCount = 0;
-      while (true) {
-        try {
-          readJournalLine(reader.readLine());
-          lineCount++;
-        } catch (EOFException endOfJournal) {
-          break;
-        }
-      }
-      redundantOpCount = lineCount - lruEntries.size();
+      BinaryJournal.Result result =
+          BinaryJournal.read(in, appVersion, valueCount, new ReplayHandler());
+      journalReplayed(result.recordCount);
+      journalKeyCount = result.keyCount;
+      rebuildJournalOnOpen |= !binaryJournal || result.truncated;
     } finally {
-      Util.closeQuietly(reader);
+      Util.closeQuietly(in);
     }
   }
 
-  private void readJournalLine(String line) throws IOException {
-    int firstSpace = line.indexOf(' ');
-    if (firstSpace == -1) {
-      throw new IOException("unexpected journal line: " + line);
+  private void readTextJournal() throws IOException {
+    journalReplayed(TextJournal.read(journalFile, appVersion, valueCount, new ReplayHandler()));
+  }
+
+  /** Applies replayed journal records, in either format, to the index. */
+  private final class ReplayHandler implements BinaryJournal.Handler {
+    @Override public void onClean(String key, long[] lengths, long[] locations)
+        throws IOException {
+      Entry entry = replayEntry(key);
+      entry.readable = true;
+      entry.currentEditor = null;
+      entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+      entry.setValues(lengths, locations);
+    }
+
+    @Override public void onDirty(String key) {
+      Entry entry = replayEntry(key);
+      entry.currentEditor = new Editor(entry);
     }
 
-    int keyBegin = firstSpace + 1;
-    int secondSpace = line.indexOf(' ', keyBegin);
-    final String key;
-    if (secondSpace == -1) {
-      key = line.substring(keyBegin);
-      if (firstSpace == REMOVE.length() && line.startsWith(REMOVE)) {
-        lruEntries.remove(key);
-        return;
+    @Override public void onRemove(String key) {
+      Stripe stripe = stripeFor(key);
+      Entry entry = stripe.entries.get(key);
+      if (entry != null) {
+        stripe.remove(entry);
       }
-    } else {
-      key = line.substring(keyBegin, secondSpace);
     }
 
-    Entry entry = lruEntries.get(key);
-    if (entry == null) {
-      entry = new Entry(key);
-      lruEntries.put(key, entry);
+    @Override public void onRead(String key) {
+      replayEntry(key);
     }
+  }
 
-    if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
-      String[] parts = line.substring(secondSpace + 1).split(" ");
-      entry.readable = true;
-      entry.currentEditor = null;
-      entry.setLengths(parts);
-    } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
-      entry.currentEditor = new Editor(entry);
-    } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
-      // This work was already done by calling lruEntries.get().
-    } else {
-      throw new IOException("unexpected journal line: " + line);
+  /**
+   * Returns the entry for {@code key} while the journal is replayed, creating
+   * it if necessary, and marks it as the most recently used.
+   */
+  private Entry replayEntry(String key) {
+    Stripe stripe = stripeFor(key);
+    Entry entry = stripe.entries.get(key);
+    if (entry == null) {
+      entry = new Entry(key);
+      stripe.put(entry);
     }
+    entry.accessOrder = accessCounter.incrementAndGet();
+    return entry;
   }
 
   /**
@@ -321,54 +505,283 @@ public final class DiskLruCache implements Closeable {
    */
   private void processJournal() throws IOException {
     deleteIfExists(journalFileTmp);
-    for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
-      Entry entry = i.next();
-      if (entry.currentEditor == null) {
-        for (int t = 0; t < valueCount; t++) {
-          size += entry.lengths[t];
+    deleteIfExists(checkpointFileTmp);
+    if (journalFlushLatencyMillis > 0) {
+      deleteOrphanedDirtyFiles();
+    }
+    long total = 0;
+    for (Stripe stripe : stripes) {
+      for (Entry entry : new ArrayList<Entry>(stripe.entries.values())) {
+        if (!recoverValues(entry)) {
+          stripe.remove(entry);
+        } else if (entry.currentEditor == null) {
+          for (int t = 0; t < valueCount; t++) {
+            total += entry.lengths[t];
+          }
+        } else {
+          entry.currentEditor = null;
+          for (int t = 0; t < valueCount; t++) {
+            store.delete(entry.key, t, entry.getLocation(t), entry.lengths[t]);
+            store.abort(entry.key, t);
+          }
+          stripe.remove(entry);
         }
-      } else {
-        entry.currentEditor = null;
-        for (int t = 0; t < valueCount; t++) {
-          deleteIfExists(entry.getCleanFile(t));
-          deleteIfExists(entry.getDirtyFile(t));
+      }
+    }
+    store.recoveryFinished();
+    size.set(total);
+    if (policy != null) {
+      for (Entry entry : entriesInAccessOrder()) {
+        entry.policyNode = policy.load(entry.key, entry.weight());
+      }
+    }
+  }
+
+  /**
+   * Tells the value store about every value of {@code entry}. Returns false,
+   * having released them again, if any of them is missing.
+   */
+  private boolean recoverValues(Entry entry) throws IOException {
+    for (int t = 0; t < valueCount; t++) {
+      if (!store.recover(entry.key, t, entry.getLocation(t), entry.lengths[t])) {
+        for (int r = 0; r < t; r++) {
+          store.delete(entry.key, r, entry.getLocation(r), entry.lengths[r]);
         }
-        i.remove();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * With a group-committed journal a DIRTY record may not have reached the
+   * disk before its temporary files were created. Such files have no record
+   * pointing at them, so they are swept here instead.
+   */
+  private void deleteOrphanedDirtyFiles() throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(".tmp")) {
+        deleteIfExists(file);
       }
     }
   }
 
   /**
    * Creates a new journal that omits redundant information. This replaces the
-   * current journal if it exists.
+   * current journal if it exists. Entries are written in least recently used
+   * order across all stripes, so a reopened cache evicts in the same order.
+   *
+   * <p>With checkpoints enabled the published entries go to a new checkpoint
+   * instead, and the new journal only holds DIRTY lines.
+   *
+   * <p>This keeps every stripe locked throughout and is only used while the
+   * cache is opened; the cleanup thread uses {@link #rebuildJournalIncrementally}.
    */
-  private synchronized void rebuildJournal() throws IOException {
-    if (journalWriter != null) {
-      journalWriter.close();
+  private void rebuildJournal() throws IOException {
+    lockAllStripes();
+    try {
+      List<EntryState> entries = new ArrayList<EntryState>();
+      for (Stripe stripe : stripes) {
+        for (Entry entry : stripe.entries.values()) {
+          entries.add(new EntryState(entry));
+        }
+      }
+      JournalWriter writer = writeRebuiltJournal(entries, nextSequenceNumber.get());
+      writer.close();
+      installCheckpoint();
+      installRebuiltJournal(writer);
+    } finally {
+      unlockAllStripes();
     }
+  }
 
-    Writer writer = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(journalFileTmp), Util.US_ASCII));
+  /**
+   * Rebuilds the journal like {@link #rebuildJournal} without stopping readers
+   * and writers while the new journal is written:
+   *
+   * <ol>
+   *   <li>Each stripe in turn is copied under its own lock, one batch of
+   *       entries at a time. From the start of its copy on, the journal
+   *       records for its keys are also kept in its rebuild tail.
+   *   <li>The new journal, and the checkpoint if enabled, are written from the
+   *       copies with no lock held.
+   *   <li>The tails are appended one stripe at a time. In batched mode this
+   *       repeats while a pass appends a full batch of records, up to
+   *       {@link #MAX_REBUILD_CATCH_UP_PASSES} passes.
+   *   <li>The new checkpoint replaces the old one with no lock held.
+   *   <li>With all stripes locked, what is left of the tails is appended and
+   *       the journal files are swapped. This pause grows with the records
+   *       journaled during the last pass, not with the number of entries.
+   * </ol>
+   */
+  private void rebuildJournalIncrementally() throws IOException {
+    List<EntryState> entries = new ArrayList<EntryState>();
+    JournalWriter writer = null;
+    boolean installed = false;
     try {
-      writer.write(MAGIC);
-      writer.write("\n");
-      writer.write(VERSION_1);
-      writer.write("\n");
-      writer.write(Integer.toString(appVersion));
-      writer.write("\n");
-      writer.write(Integer.toString(valueCount));
-      writer.write("\n");
-      writer.write("\n");
-
-      for (Entry entry : lruEntries.values()) {
-        if (entry.currentEditor != null) {
-          writer.write(DIRTY + ' ' + entry.key + '\n');
-        } else {
-          writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+      Set<String> copied = new HashSet<String>();
+      for (Stripe stripe : stripes) {
+        int next;
+        stripe.lock.lock();
+        long lockedAt = System.nanoTime();
+        try {
+          if (journalWriter == null) {
+            return; // Closed.
+          }
+          next = stripe.slotCount();
+          stripe.rebuildTail = new ArrayList<JournalRecord>();
+        } finally {
+          stripe.lock.unlock();
+          recordCleanupPause(longestCompactionPause, lockedAt);
+        }
+
+        // The tail follows the copies in the new journal, so it supersedes
+        // entries that are added, edited or removed in between.
+        while (next > 0) {
+          int batchEntries = 0;
+          stripe.lock.lock();
+          lockedAt = System.nanoTime();
+          try {
+            if (journalWriter == null) {
+              return; // Closed.
+            }
+            next = Math.min(next, stripe.slotCount());
+            while (next > 0 && !isBatchFull(batchEntries, 0)) {
+              Entry entry = stripe.entryAt(--next);
+              if (copied.add(entry.key)) {
+                entries.add(new EntryState(entry));
+              }
+              batchEntries++;
+            }
+          } finally {
+            stripe.lock.unlock();
+            recordCleanupPause(longestCompactionPause, lockedAt);
+          }
+          if (next > 0) {
+            pauseCleanup();
+          }
+        }
+      }
+
+      writer = writeRebuiltJournal(entries, nextSequenceNumber.get());
+
+      // Catch up with the records journaled meanwhile one stripe at a time,
+      // so that only the last few are appended with every stripe locked.
+      for (int pass = 0; pass < MAX_REBUILD_CATCH_UP_PASSES; pass++) {
+        int caughtUp = 0;
+        for (Stripe stripe : stripes) {
+          List<JournalRecord> tail;
+          stripe.lock.lock();
+          try {
+            if (journalWriter == null) {
+              return; // Closed.
+            }
+            tail = stripe.rebuildTail;
+            stripe.rebuildTail = new ArrayList<JournalRecord>();
+          } finally {
+            stripe.lock.unlock();
+          }
+          for (JournalRecord record : tail) {
+            record.writeTo(writer);
+          }
+          caughtUp += tail.size();
+        }
+        if (!isBatchFull(caughtUp, 0)) {
+          break;
         }
       }
+      writer.flush();
+      installCheckpoint();
+
+      lockAllStripes();
+      long lockedAt = System.nanoTime();
+      try {
+        if (journalWriter == null) {
+          return; // Closed.
+        }
+        for (Stripe stripe : stripes) {
+          for (JournalRecord record : stripe.rebuildTail) {
+            record.writeTo(writer);
+          }
+          stripe.rebuildTail = null;
+        }
+        writer.close();
+        installRebuiltJournal(writer);
+        installed = true;
+      } finally {
+        unlockAllStripes();
+        recordCleanupPause(longestCompactionPause, lockedAt);
+      }
     } finally {
-      writer.close();
+      if (!installed) {
+        abandonRebuild(writer);
+      }
+    }
+  }
+
+  /**
+   * Writes the header and {@code entries} to a new journal in the temporary
+   * journal file, and the checkpoint to the temporary checkpoint file if
+   * enabled. The returned writer is still open so more records can follow.
+   */
+  private JournalWriter writeRebuiltJournal(List<EntryState> entries, long nextSequence)
+      throws IOException {
+    Collections.sort(entries, new Comparator<EntryState>() {
+      @Override public int compare(EntryState a, EntryState b) {
+        return a.accessOrder < b.accessOrder ? -1 : (a.accessOrder == b.accessOrder ? 0 : 1);
+      }
+    });
+    if (checkpointInterval > 0) {
+      writeCheckpoint(entries, nextSequence);
+    }
+
+    JournalWriter writer = new JournalWriter(journalFileTmp, false, 0, false, binaryJournal, 0);
+    boolean written = false;
+    try {
+      writer.writeHeader(appVersion, valueCount);
+      for (EntryState entry : entries) {
+        if (entry.editing) {
+          writer.writeDirty(entry.key);
+        } else if (checkpointInterval == 0) {
+          writer.writeClean(entry.key, entry.lengths, entry.locations);
+        }
+      }
+      written = true;
+      return writer;
+    } finally {
+      if (!written) {
+        writer.close();
+      }
+    }
+  }
+
+  /**
+   * Replaces the checkpoint, if enabled, with the one written by
+   * {@link #writeRebuiltJournal}. Renaming over the old checkpoint replaces it
+   * atomically but frees its blocks, which takes milliseconds for a large
+   * cache, so an incremental rebuild calls this before locking all stripes.
+   * Until the journal is swapped too, the old journal is replayed over the
+   * new checkpoint on open, which still ends in the current state.
+   */
+  private void installCheckpoint() throws IOException {
+    if (checkpointInterval > 0) {
+      renameTo(checkpointFileTmp, checkpointFile, false);
+    }
+  }
+
+  /**
+   * Replaces the journal with the file that {@code writer} completed and
+   * starts appending to the new journal. Call with all stripes locked,
+   * {@code writer} closed and the checkpoint already installed.
+   */
+  private void installRebuiltJournal(JournalWriter writer) throws IOException {
+    journalKeyCount = writer.getKeyCount();
+    if (journalWriter != null) {
+      journalWriter.close();
     }
 
     if (journalFile.exists()) {
@@ -376,9 +789,117 @@ public final class DiskLruCache implements Closeable {
     }
     renameTo(journalFileTmp, journalFile, false);
     journalFileBackup.delete();
+    if (checkpointInterval == 0) {
+      // The journal is complete again, so a checkpoint from earlier options is stale.
+      deleteIfExists(checkpointFile);
+    }
+
+    journalWriter = newJournalWriter();
+    redundantOpCount.set(0);
+  }
+
+  /** Stops collecting rebuild tails and deletes the files of a rebuild that was not installed. */
+  private void abandonRebuild(JournalWriter writer) {
+    for (Stripe stripe : stripes) {
+      stripe.lock.lock();
+      try {
+        stripe.rebuildTail = null;
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException ignored) {
+      }
+    }
+    journalFileTmp.delete();
+    checkpointFileTmp.delete();
+  }
+
+  /**
+   * Writes the published entries that are not being edited to the temporary
+   * checkpoint file. {@link #installCheckpoint} renames it into place.
+   */
+  private void writeCheckpoint(List<EntryState> entries, long nextSequence) throws IOException {
+    int count = 0;
+    for (EntryState entry : entries) {
+      if (entry.readable && !entry.editing) {
+        count++;
+      }
+    }
+    Checkpoint.Writer writer =
+        new Checkpoint.Writer(appVersion, valueCount, store.hasLocations(), count, nextSequence);
+    for (EntryState entry : entries) {
+      if (entry.readable && !entry.editing) {
+        writer.add(entry.key, entry.lengths, entry.locations, entry.sequenceNumber);
+      }
+    }
+    writer.writeTo(checkpointFileTmp);
+  }
+
+  private JournalWriter newJournalWriter() throws IOException {
+    return new JournalWriter(journalFile, true, journalFlushLatencyMillis, journalSync,
+        binaryJournal, journalKeyCount);
+  }
 
-    journalWriter = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+  /**
+   * Appends a record for {@code key} to the journal. Call with its stripe
+   * locked. While a rebuild is writing a new journal from a copy of the
+   * stripe, the record is also kept for the new journal.
+   */
+  private long journal(Stripe stripe, int op, String key, long[] lengths, long[] locations)
+      throws IOException {
+    if (stripe.rebuildTail != null) {
+      stripe.rebuildTail.add(new JournalRecord(op, key, lengths, locations));
+    }
+    return JournalRecord.write(journalWriter, op, key, lengths, locations);
+  }
+
+  /** Returns every entry, least recently used first. Call with all stripes locked. */
+  private List<Entry> entriesInAccessOrder() {
+    List<Entry> result = new ArrayList<Entry>();
+    for (Stripe stripe : stripes) {
+      result.addAll(stripe.entries.values());
+    }
+    Collections.sort(result, new Comparator<Entry>() {
+      @Override public int compare(Entry a, Entry b) {
+        return a.accessOrder < b.accessOrder ? -1 : (a.accessOrder == b.accessOrder ? 0 : 1);
+      }
+    });
+    return result;
+  }
+
+  private Stripe stripeFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return stripes[(h & 0x7fffffff) % stripes.length];
+  }
+
+  /** Locks every stripe in index order. Always acquire stripes in this order to avoid deadlock. */
+  private void lockAllStripes() {
+    for (Stripe stripe : stripes) {
+      stripe.lock.lock();
+    }
+  }
+
+  private void unlockAllStripes() {
+    for (int i = stripes.length - 1; i >= 0; i--) {
+      stripes[i].lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of entries in the index. The stripes are read without
+   * locking, so the result is only approximate while other threads edit.
+   */
+  private int entryCount() {
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      count += stripe.entries.size();
+    }
+    return count;
   }
 
   private static void deleteIfExists(File file) throws IOException {
@@ -401,45 +922,45 @@ public final class DiskLruCache implements Closeable {
    * exist is not currently readable. If a value is returned, it is moved to
    * the head of the LRU queue.
    */
-  public synchronized Snapshot get(String key) throws IOException {
-    checkNotClosed();
+  public Snapshot get(String key) throws IOException {
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null) {
-      return null;
-    }
-
-    if (!entry.readable) {
-      return null;
-    }
-
-    // Open all streams eagerly to guarantee that we see a single published
-    // snapshot. If we opened streams lazily then the streams could come
-    // from different edits.
-    InputStream[] ins = new InputStream[valueCount];
+    Stripe stripe = stripeFor(key);
+    Snapshot snapshot;
+    stripe.lock.lock();
     try {
-      for (int i = 0; i < valueCount; i++) {
-        ins[i] = new FileInputStream(entry.getCleanFile(i));
+      checkNotClosed();
+      Entry entry = stripe.entries.get(key);
+      if (entry == null || !entry.readable) {
+        if (policy != null) {
+          policy.recordMiss(key);
+        }
+        return null;
       }
-    } catch (FileNotFoundException e) {
-      // A file must have been deleted manually!
+
       for (int i = 0; i < valueCount; i++) {
-        if (ins[i] != null) {
-          Util.closeQuietly(ins[i]);
-        } else {
-          break;
+        if (!store.exists(key, i, entry.getLocation(i), entry.lengths[i])) {
+          return null; // A file must have been deleted manually!
         }
       }
-      return null;
+
+      entry.accessOrder = accessCounter.incrementAndGet();
+      if (policy != null) {
+        policy.recordAccess(entry.policyNode);
+      }
+      redundantOpCount.incrementAndGet();
+      journal(stripe, BinaryJournal.OP_READ, key, null, null);
+      // Values are opened lazily. The snapshot stays registered with the entry
+      // until it is closed, and the entry pins it before its values change.
+      snapshot = new Snapshot(entry);
+      entry.addSnapshot(snapshot);
+    } finally {
+      stripe.lock.unlock();
     }
 
-    redundantOpCount++;
-    journalWriter.append(READ + ' ' + key + '\n');
     if (journalRebuildRequired()) {
       executorService.submit(cleanupCallable);
     }
-
-    return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
+    return snapshot;
   }
 
   /**
@@ -450,28 +971,36 @@ public final class DiskLruCache implements Closeable {
     return edit(key, ANY_SEQUENCE_NUMBER);
   }
 
-  private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
-    checkNotClosed();
+  private Editor edit(String key, long expectedSequenceNumber) throws IOException {
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
-        || entry.sequenceNumber != expectedSequenceNumber)) {
-      return null; // Snapshot is stale.
-    }
-    if (entry == null) {
-      entry = new Entry(key);
-      lruEntries.put(key, entry);
-    } else if (entry.currentEditor != null) {
-      return null; // Another edit is in progress.
-    }
+    Stripe stripe = stripeFor(key);
+    stripe.lock.lock();
+    try {
+      checkNotClosed();
+      Entry entry = stripe.entries.get(key);
+      if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
+          || entry.sequenceNumber != expectedSequenceNumber)) {
+        return null; // Snapshot is stale.
+      }
+      if (entry == null) {
+        entry = new Entry(key);
+        stripe.put(entry);
+      } else if (entry.currentEditor != null) {
+        return null; // Another edit is in progress.
+      }
+      entry.accessOrder = accessCounter.incrementAndGet();
 
-    Editor editor = new Editor(entry);
-    entry.currentEditor = editor;
+      Editor editor = new Editor(entry);
+      entry.currentEditor = editor;
 
-    // Flush the journal before creating files to prevent file leaks.
-    journalWriter.write(DIRTY + ' ' + key + '\n');
-    journalWriter.flush();
-    return editor;
+      // Flush the journal before creating files to prevent file leaks. When the
+      // journal is group-committed, leaked files are swept by the next open().
+      journal(stripe, BinaryJournal.OP_DIRTY, key, null, null);
+      journalWriter.requestFlush();
+      return editor;
+    } finally {
+      stripe.lock.unlock();
+    }
   }
 
   /** Returns the directory where this cache stores its data. */
@@ -483,7 +1012,7 @@ public final class DiskLruCache implements Closeable {
    * Returns the maximum number of bytes that this cache should use to store
    * its data.
    */
-  public synchronized long getMaxSize() {
+  public long getMaxSize() {
     return maxSize;
   }
 
@@ -491,8 +1020,11 @@ public final class DiskLruCache implements Closeable {
    * Changes the maximum number of bytes the cache can store and queues a job
    * to trim the existing store, if necessary.
    */
-  public synchronized void setMaxSize(long maxSize) {
+  public void setMaxSize(long maxSize) {
     this.maxSize = maxSize;
+    if (policy != null) {
+      policy.setMaximumWeight(maxSize);
+    }
     executorService.submit(cleanupCallable);
   }
 
@@ -501,147 +1033,454 @@ public final class DiskLruCache implements Closeable {
    * this cache. This may be greater than the max size if a background
    * deletion is pending.
    */
-  public synchronized long size() {
-    return size;
+  public long size() {
+    return size.get();
   }
 
-  private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+  /**
+   * Returns the number of bytes by which this cache exceeds its max size,
+   * which the cleanup thread has yet to evict.
+   */
+  public long getEvictionBacklog() {
+    return Math.max(0, size.get() - maxSize);
+  }
+
+  /**
+   * Returns the number of removed values whose files are still waiting to be
+   * deleted; see {@link Options#deferDeletes}.
+   */
+  public int getPendingDeleteCount() {
+    return store.pendingDeleteCount();
+  }
+
+  /**
+   * Returns the longest time, in nanoseconds, that eviction, compaction or a
+   * journal rebuild on the cleanup thread kept any entry locked. This is the
+   * longest a reader or writer could have waited for background work.
+   */
+  public long getLongestCleanupPauseNanos() {
+    return longestCleanupPause.get();
+  }
+
+  /** Returns the longest time, in nanoseconds, that evicting one entry kept its stripe locked. */
+  public long getLongestEvictionPauseNanos() {
+    return longestEvictionPause.get();
+  }
+
+  /**
+   * Returns the longest time, in nanoseconds, that compacting segments or
+   * rebuilding the journal on the cleanup thread kept entries locked.
+   */
+  public long getLongestCompactionPauseNanos() {
+    return longestCompactionPause.get();
+  }
+
+  /** Returns the total time, in nanoseconds, the cleanup thread kept entries locked. */
+  public long getTotalCleanupPauseNanos() {
+    return totalCleanupPause.get();
+  }
+
+  private void completeEdit(Editor editor, boolean success) throws IOException {
     Entry entry = editor.entry;
-    if (entry.currentEditor != editor) {
-      throw new IllegalStateException();
+    entry.stripe.lock.lock();
+    try {
+      if (entry.currentEditor != editor) {
+        throw new IllegalStateException();
+      }
+
+      // If this edit is creating the entry for the first time, every index must have a value.
+      if (success && !entry.readable) {
+        for (int i = 0; i < valueCount; i++) {
+          if (!editor.written[i]) {
+            editor.abort();
+            throw new IllegalStateException("Newly created entry didn't create value for index " + i);
+          }
+          if (!store.hasDraft(entry.key, i)) {
+            editor.abort();
+            return;
+          }
+        }
+      }
+
+      if (success) {
+        entry.pinSnapshots();
+      }
+      for (int i = 0; i < valueCount; i++) {
+        if (success) {
+          if (store.hasDraft(entry.key, i)) {
+            long oldLength = entry.lengths[i];
+            store.commit(entry.key, i, entry.locations, entry.lengths);
+            size.addAndGet(entry.lengths[i] - oldLength);
+          }
+        } else {
+          store.abort(entry.key, i);
+        }
+      }
+
+      redundantOpCount.incrementAndGet();
+      entry.currentEditor = null;
+      long ticket;
+      if (entry.readable | success) {
+        entry.readable = true;
+        ticket = journal(entry.stripe, BinaryJournal.OP_CLEAN, entry.key, entry.lengths,
+            entry.locations);
+        if (success) {
+          entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+          if (policy != null) {
+            if (entry.policyNode == null) {
+              entry.policyNode = policy.add(entry.key, entry.weight());
+            } else {
+              policy.setWeight(entry.policyNode, entry.weight());
+            }
+          }
+        }
+      } else {
+        entry.stripe.remove(entry);
+        ticket = journal(entry.stripe, BinaryJournal.OP_REMOVE, entry.key, null, null);
+      }
+      journalWriter.requestFlush();
+      editor.journal = journalWriter;
+      editor.journalTicket = ticket;
+    } finally {
+      entry.stripe.lock.unlock();
+    }
+
+    if (size.get() > maxSize || journalRebuildRequired() || compactionNeeded()) {
+      executorService.submit(cleanupCallable);
+    }
+  }
+
+  /**
+   * We only rebuild the journal when it will halve the size of the journal
+   * and eliminate at least 2000 ops. With checkpoints enabled we checkpoint
+   * once the journal tail reaches the configured interval.
+   */
+  private boolean journalRebuildRequired() {
+    final int redundantOpCompactThreshold = 2000;
+    int redundantOps = redundantOpCount.get();
+    if (checkpointInterval > 0) {
+      return redundantOps >= checkpointInterval;
+    }
+    return redundantOps >= redundantOpCompactThreshold //
+        && redundantOps >= entryCount();
+  }
+
+  /**
+   * Drops the entry for {@code key} if it exists and can be removed. Entries
+   * actively being edited cannot be removed.
+   *
+   * @return true if an entry was removed.
+   */
+  public boolean remove(String key) throws IOException {
+    return remove(key, false) != -1;
+  }
+
+  /**
+   * Removes the entry for {@code key} and returns the number of bytes freed,
+   * or -1 if there is no such entry or it is being edited. Evictions are
+   * counted as cleanup pauses.
+   */
+  private long remove(String key, boolean evicting) throws IOException {
+    validateKey(key);
+    Stripe stripe = stripeFor(key);
+    long freed = 0;
+    stripe.lock.lock();
+    long lockedAt = System.nanoTime();
+    try {
+      checkNotClosed();
+      Entry entry = stripe.entries.get(key);
+      if (entry == null || entry.currentEditor != null) {
+        return -1;
+      }
+
+      entry.pinSnapshots();
+      for (int i = 0; i < valueCount; i++) {
+        store.delete(key, i, entry.getLocation(i), entry.lengths[i]);
+        size.addAndGet(-entry.lengths[i]);
+        freed += entry.lengths[i];
+        entry.lengths[i] = 0;
+      }
+
+      redundantOpCount.incrementAndGet();
+      journal(stripe, BinaryJournal.OP_REMOVE, key, null, null);
+      stripe.remove(entry);
+      if (entry.policyNode != null) {
+        policy.remove(entry.policyNode);
+      }
+    } finally {
+      stripe.lock.unlock();
+      if (evicting) {
+        recordCleanupPause(longestEvictionPause, lockedAt);
+      }
+    }
+
+    // The first deferred delete queues a purge; later ones share it.
+    if (journalRebuildRequired() || compactionNeeded()
+        || (!evicting && store.pendingDeleteCount() == 1)) {
+      executorService.submit(cleanupCallable);
+    }
+
+    return freed;
+  }
+
+  /** Returns true if this cache has been closed. */
+  public boolean isClosed() {
+    return journalWriter == null;
+  }
+
+  private void checkNotClosed() {
+    if (journalWriter == null) {
+      throw new IllegalStateException("cache is closed");
+    }
+  }
+
+  /**
+   * Force buffered operations to the filesystem. This blocks until every
+   * journal record appended so far has been written.
+   */
+  public void flush() throws IOException {
+    checkNotClosed();
+    trimToSize(false);
+    lockAllStripes();
+    try {
+      checkNotClosed();
+      journalWriter.flush();
+    } finally {
+      unlockAllStripes();
     }
+    store.purgeDeleted();
+  }
 
-    // If this edit is creating the entry for the first time, every index must have a value.
-    if (success && !entry.readable) {
-      for (int i = 0; i < valueCount; i++) {
-        if (!editor.written[i]) {
-          editor.abort();
-          throw new IllegalStateException("Newly created entry didn't create value for index " + i);
-        }
-        if (!entry.getDirtyFile(i).exists()) {
-          editor.abort();
-          return;
+  /** Closes this cache. Stored values will remain on the filesystem. */
+  public void close() throws IOException {
+    lockAllStripes();
+    try {
+      if (journalWriter == null) {
+        return; // Already closed.
+      }
+      for (Stripe stripe : stripes) {
+        for (Entry entry : new ArrayList<Entry>(stripe.entries.values())) {
+          if (entry.currentEditor != null) {
+            entry.currentEditor.abort();
+          }
+          // Open snapshots keep working if the cache's files are deleted next.
+          entry.pinSnapshots();
         }
       }
+      trimToSize(false);
+      journalWriter.close();
+      journalWriter = null;
+      store.close();
+    } finally {
+      unlockAllStripes();
     }
+  }
 
-    for (int i = 0; i < valueCount; i++) {
-      File dirty = entry.getDirtyFile(i);
-      if (success) {
-        if (dirty.exists()) {
-          File clean = entry.getCleanFile(i);
-          dirty.renameTo(clean);
-          long oldLength = entry.lengths[i];
-          long newLength = clean.length();
-          entry.lengths[i] = newLength;
-          size = size - oldLength + newLength;
+  /**
+   * Evicts entries until the cache fits, choosing them with {@link #policy}
+   * or else least recently used first. If {@code incremental}, entries are
+   * evicted in batches, and between batches the deferred deletes are purged
+   * and the cleanup thread pauses.
+   */
+  private void trimToSize(boolean incremental) throws IOException {
+    int skipped = 0;
+    int batchEntries = 0;
+    long batchBytes = 0;
+    while (size.get() > maxSize) {
+      TinyLfuPolicy.Node victim = null;
+      String key;
+      if (policy != null) {
+        victim = policy.victim();
+        if (victim == null) {
+          return;
         }
+        key = victim.key;
       } else {
-        deleteIfExists(dirty);
+        Entry eldest = eldestEntry();
+        if (eldest == null) {
+          return; // Everything left is being edited.
+        }
+        key = eldest.key;
       }
-    }
 
-    redundantOpCount++;
-    entry.currentEditor = null;
-    if (entry.readable | success) {
-      entry.readable = true;
-      journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-      if (success) {
-        entry.sequenceNumber = nextSequenceNumber++;
+      long freed = remove(key, true);
+      if (freed == -1) {
+        if (victim != null) {
+          // The victim is being edited; try the others first.
+          policy.requeue(victim);
+          if (++skipped > policy.size()) {
+            return; // Everything left is being edited.
+          }
+        }
+        continue;
       }
-    } else {
-      lruEntries.remove(entry.key);
-      journalWriter.write(REMOVE + ' ' + entry.key + '\n');
-    }
-    journalWriter.flush();
+      skipped = 0;
 
-    if (size > maxSize || journalRebuildRequired()) {
-      executorService.submit(cleanupCallable);
+      batchEntries++;
+      batchBytes += freed;
+      if (incremental && isBatchFull(batchEntries, batchBytes)) {
+        store.purgeDeleted();
+        pauseCleanup();
+        if (journalWriter == null) {
+          return; // Closed.
+        }
+        batchEntries = 0;
+        batchBytes = 0;
+      }
     }
   }
 
-  /**
-   * We only rebuild the journal when it will halve the size of the journal
-   * and eliminate at least 2000 ops.
-   */
-  private boolean journalRebuildRequired() {
-    final int redundantOpCompactThreshold = 2000;
-    return redundantOpCount >= redundantOpCompactThreshold //
-        && redundantOpCount >= lruEntries.size();
+  /** Returns true if the cleanup thread should pause after this much work. */
+  private boolean isBatchFull(int entries, long bytes) {
+    return (cleanupBatchEntries > 0 && entries >= cleanupBatchEntries)
+        || (cleanupBatchBytes > 0 && bytes >= cleanupBatchBytes);
   }
 
-  /**
-   * Drops the entry for {@code key} if it exists and can be removed. Entries
-   * actively being edited cannot be removed.
-   *
-   * @return true if an entry was removed.
-   */
-  public synchronized boolean remove(String key) throws IOException {
-    checkNotClosed();
-    validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null || entry.currentEditor != null) {
-      return false;
+  /** Gives readers and writers a turn between two batches of cleanup work. */
+  private void pauseCleanup() {
+    if (cleanupPauseMillis == 0) {
+      Thread.yield();
+      return;
     }
-
-    for (int i = 0; i < valueCount; i++) {
-      File file = entry.getCleanFile(i);
-      if (file.exists() && !file.delete()) {
-        throw new IOException("failed to delete " + file);
-      }
-      size -= entry.lengths[i];
-      entry.lengths[i] = 0;
+    try {
+      Thread.sleep(cleanupPauseMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+  }
 
-    redundantOpCount++;
-    journalWriter.append(REMOVE + ' ' + key + '\n');
-    lruEntries.remove(key);
+  /** Records a pause that began at {@code lockedAt} in {@code longestOfKind} and the totals. */
+  private void recordCleanupPause(AtomicLong longestOfKind, long lockedAt) {
+    long pause = System.nanoTime() - lockedAt;
+    totalCleanupPause.addAndGet(pause);
+    raiseTo(longestOfKind, pause);
+    raiseTo(longestCleanupPause, pause);
+  }
 
-    if (journalRebuildRequired()) {
-      executorService.submit(cleanupCallable);
+  private static void raiseTo(AtomicLong longest, long pause) {
+    long current;
+    while (pause > (current = longest.get())) {
+      if (longest.compareAndSet(current, pause)) {
+        break;
+      }
     }
-
-    return true;
   }
 
-  /** Returns true if this cache has been closed. */
-  public synchronized boolean isClosed() {
-    return journalWriter == null;
+  /** Returns true if the store has a segment worth compacting. */
+  private boolean compactionNeeded() {
+    return compactingStore != null && compactingStore.segmentToCompact() != -1;
   }
 
-  private void checkNotClosed() {
-    if (journalWriter == null) {
-      throw new IllegalStateException("cache is closed");
+  /**
+   * Relocates the live values of segments that are mostly garbage, one batch
+   * of entries at a time, journaling each moved entry, and then deletes the
+   * segments. The cleanup thread pauses between batches.
+   */
+  private void compactSegments() throws IOException {
+    if (compactingStore == null) {
+      return;
     }
-  }
+    int segment;
+    while ((segment = compactingStore.segmentToCompact()) != -1) {
+      for (Stripe stripe : stripes) {
+        int next;
+        stripe.lock.lock();
+        try {
+          if (journalWriter == null) {
+            return; // Closed.
+          }
+          next = stripe.slotCount();
+        } finally {
+          stripe.lock.unlock();
+        }
 
-  /** Force buffered operations to the filesystem. */
-  public synchronized void flush() throws IOException {
-    checkNotClosed();
-    trimToSize();
-    journalWriter.flush();
+        // Entries added or rewritten in between have no values here.
+        while (next > 0) {
+          int batchEntries = 0;
+          long batchBytes = 0;
+          stripe.lock.lock();
+          long lockedAt = System.nanoTime();
+          try {
+            if (journalWriter == null) {
+              return; // Closed.
+            }
+            next = Math.min(next, stripe.slotCount());
+            while (next > 0 && !isBatchFull(batchEntries, batchBytes)) {
+              Entry entry = stripe.entryAt(--next);
+              long moved = relocateValues(entry, segment);
+              if (moved != -1) {
+                batchEntries++;
+                batchBytes += moved;
+                redundantOpCount.incrementAndGet();
+                journal(stripe, BinaryJournal.OP_CLEAN, entry.key, entry.lengths,
+                    entry.locations);
+              }
+            }
+            journalWriter.requestFlush();
+          } finally {
+            stripe.lock.unlock();
+            recordCleanupPause(longestCompactionPause, lockedAt);
+          }
+          if (next > 0) {
+            pauseCleanup();
+          }
+        }
+      }
+      // The new locations must be in the journal before the old copies go.
+      JournalWriter writer = journalWriter;
+      if (writer == null) {
+        return;
+      }
+      writer.flush();
+      compactingStore.compacted(segment);
+    }
   }
 
-  /** Closes this cache. Stored values will remain on the filesystem. */
-  public synchronized void close() throws IOException {
-    if (journalWriter == null) {
-      return; // Already closed.
-    }
-    for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-      if (entry.currentEditor != null) {
-        entry.currentEditor.abort();
+  /**
+   * Moves the values of {@code entry} out of {@code segment} and returns the
+   * number of bytes moved, or -1 if none were there. Call with its stripe
+   * locked.
+   */
+  private long relocateValues(Entry entry, int segment) throws IOException {
+    long moved = -1;
+    for (int i = 0; i < valueCount; i++) {
+      if (entry.lengths[i] > 0 && compactingStore.segmentOf(entry.locations[i]) == segment) {
+        if (moved == -1) {
+          entry.pinSnapshots();
+          moved = 0;
+        }
+        entry.locations[i] = compactingStore.relocate(entry.locations[i], entry.lengths[i]);
+        moved += entry.lengths[i];
       }
     }
-    trimToSize();
-    journalWriter.close();
-    journalWriter = null;
+    return moved;
   }
 
-  private void trimToSize() throws IOException {
-    while (size > maxSize) {
-      Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-      remove(toEvict.getKey());
+  /**
+   * Returns the least recently used entry that is not being edited, or null
+   * if there is none. Stripes are locked one at a time, so the answer may be
+   * slightly stale by the time the caller acts on it.
+   */
+  private Entry eldestEntry() {
+    Entry eldest = null;
+    long eldestAccessOrder = Long.MAX_VALUE;
+    for (Stripe stripe : stripes) {
+      stripe.lock.lock();
+      try {
+        for (Entry entry : stripe.entries.values()) {
+          if (entry.currentEditor == null) {
+            if (entry.accessOrder < eldestAccessOrder) {
+              eldest = entry;
+              eldestAccessOrder = entry.accessOrder;
+            }
+            break;
+          }
+        }
+      } finally {
+        stripe.lock.unlock();
+      }
     }
+    return eldest;
   }
 
   /**
@@ -665,18 +1504,41 @@ public final class DiskLruCache implements Closeable {
     return Util.readFully(new InputStreamReader(in, Util.UTF_8));
   }
 
-  /** A snapshot of the values for an entry. */
+  /**
+   * A snapshot of the values for an entry.
+   *
+   * <p>Values are opened on first use rather than by {@link #get}, so values
+   * nobody reads cost no file descriptors. Before an entry's values are
+   * replaced, removed or moved, the entry opens every value its snapshots
+   * have not opened yet, so a snapshot always reads the values of the edit it
+   * was created from.
+   *
+   * <p>Besides streams, a snapshot can {@link #map} a value or {@link #read}
+   * and {@link #transferTo transfer} it straight from its file channel,
+   * without copying the bytes through an intermediate heap buffer.
+   */
   public final class Snapshot implements Closeable {
+    private final Entry entry;
     private final String key;
     private final long sequenceNumber;
-    private final InputStream[] ins;
     private final long[] lengths;
+    private final long[] locations;
 
-    private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
-      this.key = key;
-      this.sequenceNumber = sequenceNumber;
-      this.ins = ins;
-      this.lengths = lengths;
+    // Guarded by the entry's stripe lock.
+    private final ValueStore.Handle[] handles;
+    private IOException[] failures;
+    private boolean closed;
+
+    private final InputStream[] ins;
+
+    private Snapshot(Entry entry) {
+      this.entry = entry;
+      this.key = entry.key;
+      this.sequenceNumber = entry.sequenceNumber;
+      this.lengths = entry.lengths.clone();
+      this.locations = entry.locations != null ? entry.locations.clone() : null;
+      this.handles = new ValueStore.Handle[valueCount];
+      this.ins = new InputStream[valueCount];
     }
 
     /**
@@ -688,8 +1550,45 @@ public final class DiskLruCache implements Closeable {
       return DiskLruCache.this.edit(key, sequenceNumber);
     }
 
-    /** Returns the unbuffered stream with the value for {@code index}. */
-    public InputStream getInputStream(int index) {
+    /**
+     * Returns the unbuffered stream with the value for {@code index}. The
+     * value is opened by the stream's first read.
+     */
+    public InputStream getInputStream(final int index) {
+      if (ins[index] == null) {
+        ins[index] = new InputStream() {
+          private InputStream delegate;
+
+          private InputStream delegate() throws IOException {
+            if (delegate == null) {
+              delegate = handle(index).newInputStream();
+            }
+            return delegate;
+          }
+
+          @Override public int read() throws IOException {
+            return delegate().read();
+          }
+
+          @Override public int read(byte[] b, int off, int len) throws IOException {
+            return delegate().read(b, off, len);
+          }
+
+          @Override public long skip(long n) throws IOException {
+            return delegate().skip(n);
+          }
+
+          @Override public int available() throws IOException {
+            return delegate().available();
+          }
+
+          @Override public void close() throws IOException {
+            if (delegate != null) {
+              delegate.close();
+            }
+          }
+        };
+      }
       return ins[index];
     }
 
@@ -703,10 +1602,120 @@ public final class DiskLruCache implements Closeable {
       return lengths[index];
     }
 
+    /**
+     * Returns a read-only memory mapping of the value for {@code index}. The
+     * mapping stays valid after this snapshot is closed. Mapping has a fixed
+     * cost, so it pays off for large values; {@link #read} suits small ones.
+     */
+    public ByteBuffer map(int index) throws IOException {
+      ValueStore.Handle handle = handle(index);
+      if (handle.length == 0) {
+        return ByteBuffer.allocate(0).asReadOnlyBuffer();
+      }
+      return handle.channel().map(FileChannel.MapMode.READ_ONLY, handle.offset, handle.length);
+    }
+
+    /**
+     * Reads bytes of the value for {@code index}, starting {@code position}
+     * bytes into the value, into {@code dst}. With a direct buffer the bytes
+     * go from the file to the buffer without a heap copy.
+     *
+     * @return the number of bytes read, or -1 if {@code position} is at or
+     *     past the end of the value.
+     */
+    public int read(int index, ByteBuffer dst, long position) throws IOException {
+      if (position < 0) {
+        throw new IllegalArgumentException("position < 0");
+      }
+      return handle(index).read(dst, position);
+    }
+
+    /**
+     * Transfers the whole value for {@code index} to {@code target}, such as
+     * a socket, letting the platform copy file bytes directly when it can.
+     *
+     * @return the number of bytes transferred.
+     */
+    public long transferTo(int index, WritableByteChannel target) throws IOException {
+      ValueStore.Handle handle = handle(index);
+      long transferred = 0;
+      while (transferred < handle.length) {
+        long count = handle.channel().transferTo(handle.offset + transferred,
+            handle.length - transferred, target);
+        if (count <= 0) {
+          break; // A non-blocking target is full.
+        }
+        transferred += count;
+      }
+      return transferred;
+    }
+
     public void close() {
+      entry.stripe.lock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        entry.removeSnapshot(this);
+      } finally {
+        entry.stripe.lock.unlock();
+      }
       for (InputStream in : ins) {
-        Util.closeQuietly(in);
+        if (in != null) {
+          Util.closeQuietly(in);
+        }
+      }
+      for (ValueStore.Handle handle : handles) {
+        if (handle != null) {
+          Util.closeQuietly(handle);
+        }
+      }
+    }
+
+    /** Returns the open value for {@code index}, opening it if necessary. */
+    private ValueStore.Handle handle(int index) throws IOException {
+      entry.stripe.lock.lock();
+      try {
+        if (closed) {
+          throw new IllegalStateException("snapshot is closed");
+        }
+        open(index);
+        if (handles[index] == null) {
+          throw failures[index];
+        }
+        return handles[index];
+      } finally {
+        entry.stripe.lock.unlock();
+      }
+    }
+
+    /** Opens every value not opened yet. Call with the entry's stripe locked. */
+    private void pin() {
+      for (int i = 0; i < valueCount; i++) {
+        open(i);
+      }
+    }
+
+    private void open(int index) {
+      if (handles[index] != null || (failures != null && failures[index] != null)) {
+        return;
+      }
+      IOException failure;
+      try {
+        long location = locations != null ? locations[index] : 0;
+        handles[index] = store.open(key, index, location, lengths[index]);
+        if (handles[index] != null) {
+          return;
+        }
+        failure = new FileNotFoundException("value " + index + " of " + key + " is missing");
+      } catch (IOException e) {
+        failure = e;
+      }
+      if (failures == null) {
+        failures = new IOException[valueCount];
       }
+      failures[index] = failure;
     }
   }
 
@@ -724,6 +1733,10 @@ public final class DiskLruCache implements Closeable {
     private boolean hasErrors;
     private boolean committed;
 
+    /** The journal and ticket of the record that completed this edit. */
+    private JournalWriter journal;
+    private long journalTicket;
+
     private Editor(Entry entry) {
       this.entry = entry;
       this.written = (entry.readable) ? null : new boolean[valueCount];
@@ -734,18 +1747,19 @@ public final class DiskLruCache implements Closeable {
      * or null if no value has been committed.
      */
     public InputStream newInputStream(int index) throws IOException {
-      synchronized (DiskLruCache.this) {
+      entry.stripe.lock.lock();
+      try {
         if (entry.currentEditor != this) {
           throw new IllegalStateException();
         }
         if (!entry.readable) {
           return null;
         }
-        try {
-          return new FileInputStream(entry.getCleanFile(index));
-        } catch (FileNotFoundException e) {
-          return null;
-        }
+        ValueStore.Handle handle =
+            store.open(entry.key, index, entry.getLocation(index), entry.lengths[index]);
+        return handle != null ? handle.newInputStream() : null;
+      } finally {
+        entry.stripe.lock.unlock();
       }
     }
 
@@ -766,28 +1780,30 @@ public final class DiskLruCache implements Closeable {
      * IOExceptions.
      */
     public OutputStream newOutputStream(int index) throws IOException {
-      synchronized (DiskLruCache.this) {
+      entry.stripe.lock.lock();
+      try {
         if (entry.currentEditor != this) {
           throw new IllegalStateException();
         }
         if (!entry.readable) {
           written[index] = true;
         }
-        File dirtyFile = entry.getDirtyFile(index);
-        FileOutputStream outputStream;
+        OutputStream outputStream;
         try {
-          outputStream = new FileOutputStream(dirtyFile);
+          outputStream = store.newDraft(entry.key, index);
         } catch (FileNotFoundException e) {
           // Attempt to recreate the cache directory.
           directory.mkdirs();
           try {
-            outputStream = new FileOutputStream(dirtyFile);
+            outputStream = store.newDraft(entry.key, index);
           } catch (FileNotFoundException e2) {
             // We are unable to recover. Silently eat the writes.
             return NULL_OUTPUT_STREAM;
           }
         }
         return new FaultHidingOutputStream(outputStream);
+      } finally {
+        entry.stripe.lock.unlock();
       }
     }
 
@@ -816,6 +1832,17 @@ public final class DiskLruCache implements Closeable {
       committed = true;
     }
 
+    /**
+     * Commits this edit like {@link #commit} and then blocks until the
+     * journal record that publishes it has been written to the filesystem.
+     */
+    public void commitDurably() throws IOException {
+      commit();
+      if (journal != null) {
+        journal.awaitDurable(journalTicket);
+      }
+    }
+
     /**
      * Aborts this edit. This releases the edit lock so another edit may be
      * started on the same key.
@@ -876,12 +1903,218 @@ public final class DiskLruCache implements Closeable {
     }
   }
 
+  /** One partition of the entry index, guarded by its own lock. */
+  private static final class Stripe {
+    final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Access-ordered, so the head is this stripe's least recently used entry.
+     * Add and remove entries with {@link #put} and {@link #remove}.
+     */
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    /**
+     * The same entries in no particular order, so the cleanup thread can walk
+     * them one batch at a time without copying them all under the lock.
+     */
+    private final ArrayList<Entry> slots = new ArrayList<Entry>();
+
+    /**
+     * Journal records appended since a journal rebuild copied this stripe, or
+     * null if no rebuild is in progress. Guarded by {@link #lock}.
+     */
+    List<JournalRecord> rebuildTail;
+
+    void put(Entry entry) {
+      entries.put(entry.key, entry);
+      entry.slot = slots.size();
+      slots.add(entry);
+    }
+
+    /** Removes {@code entry} and moves the last slot's entry into its slot. */
+    void remove(Entry entry) {
+      entries.remove(entry.key);
+      Entry last = slots.remove(slots.size() - 1);
+      if (last != entry) {
+        slots.set(entry.slot, last);
+        last.slot = entry.slot;
+      }
+    }
+
+    int slotCount() {
+      return slots.size();
+    }
+
+    /**
+     * Returns the entry in {@code slot}. Walking down from the last slot, with
+     * the lock released between batches, visits every entry that stays in the
+     * stripe at least once: a removal moves the last entry into the freed
+     * slot, which can only visit it again. Entries added meanwhile may be missed.
+     */
+    Entry entryAt(int slot) {
+      return slots.get(slot);
+    }
+  }
+
+  /** A copy of the journaled state of an entry, taken for a journal rebuild. */
+  private static final class EntryState {
+    final String key;
+    final long accessOrder;
+    final boolean readable;
+    final boolean editing;
+    final long sequenceNumber;
+    final long[] lengths;
+    final long[] locations;
+
+    EntryState(Entry entry) {
+      key = entry.key;
+      accessOrder = entry.accessOrder;
+      readable = entry.readable;
+      editing = entry.currentEditor != null;
+      sequenceNumber = entry.sequenceNumber;
+      lengths = entry.lengths.clone();
+      locations = entry.locations != null ? entry.locations.clone() : null;
+    }
+  }
+
+  /** One journal record, kept so a journal rebuild can replay it into the new journal. */
+  private static final class JournalRecord {
+    final int op;
+    final String key;
+    final long[] lengths;
+    final long[] locations;
+
+    JournalRecord(int op, String key, long[] lengths, long[] locations) {
+      this.op = op;
+      this.key = key;
+      this.lengths = lengths != null ? lengths.clone() : null;
+      this.locations = locations != null ? locations.clone() : null;
+    }
+
+    long writeTo(JournalWriter writer) throws IOException {
+      return write(writer, op, key, lengths, locations);
+    }
+
+    static long write(JournalWriter writer, int op, String key, long[] lengths,
+        long[] locations) throws IOException {
+      switch (op) {
+        case BinaryJournal.OP_CLEAN:
+          return writer.writeClean(key, lengths, locations);
+        case BinaryJournal.OP_DIRTY:
+          return writer.writeDirty(key);
+        case BinaryJournal.OP_REMOVE:
+          return writer.writeRemove(key);
+        default:
+          return writer.writeRead(key);
+      }
+    }
+  }
+
+  /** Options that tune how a cache is opened. Unset fields keep their defaults. */
+  public static final class Options {
+    /**
+     * The number of independently locked stripes the entry index is split
+     * into. Operations on keys in different stripes do not block each other.
+     * {@code 1} gives the behavior of a single cache-wide lock.
+     */
+    public int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
+
+    /**
+     * The longest, in milliseconds, a journal record may wait to be batched
+     * with others before it is written. {@code 0} writes and flushes the
+     * journal on the calling thread for every edit.
+     */
+    public long journalFlushLatencyMillis = 0;
+
+    /** True to fsync the journal after every batch that is written. */
+    public boolean journalSync = false;
+
+    /**
+     * True to keep the journal in the binary format, which replays faster
+     * than text when the cache is opened for large journals (see
+     * BinaryJournalTest#startupBenchmark). An existing text journal is
+     * migrated on open, and clearing the flag migrates it back.
+     */
+    public boolean binaryJournal = false;
+
+    /**
+     * The number of journal operations after which the entry index is
+     * written to a checkpoint file and the journal restarts empty, so that
+     * opening the cache costs time proportional to the live entries rather
+     * than to the journal's history. {@code 0} disables checkpoints and
+     * compacts the journal by rewriting it instead.
+     */
+    public int checkpointInterval = 0;
+
+    /**
+     * The size in bytes of the segment files that values are packed into.
+     * {@code 0} keeps every value in a file of its own. Segments suit caches
+     * of many small values: a commit appends to an open file, a read is a
+     * positional read on one, and the directory holds a few large files
+     * instead of one per value. Drafts are buffered in memory until commit,
+     * and space freed by replaced or removed values is reclaimed by
+     * compacting segments on the cleanup thread. A cache written with one
+     * layout is cleared when it is opened with the other.
+     */
+    public long segmentSize = 0;
+
+    /** How entries are chosen for eviction once the cache is over its maximum size. */
+    public EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+
+    /**
+     * The most entries the cleanup thread evicts, or moves while compacting
+     * segments, before it pauses to let readers and writers run. Each entry
+     * is locked only while it is evicted or moved, but a long run of them
+     * still competes with the app's own work. {@code 0} puts no bound on a
+     * batch.
+     */
+    public int cleanupBatchEntries = 0;
+
+    /** The most bytes the cleanup thread evicts or moves per batch. {@code 0} for no bound. */
+    public long cleanupBatchBytes = 0;
+
+    /**
+     * How long, in milliseconds, the cleanup thread sleeps between batches.
+     * {@code 0} only yields.
+     */
+    public long cleanupPauseMillis = 0;
+
+    /**
+     * True to only rename the files of removed values while their entry is
+     * locked, and delete them later on the cleanup thread. Has no effect
+     * when values are kept in segments.
+     */
+    public boolean deferDeletes = false;
+  }
+
+  /** The eviction policies a cache can be opened with. */
+  public enum EvictionPolicy {
+    /** Evict the least recently used entry. */
+    LRU,
+
+    /**
+     * Admit and evict by recent frequency as well as recency, weighted by
+     * size, using {@link TinyLfuPolicy}. Keeps a popular working set through
+     * one-off scans of many other keys.
+     */
+    W_TINY_LFU
+  }
+
   private final class Entry {
     private final String key;
 
-    /** Lengths of this entry's files. */
+    /** The stripe that holds this entry; its lock guards every mutable field. */
+    private final Stripe stripe;
+
+    /** Global access stamp. Smaller values were used less recently. */
+    private long accessOrder;
+
+    /** Lengths of this entry's values. */
     private final long[] lengths;
 
+    /** Where the value store keeps each value, or null if it has no locations. */
+    private final long[] locations;
+
     /** True if this entry has ever been published. */
     private boolean readable;
 
@@ -891,9 +2124,20 @@ public final class DiskLruCache implements Closeable {
     /** The sequence number of the most recently committed edit to this entry. */
     private long sequenceNumber;
 
+    /** This entry's place in {@link #policy}, once it has been published. */
+    private TinyLfuPolicy.Node policyNode;
+
+    /** This entry's index in its stripe's slots. Guarded by the stripe lock. */
+    private int slot;
+
+    /** Open snapshots that may not have opened all values yet, or null. */
+    private List<Snapshot> snapshots;
+
     private Entry(String key) {
       this.key = key;
+      this.stripe = stripeFor(key);
       this.lengths = new long[valueCount];
+      this.locations = store.hasLocations() ? new long[valueCount] : null;
     }
 
     public String getLengths() throws IOException {
@@ -904,31 +2148,51 @@ public final class DiskLruCache implements Closeable {
       return result.toString();
     }
 
-    /** Set lengths using decimal numbers like "10123". */
-    private void setLengths(String[] strings) throws IOException {
-      if (strings.length != valueCount) {
-        throw invalidLengths(strings);
+    private void addSnapshot(Snapshot snapshot) {
+      if (snapshots == null) {
+        snapshots = new ArrayList<Snapshot>(1);
       }
+      snapshots.add(snapshot);
+    }
 
-      try {
-        for (int i = 0; i < strings.length; i++) {
-          lengths[i] = Long.parseLong(strings[i]);
+    private void removeSnapshot(Snapshot snapshot) {
+      if (snapshots != null) {
+        snapshots.remove(snapshot);
+      }
+    }
+
+    /** Opens the unopened values of every snapshot before the values change. */
+    private void pinSnapshots() {
+      if (snapshots != null) {
+        for (Snapshot snapshot : snapshots) {
+          snapshot.pin();
         }
-      } catch (NumberFormatException e) {
-        throw invalidLengths(strings);
+        snapshots = null;
       }
     }
 
-    private IOException invalidLengths(String[] strings) throws IOException {
-      throw new IOException("unexpected journal line: " + java.util.Arrays.toString(strings));
+    /** Returns the total length of this entry's values. */
+    private long weight() {
+      long weight = 0;
+      for (long length : lengths) {
+        weight += length;
+      }
+      return weight;
     }
 
-    public File getCleanFile(int i) {
-      return new File(directory, key + "." + i);
+    public long getLocation(int i) {
+      return locations != null ? locations[i] : 0;
     }
 
-    public File getDirtyFile(int i) {
-      return new File(directory, key + "." + i + ".tmp");
+    /** Sets the lengths and locations of a replayed entry. */
+    private void setValues(long[] lengths, long[] locations) throws IOException {
+      if ((locations != null) != (this.locations != null)) {
+        throw new IOException("journal was written for a different value store");
+      }
+      System.arraycopy(lengths, 0, this.lengths, 0, valueCount);
+      if (locations != null) {
+        System.arraycopy(locations, 0, this.locations, 0, valueCount);
+      }
     }
   }
 }
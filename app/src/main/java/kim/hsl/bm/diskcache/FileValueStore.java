@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kim.hsl.bm.diskcache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps every value in its own file named "key.index". A draft is written to
+ * "key.index.tmp" and renamed over the value when it is committed. This is
+ * the original {@link DiskLruCache} layout; it has no locations and never
+ * needs compacting.
+ *
+ * <p>Unlinking a large file can take a while, and the cache deletes values
+ * while their entry is locked. With deferred deletes a value file is only
+ * renamed to "key.index.n.del" there, and {@link #purgeDeleted} unlinks the
+ * renamed files later. Files left behind by a crash are swept on open.
+ */
+final class FileValueStore implements ValueStore {
+  static final String DELETED_SUFFIX = ".del";
+
+  private final File directory;
+  private final boolean deferDeletes;
+
+  /** Renamed value files waiting to be unlinked. Guarded by this. */
+  private final List<File> deleted = new ArrayList<File>();
+
+  /** Keeps the names of renamed files unique. Guarded by this. */
+  private long nextDeletedId;
+
+  FileValueStore(File directory, boolean deferDeletes) {
+    this.directory = directory;
+    this.deferDeletes = deferDeletes;
+  }
+
+  @Override public boolean hasLocations() {
+    return false;
+  }
+
+  @Override public OutputStream newDraft(String key, int index) throws FileNotFoundException {
+    return new FileOutputStream(getDirtyFile(key, index));
+  }
+
+  @Override public boolean hasDraft(String key, int index) {
+    return getDirtyFile(key, index).exists();
+  }
+
+  @Override public void commit(String key, int index, long[] locations, long[] lengths) {
+    File dirty = getDirtyFile(key, index);
+    File clean = getCleanFile(key, index);
+    dirty.renameTo(clean);
+    lengths[index] = clean.length();
+  }
+
+  @Override public void abort(String key, int index) throws IOException {
+    deleteIfExists(getDirtyFile(key, index));
+  }
+
+  @Override public boolean exists(String key, int index, long location, long length) {
+    return getCleanFile(key, index).exists();
+  }
+
+  @Override public Handle open(String key, int index, long location, long length) {
+    try {
+      return new FileHandle(new FileInputStream(getCleanFile(key, index)), length);
+    } catch (FileNotFoundException e) {
+      // A file must have been deleted manually!
+      return null;
+    }
+  }
+
+  @Override public void delete(String key, int index, long location, long length)
+      throws IOException {
+    File file = getCleanFile(key, index);
+    if (!deferDeletes) {
+      if (file.exists() && !file.delete()) {
+        throw new IOException("failed to delete " + file);
+      }
+      return;
+    }
+    if (!file.exists()) {
+      return;
+    }
+    File renamed;
+    synchronized (this) {
+      renamed = new File(directory, key + "." + index + "." + nextDeletedId++ + DELETED_SUFFIX);
+    }
+    if (!file.renameTo(renamed)) {
+      throw new IOException("failed to delete " + file);
+    }
+    synchronized (this) {
+      deleted.add(renamed);
+    }
+  }
+
+  @Override public int purgeDeleted() throws IOException {
+    List<File> files;
+    synchronized (this) {
+      if (deleted.isEmpty()) {
+        return 0;
+      }
+      files = new ArrayList<File>(deleted);
+      deleted.clear();
+    }
+    File failed = null;
+    for (File file : files) {
+      if (file.exists() && !file.delete()) {
+        failed = file;
+      }
+    }
+    if (failed != null) {
+      throw new IOException("failed to delete " + failed);
+    }
+    return files.size();
+  }
+
+  @Override public synchronized int pendingDeleteCount() {
+    return deleted.size();
+  }
+
+  @Override public boolean recover(String key, int index, long location, long length) {
+    // A missing file is noticed, and the entry skipped, when it is read.
+    return true;
+  }
+
+  @Override public void recoveryFinished() {
+    if (!deferDeletes) {
+      return;
+    }
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(DELETED_SUFFIX)) {
+        file.delete();
+      }
+    }
+  }
+
+  @Override public void close() throws IOException {
+    purgeDeleted();
+  }
+
+  File getCleanFile(String key, int index) {
+    return new File(directory, key + "." + index);
+  }
+
+  File getDirtyFile(String key, int index) {
+    return new File(directory, key + "." + index + ".tmp");
+  }
+
+  private static void deleteIfExists(File file) throws IOException {
+    if (file.exists() && !file.delete()) {
+      throw new IOException();
+    }
+  }
+
+  /** An open value file. Its stream is the file's own, so reads are plain reads. */
+  private static final class FileHandle extends Handle {
+    private final FileInputStream in;
+
+    FileHandle(FileInputStream in, long length) {
+      super(0, length);
+      this.in = in;
+    }
+
+    @Override FileChannel channel() {
+      return in.getChannel();
+    }
+
+    @Override InputStream newInputStream() {
+      return in;
+    }
+
+    @Override public void close() {
+      Util.closeQuietly(in);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kim.hsl.bm.diskcache;
+
+/**
+ * A count-min sketch of how often keys were used recently, with four 4-bit
+ * counters per key. Once the number of increments reaches ten times the
+ * table's width every counter is halved, so old popularity fades away.
+ * Keys are identified by their hash codes only; collisions can only make a
+ * key look more popular than it is.
+ */
+final class FrequencySketch {
+  private static final long[] SEEDS = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+  };
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long ONE_MASK = 0x1111111111111111L;
+
+  private long[] table;
+  private int tableMask;
+  private int sampleSize;
+  private int additions;
+
+  FrequencySketch() {
+    ensureCapacity(16);
+  }
+
+  /**
+   * Grows the sketch to track about {@code maximumSize} keys accurately.
+   * Growing forgets every count.
+   */
+  void ensureCapacity(int maximumSize) {
+    int size = 1;
+    while (size < maximumSize && size < (1 << 30)) {
+      size <<= 1;
+    }
+    if (table != null && table.length >= size) {
+      return;
+    }
+    table = new long[size];
+    tableMask = size - 1;
+    sampleSize = 10 * size;
+    additions = 0;
+  }
+
+  /** Returns the number of keys the sketch is sized for. */
+  int capacity() {
+    return table.length;
+  }
+
+  /** Returns the estimated number of recent uses of the key with {@code hashCode}, up to 15. */
+  int frequency(int hashCode) {
+    int hash = spread(hashCode);
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < 4; i++) {
+      long slot = table[indexOf(hash, i)];
+      frequency = Math.min(frequency, (int) ((slot >>> ((start + i) << 2)) & 0xfL));
+    }
+    return frequency;
+  }
+
+  /** Records a use of the key with {@code hashCode}. */
+  void increment(int hashCode) {
+    int hash = spread(hashCode);
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && ++additions == sampleSize) {
+      reset();
+    }
+  }
+
+  private boolean incrementAt(int index, int counter) {
+    int offset = counter << 2;
+    long mask = 0xfL << offset;
+    if ((table[index] & mask) != mask) {
+      table[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /** Halves every counter. */
+  private void reset() {
+    int odd = 0;
+    for (int i = 0; i < table.length; i++) {
+      odd += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions = (additions >>> 1) - (odd >>> 2);
+  }
+
+  private int indexOf(int hash, int depth) {
+    long h = (hash + SEEDS[depth]) * SEEDS[depth];
+    h += h >>> 32;
+    return ((int) h) & tableMask;
+  }
+
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kim.hsl.bm.diskcache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+/**
+ * Appends records to the journal of a {@link DiskLruCache}.
+ *
+ * <p>The writer has its own monitor, so callers only contend with each other
+ * for the duration of a single append and never for the cache's entry locks.
+ * Records for one key are always appended while that key's stripe is locked,
+ * which keeps per-key records in the order they happened.
+ *
+ * <p>Appended records are collected in memory and written out in batches.
+ * With a zero flush latency the batch is written on the calling thread
+ * whenever {@link #requestFlush} is called, which matches a plain buffered
+ * writer. With a positive latency a background thread group-commits: it
+ * waits up to that many milliseconds for more records to arrive and then
+ * writes the whole batch with one write and one flush (and one fsync if
+ * requested). Callers that need to know a record is on disk pass the ticket
+ * returned by the append to {@link #awaitDurable}.
+ *
+ * <p>Records are encoded either as the text lines described in
+ * {@link DiskLruCache} or in the {@link BinaryJournal} format. In the binary
+ * format every key is defined once with an id and later records refer to it
+ * by that id.
+ */
+final class JournalWriter implements Closeable {
+  static final String CLEAN = "CLEAN";
+  static final String DIRTY = "DIRTY";
+  static final String REMOVE = "REMOVE";
+  static final String READ = "READ";
+
+  /** A pending batch larger than this is written out without waiting. */
+  private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+  private final FileOutputStream fileOut;
+  private final long flushLatencyMillis;
+  private final boolean sync;
+  private final boolean binary;
+  private final Thread flusher;
+
+  // All fields below are guarded by this.
+  private RecordBuffer pending = new RecordBuffer();
+  private RecordBuffer spare = new RecordBuffer();
+  private final RecordBuffer payload = new RecordBuffer();
+  private final HashMap<String, Integer> keyIds = new HashMap<String, Integer>();
+  private int nextKeyId;
+  private long appended;
+  private long durable;
+  private boolean flushNow;
+  private boolean closed;
+  private IOException failure;
+  private long batchCount;
+
+  /**
+   * Opens {@code file} for writing with batches written on the caller's
+   * thread and no fsync.
+   *
+   * @param append true to add records after the existing content, false to
+   *     truncate the file first.
+   */
+  JournalWriter(File file, boolean append) throws IOException {
+    this(file, append, 0, false, false, 0);
+  }
+
+  /**
+   * Opens {@code file} for writing.
+   *
+   * @param append true to add records after the existing content, false to
+   *     truncate the file first.
+   * @param flushLatencyMillis the longest a record may wait for its batch to
+   *     be written, or 0 to write batches on the caller's thread.
+   * @param sync true to fsync the file after every batch.
+   * @param binary true to write the {@link BinaryJournal} format.
+   * @param firstKeyId the number of key ids already defined in {@code file};
+   *     ignored for text journals.
+   */
+  JournalWriter(File file, boolean append, long flushLatencyMillis, boolean sync, boolean binary,
+      int firstKeyId) throws IOException {
+    this.fileOut = new FileOutputStream(file, append);
+    this.flushLatencyMillis = flushLatencyMillis;
+    this.sync = sync;
+    this.binary = binary;
+    this.nextKeyId = firstKeyId;
+    if (flushLatencyMillis > 0) {
+      flusher = new Thread("DiskLruCache journal " + file.getParentFile().getName()) {
+        @Override public void run() {
+          runFlusher();
+        }
+      };
+      flusher.setDaemon(true);
+      flusher.start();
+    } else {
+      flusher = null;
+    }
+  }
+
+  /** Writes the header of a new journal. */
+  synchronized long writeHeader(int appVersion, int valueCount) throws IOException {
+    checkWritable();
+    if (binary) {
+      pending.write(BinaryJournal.MAGIC);
+      pending.writeVarint(BinaryJournal.VERSION);
+      pending.writeVarint(appVersion);
+      pending.writeVarint(valueCount);
+    } else {
+      pending.writeAscii(DiskLruCache.MAGIC).writeByte('\n')
+          .writeAscii(DiskLruCache.VERSION_1).writeByte('\n')
+          .writeDecimal(appVersion).writeByte('\n')
+          .writeDecimal(valueCount).writeByte('\n')
+          .writeByte('\n');
+    }
+    return appended();
+  }
+
+  synchronized long writeDirty(String key) throws IOException {
+    return writeKeyRecord(DIRTY, BinaryJournal.OP_DIRTY, key);
+  }
+
+  synchronized long writeClean(String key, long[] lengths) throws IOException {
+    return writeClean(key, lengths, null);
+  }
+
+  /**
+   * Writes a CLEAN record. If {@code locations} is non-null, the value
+   * locations of a {@link SegmentValueStore} follow the lengths.
+   */
+  synchronized long writeClean(String key, long[] lengths, long[] locations) throws IOException {
+    checkWritable();
+    if (binary) {
+      int keyId = keyId(key);
+      payload.writeVarint(keyId);
+      for (long length : lengths) {
+        payload.writeVarint(length);
+      }
+      if (locations != null) {
+        for (long location : locations) {
+          payload.writeVarint(location);
+        }
+      }
+      writeBinaryRecord(BinaryJournal.OP_CLEAN);
+    } else {
+      pending.writeAscii(CLEAN).writeByte(' ').writeAscii(key);
+      for (long length : lengths) {
+        pending.writeByte(' ').writeDecimal(length);
+      }
+      if (locations != null) {
+        for (long location : locations) {
+          pending.writeByte(' ').writeDecimal(location);
+        }
+      }
+      pending.writeByte('\n');
+    }
+    return appended();
+  }
+
+  synchronized long writeRemove(String key) throws IOException {
+    return writeKeyRecord(REMOVE, BinaryJournal.OP_REMOVE, key);
+  }
+
+  synchronized long writeRead(String key) throws IOException {
+    return writeKeyRecord(READ, BinaryJournal.OP_READ, key);
+  }
+
+  /** Returns the number of key ids defined in the file so far. */
+  synchronized int getKeyCount() {
+    return nextKeyId;
+  }
+
+  private long writeKeyRecord(String op, int binaryOp, String key) throws IOException {
+    checkWritable();
+    if (binary) {
+      payload.writeVarint(keyId(key));
+      writeBinaryRecord(binaryOp);
+    } else {
+      pending.writeAscii(op).writeByte(' ').writeAscii(key).writeByte('\n');
+    }
+    return appended();
+  }
+
+  /** Returns the id of {@code key}, defining it first if this writer has not seen it. */
+  private int keyId(String key) {
+    Integer id = keyIds.get(key);
+    if (id != null) {
+      return id;
+    }
+    int newId = nextKeyId++;
+    keyIds.put(key, newId);
+    RecordBuffer definition = new RecordBuffer();
+    definition.writeVarint(newId).writeVarint(key.length()).writeAscii(key);
+    pending.writeByte(BinaryJournal.OP_KEY).writeVarint(definition.size()).write(definition);
+    return newId;
+  }
+
+  /** Moves {@link #payload} into the pending batch as one length-prefixed record. */
+  private void writeBinaryRecord(int op) {
+    pending.writeByte(op).writeVarint(payload.size()).write(payload);
+    payload.reset();
+  }
+
+  /**
+   * Asks for everything appended so far to be written out soon. Without a
+   * flusher thread this writes the batch now; with one the batch goes out
+   * within the flush latency and this returns immediately.
+   */
+  synchronized void requestFlush() throws IOException {
+    if (flusher == null) {
+      writeBatchInline();
+    }
+  }
+
+  /** Blocks until the record with {@code ticket} has been written to the file. */
+  synchronized void awaitDurable(long ticket) throws IOException {
+    while (durable < ticket) {
+      if (failure != null) {
+        throw failure;
+      }
+      if (flusher == null) {
+        writeBatchInline();
+      } else {
+        waitForFlusher();
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /** Writes everything appended so far and blocks until it is on disk. */
+  synchronized void flush() throws IOException {
+    flushNow = true;
+    notifyAll();
+    awaitDurable(appended);
+  }
+
+  /** Returns the number of batches written so far. */
+  synchronized long getBatchCount() {
+    return batchCount;
+  }
+
+  /** Returns the number of records appended so far. */
+  synchronized long getRecordCount() {
+    return appended;
+  }
+
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+    if (flusher != null) {
+      boolean interrupted = false;
+      while (flusher.isAlive()) {
+        try {
+          flusher.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      try {
+        writeBatchInline();
+      } finally {
+        fileOut.close();
+      }
+    }
+  }
+
+  private long appended() {
+    long ticket = ++appended;
+    if (flusher != null) {
+      if (pending.size() >= MAX_BATCH_BYTES) {
+        flushNow = true;
+      }
+      notifyAll();
+    } else if (pending.size() >= MAX_BATCH_BYTES) {
+      try {
+        writeBatchInline();
+      } catch (IOException e) {
+        // Remembered in failure and reported by the next await or append.
+      }
+    }
+    return ticket;
+  }
+
+  private void checkWritable() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    if (closed) {
+      throw new IOException("journal is closed");
+    }
+  }
+
+  /** Writes the pending batch on the calling thread. Call while holding this. */
+  private void writeBatchInline() throws IOException {
+    if (pending.size() == 0) {
+      durable = appended;
+      return;
+    }
+    try {
+      writeOut(pending);
+      durable = appended;
+      batchCount++;
+    } catch (IOException e) {
+      failure = e;
+      throw e;
+    } finally {
+      pending.reset();
+    }
+  }
+
+  private void writeOut(RecordBuffer batch) throws IOException {
+    fileOut.write(batch.data, 0, batch.size);
+    if (sync) {
+      fileOut.getFD().sync();
+    }
+  }
+
+  private void waitForFlusher() throws IOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("interrupted waiting for the journal");
+    }
+  }
+
+  private void runFlusher() {
+    while (true) {
+      RecordBuffer batch;
+      long batchEnd;
+      synchronized (this) {
+        try {
+          while (pending.size() == 0 && !closed) {
+            wait();
+          }
+          if (pending.size() == 0) {
+            return; // Closed and drained.
+          }
+          long deadline = System.currentTimeMillis() + flushLatencyMillis;
+          long remaining = flushLatencyMillis;
+          while (!flushNow && !closed && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+        flushNow = false;
+        batch = pending;
+        batchEnd = appended;
+        pending = spare;
+      }
+
+      IOException error = null;
+      try {
+        writeOut(batch);
+      } catch (IOException e) {
+        error = e;
+      }
+
+      synchronized (this) {
+        batch.reset();
+        spare = batch;
+        if (error != null) {
+          failure = error;
+        } else {
+          durable = batchEnd;
+          batchCount++;
+        }
+        notifyAll();
+        if (error != null) {
+          return;
+        }
+      }
+    }
+  }
+
+  /** A growable byte array that records are encoded into. Not thread safe. */
+  static final class RecordBuffer {
+    byte[] data = new byte[256];
+    int size;
+
+    int size() {
+      return size;
+    }
+
+    void reset() {
+      size = 0;
+    }
+
+    RecordBuffer writeByte(int b) {
+      ensureCapacity(1);
+      data[size++] = (byte) b;
+      return this;
+    }
+
+    RecordBuffer write(byte[] bytes) {
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, data, size, bytes.length);
+      size += bytes.length;
+      return this;
+    }
+
+    RecordBuffer write(RecordBuffer other) {
+      ensureCapacity(other.size);
+      System.arraycopy(other.data, 0, data, size, other.size);
+      size += other.size;
+      return this;
+    }
+
+    /** Writes {@code s}, which must contain only ASCII characters. */
+    RecordBuffer writeAscii(String s) {
+      int length = s.length();
+      ensureCapacity(length);
+      for (int i = 0; i < length; i++) {
+        data[size++] = (byte) s.charAt(i);
+      }
+      return this;
+    }
+
+    RecordBuffer writeDecimal(long value) {
+      return writeAscii(Long.toString(value));
+    }
+
+    /** Writes a non-negative value as an unsigned LEB128 varint. */
+    RecordBuffer writeVarint(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        data[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      data[size++] = (byte) value;
+      return this;
+    }
+
+    private void ensureCapacity(int extra) {
+      if (size + extra > data.length) {
+        byte[] grown = new byte[Math.max(data.length * 2, size + extra)];
+        System.arraycopy(data, 0, grown, 0, size);
+        data = grown;
+      }
+    }
+  }
+}
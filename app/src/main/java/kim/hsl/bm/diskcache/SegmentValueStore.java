@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kim.hsl.bm.diskcache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Packs values into large append-only segment files named "segment.N.log".
+ * A cache of many small values then needs a handful of files instead of one
+ * per value, a read is a positional read on a file that is already open, and
+ * a commit is an append instead of a create and a rename.
+ *
+ * <p>Drafts are buffered in memory and appended to the active segment when
+ * they are committed; once the active segment would grow past the segment
+ * size a new one is started. A value's location is its segment id shifted
+ * left by {@link #OFFSET_BITS}, ORed with its offset in that segment.
+ *
+ * <p>Replacing or deleting a value leaves its old bytes behind as garbage.
+ * When at least half of an inactive segment is garbage, the cache's cleanup
+ * thread relocates the segment's live values into the active segment and the
+ * segment is deleted as soon as no reader still uses it.
+ *
+ * <p>Segments hold nothing but value bytes: which bytes are live is known
+ * only from the journal. Bytes appended by a commit whose journal record was
+ * lost are counted as garbage when the cache is next opened.
+ */
+final class SegmentValueStore implements CompactingValueStore {
+  static final String SEGMENT_PREFIX = "segment.";
+  static final String SEGMENT_SUFFIX = ".log";
+  static final int OFFSET_BITS = 40;
+  private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+  private final File directory;
+  private final long segmentSize;
+
+  // All fields below are guarded by this.
+  private final HashMap<Integer, Segment> segments = new HashMap<Integer, Segment>();
+  private final HashMap<String, Draft> drafts = new HashMap<String, Draft>();
+  private Segment active;
+  private int nextSegmentId;
+  /** True if a segment may have crossed the compaction threshold since the last check. */
+  private boolean compactionPending;
+  private boolean closed;
+
+  /** Opens the store in {@code directory}, picking up segments already there. */
+  SegmentValueStore(File directory, long segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+        continue;
+      }
+      int id;
+      try {
+        id = Integer.parseInt(
+            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      Segment segment = new Segment(id, file);
+      segment.size = file.length();
+      segments.put(id, segment);
+      nextSegmentId = Math.max(nextSegmentId, id + 1);
+    }
+  }
+
+  @Override public boolean hasLocations() {
+    return true;
+  }
+
+  @Override public synchronized OutputStream newDraft(String key, int index) {
+    Draft draft = new Draft();
+    drafts.put(draftKey(key, index), draft);
+    return draft;
+  }
+
+  @Override public synchronized boolean hasDraft(String key, int index) {
+    return drafts.containsKey(draftKey(key, index));
+  }
+
+  @Override public synchronized void commit(String key, int index, long[] locations,
+      long[] lengths) throws IOException {
+    Draft draft = drafts.remove(draftKey(key, index));
+    if (draft == null) {
+      return;
+    }
+    long location = draft.size() == 0 ? 0 : append(draft.data(), draft.size());
+    release(locations[index], lengths[index]);
+    locations[index] = location;
+    lengths[index] = draft.size();
+  }
+
+  @Override public synchronized void abort(String key, int index) {
+    drafts.remove(draftKey(key, index));
+  }
+
+  @Override public synchronized boolean exists(String key, int index, long location,
+      long length) {
+    if (length == 0) {
+      return true;
+    }
+    Segment segment = segments.get(segmentOf(location));
+    return segment != null && (location & OFFSET_MASK) + length <= segment.size;
+  }
+
+  @Override public synchronized Handle open(String key, int index, long location, long length) {
+    if (length == 0) {
+      return new SegmentHandle(null, 0, 0);
+    }
+    Segment segment = segments.get(segmentOf(location));
+    if (segment == null || (location & OFFSET_MASK) + length > segment.size) {
+      return null;
+    }
+    segment.readers++;
+    return new SegmentHandle(segment, location & OFFSET_MASK, length);
+  }
+
+  @Override public synchronized void delete(String key, int index, long location, long length) {
+    release(location, length);
+  }
+
+  @Override public int purgeDeleted() {
+    return 0; // Deleted values are garbage until their segment is compacted.
+  }
+
+  @Override public int pendingDeleteCount() {
+    return 0;
+  }
+
+  @Override public synchronized boolean recover(String key, int index, long location,
+      long length) {
+    if (length == 0) {
+      return true;
+    }
+    Segment segment = segments.get(segmentOf(location));
+    if (segment == null || (location & OFFSET_MASK) + length > segment.size) {
+      return false;
+    }
+    segment.live += length;
+    return true;
+  }
+
+  @Override public synchronized void recoveryFinished() throws IOException {
+    for (Segment segment : new ArrayList<Segment>(segments.values())) {
+      if (segment.live == 0) {
+        deleteSegment(segment);
+      }
+    }
+    compactionPending = true;
+  }
+
+  @Override public synchronized int segmentToCompact() {
+    if (!compactionPending) {
+      return -1;
+    }
+    Segment best = null;
+    for (Segment segment : segments.values()) {
+      if (segment != active && !segment.compacted && isMostlyGarbage(segment)
+          && (best == null || segment.size - segment.live > best.size - best.live)) {
+        best = segment;
+      }
+    }
+    if (best == null) {
+      compactionPending = false;
+      return -1;
+    }
+    return best.id;
+  }
+
+  @Override public int segmentOf(long location) {
+    return (int) (location >>> OFFSET_BITS);
+  }
+
+  @Override public synchronized long relocate(long location, long length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    Segment segment = segments.get(segmentOf(location));
+    byte[] data = new byte[(int) length];
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    long position = location & OFFSET_MASK;
+    while (buffer.hasRemaining()) {
+      if (channel(segment).read(buffer, position + buffer.position()) == -1) {
+        throw new IOException("truncated segment " + segment.file);
+      }
+    }
+    long newLocation = append(data, data.length);
+    segment.live -= length;
+    return newLocation;
+  }
+
+  @Override public synchronized void compacted(int id) throws IOException {
+    Segment segment = segments.get(id);
+    if (segment == null) {
+      return;
+    }
+    segment.compacted = true;
+    if (segment.readers == 0) {
+      deleteSegment(segment);
+    }
+  }
+
+  @Override public synchronized void close() throws IOException {
+    closed = true;
+    drafts.clear();
+    for (Segment segment : segments.values()) {
+      if (segment.readers == 0) {
+        closeChannel(segment);
+      }
+    }
+  }
+
+  /** Returns the number of segment files, for tests. */
+  synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /** Appends {@code data} to the active segment and returns its location. */
+  private long append(byte[] data, int count) throws IOException {
+    Segment segment = active;
+    if (segment == null || (segment.size > 0 && segment.size + count > segmentSize)) {
+      if (segment != null && isMostlyGarbage(segment)) {
+        compactionPending = true;
+      }
+      int id = nextSegmentId++;
+      directory.mkdirs();
+      segment = new Segment(id, new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+      segments.put(id, segment);
+      active = segment;
+    }
+    long position = segment.size;
+    FileChannel channel = channel(segment);
+    ByteBuffer buffer = ByteBuffer.wrap(data, 0, count);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+    segment.size += count;
+    segment.live += count;
+    return ((long) segment.id << OFFSET_BITS) | position;
+  }
+
+  /** Marks a value's bytes as garbage. */
+  private void release(long location, long length) {
+    if (length == 0) {
+      return;
+    }
+    Segment segment = segments.get(segmentOf(location));
+    if (segment != null) {
+      segment.live -= length;
+      if (segment != active && isMostlyGarbage(segment)) {
+        compactionPending = true;
+      }
+    }
+  }
+
+  private static boolean isMostlyGarbage(Segment segment) {
+    return segment.size > 0 && (segment.size - segment.live) * 2 >= segment.size;
+  }
+
+  /** Called when a reader of {@code segment} is closed. */
+  private synchronized void readerClosed(Segment segment) throws IOException {
+    if (--segment.readers > 0) {
+      return;
+    }
+    if (segment.compacted) {
+      deleteSegment(segment);
+    } else if (closed) {
+      closeChannel(segment);
+    }
+  }
+
+  private void deleteSegment(Segment segment) throws IOException {
+    closeChannel(segment);
+    segments.remove(segment.id);
+    if (segment.file.exists() && !segment.file.delete()) {
+      throw new IOException("failed to delete " + segment.file);
+    }
+  }
+
+  private static void closeChannel(Segment segment) {
+    if (segment.channel != null) {
+      Util.closeQuietly(segment.channel);
+      segment.channel = null;
+    }
+  }
+
+  /**
+   * Returns the open channel of {@code segment}. A channel is shared by all
+   * readers, and a reader that is interrupted mid-read closes it for all of
+   * them, so a closed channel is simply opened again.
+   */
+  private FileChannel channel(Segment segment) throws IOException {
+    FileChannel channel = segment.channel;
+    if (channel == null || !channel.isOpen()) {
+      synchronized (this) {
+        channel = segment.channel;
+        if (channel == null || !channel.isOpen()) {
+          channel = new RandomAccessFile(segment.file, "rw").getChannel();
+          segment.channel = channel;
+        }
+      }
+    }
+    return channel;
+  }
+
+  private static String draftKey(String key, int index) {
+    return key + "." + index;
+  }
+
+  private static final class Segment {
+    final int id;
+    final File file;
+
+    // Guarded by the store, except that reads of channel may race with a reopen.
+    volatile FileChannel channel;
+    /** The number of bytes appended. */
+    long size;
+    /** The number of those bytes that belong to committed values. */
+    long live;
+    /** The number of open streams reading from this segment. */
+    int readers;
+    /** True once every live value was relocated; the file goes when readers drops to 0. */
+    boolean compacted;
+
+    Segment(int id, File file) {
+      this.id = id;
+      this.file = file;
+    }
+  }
+
+  /** A draft buffered in memory until it is committed. */
+  private static final class Draft extends ByteArrayOutputStream {
+    byte[] data() {
+      return buf;
+    }
+  }
+
+  /** A value in a segment, read with positional reads on the segment's shared channel. */
+  private final class SegmentHandle extends Handle {
+    private final Segment segment;
+    private boolean closed;
+
+    SegmentHandle(Segment segment, long offset, long length) {
+      super(offset, length);
+      this.segment = segment;
+    }
+
+    @Override FileChannel channel() throws IOException {
+      if (closed) {
+        throw new IOException("closed");
+      }
+      return SegmentValueStore.this.channel(segment);
+    }
+
+    @Override public void close() throws IOException {
+      synchronized (SegmentValueStore.this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        if (segment != null) {
+          readerClosed(segment);
+        }
+      }
+    }
+  }
+}
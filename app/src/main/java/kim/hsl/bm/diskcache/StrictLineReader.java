@@ -22,6 +22,8 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 
 /**
@@ -41,6 +43,10 @@ import java.nio.charset.Charset;
  * and 10, respectively, and the representation of no other character contains these values.
  * We currently check in constructor that the charset is one of US-ASCII, UTF-8 and ISO-8859-1.
  * The default charset is US_ASCII.
+ *
+ * <p>A reader constructed from a {@link FileChannel} memory-maps the file and scans for line ends
+ * directly in the mapping. In that mode {@link #readLine(Line)} hands back each line as a reusable
+ * {@link Line} view with pre-split tokens, so a caller can parse lines without allocating.
  */
 class StrictLineReader implements Closeable {
   private static final byte CR = (byte) '\r';
@@ -48,6 +54,11 @@ class StrictLineReader implements Closeable {
 
   private final InputStream in;
   private final Charset charset;
+  private final Object lock;
+
+  /** The mapped file in NIO mode, or null when reading from {@code in}. */
+  private final FileChannel channel;
+  private ByteBuffer mapped;
 
   /*
    * Buffered data is stored in {@code buf}. As long as no exception occurs, 0 <= pos <= end
@@ -96,9 +107,36 @@ class StrictLineReader implements Closeable {
 
     this.in = in;
     this.charset = charset;
+    this.lock = in;
+    this.channel = null;
     buf = new byte[capacity];
   }
 
+  /**
+   * Constructs a new {@code LineReader} that memory-maps the whole of {@code channel}.
+   * Closing the reader closes the channel.
+   *
+   * @param channel the channel to map, positioned anywhere; it is read from the start.
+   * @param charset the charset used to decode data. Only US-ASCII is supported.
+   * @throws NullPointerException if {@code channel} or {@code charset} is null.
+   * @throws IllegalArgumentException if the specified charset is not supported.
+   * @throws IOException if the channel cannot be mapped.
+   */
+  public StrictLineReader(FileChannel channel, Charset charset) throws IOException {
+    if (channel == null || charset == null) {
+      throw new NullPointerException();
+    }
+    if (!(charset.equals(Util.US_ASCII))) {
+      throw new IllegalArgumentException("Unsupported encoding");
+    }
+
+    this.in = null;
+    this.charset = charset;
+    this.lock = this;
+    this.channel = channel;
+    this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+  }
+
   /**
    * Closes the reader by closing the underlying {@code InputStream} and
    * marking this reader as closed.
@@ -106,8 +144,13 @@ class StrictLineReader implements Closeable {
    * @throws IOException for errors when closing the underlying {@code InputStream}.
    */
   public void close() throws IOException {
-    synchronized (in) {
-      if (buf != null) {
+    synchronized (lock) {
+      if (channel != null) {
+        if (mapped != null) {
+          mapped = null;
+          channel.close();
+        }
+      } else if (buf != null) {
         buf = null;
         in.close();
       }
@@ -123,6 +166,13 @@ class StrictLineReader implements Closeable {
    * @throws EOFException for the end of source stream.
    */
   public String readLine() throws IOException {
+    if (channel != null) {
+      synchronized (lock) {
+        Line line = new Line();
+        readLine(line);
+        return line.toString();
+      }
+    }
     synchronized (in) {
       if (buf == null) {
         throw new IOException("LineReader is closed");
@@ -176,6 +226,40 @@ class StrictLineReader implements Closeable {
     }
   }
 
+  /**
+   * Reads the next line into {@code line}, replacing its previous contents. A line ends with
+   * {@code "\n"} or {@code "\r\n"}, this end of line marker is not included in the result.
+   * Only supported by readers constructed from a {@link FileChannel}.
+   *
+   * @throws IOException if the reader is closed.
+   * @throws EOFException for the end of the mapped file, including an unterminated last line.
+   * @throws UnsupportedOperationException if this reader reads from an {@code InputStream}.
+   */
+  public void readLine(Line line) throws IOException {
+    if (channel == null) {
+      throw new UnsupportedOperationException("Line views need a mapped FileChannel");
+    }
+    synchronized (lock) {
+      ByteBuffer buffer = mapped;
+      if (buffer == null) {
+        throw new IOException("LineReader is closed");
+      }
+      int start = buffer.position();
+      int limit = buffer.limit();
+      for (int i = start; i < limit; i++) {
+        if (buffer.get(i) == LF) {
+          int lineEnd = (i != start && buffer.get(i - 1) == CR) ? i - 1 : i;
+          line.set(buffer, start, lineEnd);
+          buffer.position(i + 1);
+          return;
+        }
+      }
+      // An unterminated line at end of input is ignored, as in stream mode.
+      buffer.position(limit);
+      throw new EOFException();
+    }
+  }
+
   /**
    * Reads new input data into the buffer. Call only with pos == end or end == -1,
    * depending on the desired outcome if the function throws.
@@ -188,5 +272,136 @@ class StrictLineReader implements Closeable {
     pos = 0;
     end = result;
   }
-}
 
+  /**
+   * A reusable view of one US-ASCII line of a mapped file, split into tokens at every space.
+   * The view is only valid until it is passed to {@link #readLine(Line)} again.
+   */
+  static final class Line implements CharSequence {
+    private static final byte SPACE = (byte) ' ';
+
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+    private int tokenCount;
+    private int[] tokenStarts = new int[8];
+    private int[] tokenEnds = new int[8];
+
+    void set(ByteBuffer buffer, int start, int end) {
+      this.buffer = buffer;
+      this.start = start;
+      this.end = end;
+      tokenCount = 0;
+      int tokenStart = start;
+      for (int i = start; i < end; i++) {
+        if (buffer.get(i) == SPACE) {
+          addToken(tokenStart, i);
+          tokenStart = i + 1;
+        }
+      }
+      addToken(tokenStart, end);
+    }
+
+    private void addToken(int tokenStart, int tokenEnd) {
+      if (tokenCount == tokenStarts.length) {
+        int[] starts = new int[tokenCount * 2];
+        int[] ends = new int[tokenCount * 2];
+        System.arraycopy(tokenStarts, 0, starts, 0, tokenCount);
+        System.arraycopy(tokenEnds, 0, ends, 0, tokenCount);
+        tokenStarts = starts;
+        tokenEnds = ends;
+      }
+      tokenStarts[tokenCount] = tokenStart;
+      tokenEnds[tokenCount] = tokenEnd;
+      tokenCount++;
+    }
+
+    /** Returns the number of space-separated tokens, at least 1. */
+    int tokenCount() {
+      return tokenCount;
+    }
+
+    /** Returns the length of {@code token} in bytes. */
+    int tokenLength(int token) {
+      return tokenEnds[token] - tokenStarts[token];
+    }
+
+    /** Returns true if {@code token} consists of exactly the characters of {@code s}. */
+    boolean tokenEquals(int token, String s) {
+      int tokenStart = tokenStarts[token];
+      int length = tokenEnds[token] - tokenStart;
+      if (length != s.length()) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (buffer.get(tokenStart + i) != s.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Returns the hash code of {@code token} as a string, computed like {@link String#hashCode}. */
+    int tokenHashCode(int token) {
+      int hash = 0;
+      for (int i = tokenStarts[token], tokenEnd = tokenEnds[token]; i < tokenEnd; i++) {
+        hash = 31 * hash + (buffer.get(i) & 0xff);
+      }
+      return hash;
+    }
+
+    /** Returns {@code token} as a new string. */
+    String tokenString(int token) {
+      return subSequence(tokenStarts[token] - start, tokenEnds[token] - start).toString();
+    }
+
+    /**
+     * Parses {@code token} as a decimal {@code long}, like {@link Long#parseLong(String)} but
+     * without allocating for values of up to 18 digits.
+     *
+     * @throws NumberFormatException if the token is not a decimal number.
+     */
+    long tokenLong(int token) {
+      int i = tokenStarts[token];
+      int tokenEnd = tokenEnds[token];
+      boolean negative = i < tokenEnd && buffer.get(i) == '-';
+      if (negative) {
+        i++;
+      }
+      int digits = tokenEnd - i;
+      if (digits <= 0 || digits > 18) {
+        // Empty, or long enough to overflow; let the JDK produce the right answer or error.
+        return Long.parseLong(tokenString(token));
+      }
+      long result = 0;
+      for (; i < tokenEnd; i++) {
+        int digit = buffer.get(i) - '0';
+        if (digit < 0 || digit > 9) {
+          throw new NumberFormatException("For input string: \"" + tokenString(token) + "\"");
+        }
+        result = result * 10 + digit;
+      }
+      return negative ? -result : result;
+    }
+
+    @Override public int length() {
+      return end - start;
+    }
+
+    @Override public char charAt(int index) {
+      return (char) (buffer.get(start + index) & 0xff);
+    }
+
+    @Override public CharSequence subSequence(int from, int to) {
+      byte[] bytes = new byte[to - from];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = buffer.get(start + from + i);
+      }
+      return new String(bytes, Util.US_ASCII);
+    }
+
+    @Override public String toString() {
+      return subSequence(0, length()).toString();
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kim.hsl.bm.diskcache;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Replays the text journal described in {@link DiskLruCache}, passing each
+ * record to the same {@link BinaryJournal.Handler} used for binary journals.
+ *
+ * <p>Lines are tokenized in place in the memory-mapped file. Ops are matched
+ * and lengths parsed straight from the ASCII bytes, and a key is only turned
+ * into a {@code String} the first time it appears; later records for the
+ * same key get the existing instance back. Replaying a record for a known key
+ * therefore allocates nothing.
+ */
+final class TextJournal {
+  private static final String CLEAN = JournalWriter.CLEAN;
+  private static final String DIRTY = JournalWriter.DIRTY;
+  private static final String REMOVE = JournalWriter.REMOVE;
+  private static final String READ = JournalWriter.READ;
+
+  private TextJournal() {
+  }
+
+  /**
+   * Replays the journal in {@code file} and returns the number of records read.
+   * An unterminated last line is ignored.
+   *
+   * @throws IOException if the header does not match or a line is malformed.
+   */
+  static int read(File file, int appVersion, int valueCount, BinaryJournal.Handler handler)
+      throws IOException {
+    StrictLineReader reader =
+        new StrictLineReader(new FileInputStream(file).getChannel(), Util.US_ASCII);
+    try {
+      String magic = reader.readLine();
+      String version = reader.readLine();
+      String appVersionString = reader.readLine();
+      String valueCountString = reader.readLine();
+      String blank = reader.readLine();
+      if (!DiskLruCache.MAGIC.equals(magic)
+          || !DiskLruCache.VERSION_1.equals(version)
+          || !Integer.toString(appVersion).equals(appVersionString)
+          || !Integer.toString(valueCount).equals(valueCountString)
+          || !"".equals(blank)) {
+        throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
+            + valueCountString + ", " + blank + "]");
+      }
+
+      StrictLineReader.Line line = new StrictLineReader.Line();
+      KeyTable keys = new KeyTable();
+      long[] lengths = new long[valueCount];
+      long[] locations = new long[valueCount];
+      int lineCount = 0;
+      while (true) {
+        try {
+          reader.readLine(line);
+        } catch (EOFException endOfJournal) {
+          break;
+        }
+        readLine(line, keys, lengths, locations, handler);
+        lineCount++;
+      }
+      return lineCount;
+    } finally {
+      Util.closeQuietly(reader);
+    }
+  }
+
+  private static void readLine(StrictLineReader.Line line, KeyTable keys, long[] lengths,
+      long[] locations, BinaryJournal.Handler handler) throws IOException {
+    int tokenCount = line.tokenCount();
+    if (tokenCount == 2) {
+      String key = keys.get(line, 1);
+      if (line.tokenEquals(0, READ)) {
+        handler.onRead(key);
+      } else if (line.tokenEquals(0, DIRTY)) {
+        handler.onDirty(key);
+      } else if (line.tokenEquals(0, REMOVE)) {
+        handler.onRemove(key);
+      } else {
+        throw new IOException("unexpected journal line: " + line);
+      }
+    } else if ((tokenCount == lengths.length + 2 || tokenCount == lengths.length * 2 + 2)
+        && line.tokenEquals(0, CLEAN)) {
+      // Caches that use a SegmentValueStore follow the lengths with one location per value.
+      boolean hasLocations = tokenCount != lengths.length + 2;
+      try {
+        for (int i = 0; i < lengths.length; i++) {
+          lengths[i] = line.tokenLong(i + 2);
+          if (hasLocations) {
+            locations[i] = line.tokenLong(i + 2 + lengths.length);
+          }
+        }
+      } catch (NumberFormatException e) {
+        throw new IOException("unexpected journal line: " + line);
+      }
+      handler.onClean(keys.get(line, 1), lengths, hasLocations ? locations : null);
+    } else {
+      throw new IOException("unexpected journal line: " + line);
+    }
+  }
+
+  /**
+   * An open-addressed set of the keys seen so far, looked up by the bytes of
+   * a token so that a key already seen needs no new {@code String}.
+   */
+  private static final class KeyTable {
+    private String[] keys = new String[1024];
+    private int size;
+
+    String get(StrictLineReader.Line line, int token) {
+      int hash = line.tokenHashCode(token);
+      int mask = keys.length - 1;
+      for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+        String key = keys[i];
+        if (key == null) {
+          key = line.tokenString(token);
+          keys[i] = key;
+          if (++size * 2 > keys.length) {
+            grow();
+          }
+          return key;
+        }
+        if (key.hashCode() == hash && line.tokenEquals(token, key)) {
+          return key;
+        }
+      }
+    }
+
+    private void grow() {
+      String[] old = keys;
+      keys = new String[old.length * 2];
+      int mask = keys.length - 1;
+      for (String key : old) {
+        if (key != null) {
+          int i = spread(key.hashCode()) & mask;
+          while (keys[i] != null) {
+            i = (i + 1) & mask;
+          }
+          keys[i] = key;
+        }
+      }
+    }
+
+    private static int spread(int hash) {
+      hash ^= (hash >>> 20) ^ (hash >>> 12);
+      return hash ^ (hash >>> 7) ^ (hash >>> 4);
+    }
+  }
+}
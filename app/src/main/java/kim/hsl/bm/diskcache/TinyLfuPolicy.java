@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kim.hsl.bm.diskcache;
+
+/**
+ * A size-aware W-TinyLFU eviction policy for {@link DiskLruCache}.
+ *
+ * <p>New entries enter a small LRU window holding 1% of the maximum weight.
+ * Entries pushed out of the window are candidates for the main space, a
+ * segmented LRU made of a probation segment and a protected segment holding
+ * up to 80% of the main space. Entries in probation that are used again move
+ * to protected; the least recently used protected entries fall back to
+ * probation.
+ *
+ * <p>While the main space has room, entries leave the window for probation
+ * freely. Once it is full, a candidate is admitted only if a {@link
+ * FrequencySketch} says it was used more often than the probation entries
+ * that would have to go to make room for it. The frequencies of all those
+ * entries are added up, so one large value cannot displace many small
+ * popular ones. A candidate that is not admitted is evicted itself, which
+ * keeps a one-off scan over many keys from flushing the popular ones.
+ *
+ * <p>Weights are in bytes. All methods are synchronized; never call the
+ * policy while it could call back into the cache, and never take a cache
+ * lock while holding it.
+ */
+final class TinyLfuPolicy {
+  static final int WINDOW = 0;
+  static final int PROBATION = 1;
+  static final int PROTECTED = 2;
+
+  /** A policy entry, kept by the cache entry it stands for. */
+  static final class Node {
+    final String key;
+    long weight;
+    int queue = -1;
+    Node prev;
+    Node next;
+
+    Node(String key, long weight) {
+      this.key = key;
+      this.weight = weight;
+    }
+  }
+
+  private final Queue[] queues = {new Queue(), new Queue(), new Queue()};
+  private final FrequencySketch sketch = new FrequencySketch();
+  private long windowMaximum;
+  private long mainMaximum;
+  private long protectedMaximum;
+  private int size;
+
+  TinyLfuPolicy(long maximumWeight) {
+    setMaximumWeight(maximumWeight);
+  }
+
+  synchronized void setMaximumWeight(long maximumWeight) {
+    windowMaximum = Math.max(1, maximumWeight / 100);
+    mainMaximum = maximumWeight - windowMaximum;
+    protectedMaximum = mainMaximum / 100 * 80;
+    demoteProtected();
+    drainWindow();
+  }
+
+  /** Returns the number of entries in the policy. */
+  synchronized int size() {
+    return size;
+  }
+
+  /** Records a lookup of a key that is not in the cache. */
+  synchronized void recordMiss(String key) {
+    sketch.increment(key.hashCode());
+  }
+
+  /** Adds a newly published entry to the window. */
+  synchronized Node add(String key, long weight) {
+    sketch.increment(key.hashCode());
+    Node node = new Node(key, weight);
+    queues[WINDOW].addLast(node, WINDOW);
+    added();
+    drainWindow();
+    return node;
+  }
+
+  /**
+   * Adds an entry restored when the cache is opened. Nothing is known about
+   * its frequency, so it starts on probation; add entries least recently used
+   * first.
+   */
+  synchronized Node load(String key, long weight) {
+    Node node = new Node(key, weight);
+    queues[PROBATION].addLast(node, PROBATION);
+    added();
+    return node;
+  }
+
+  private void added() {
+    if (++size > sketch.capacity()) {
+      sketch.ensureCapacity(size * 2);
+    }
+  }
+
+  /** Records a use of an entry. */
+  synchronized void recordAccess(Node node) {
+    sketch.increment(node.key.hashCode());
+    if (node.queue == PROBATION) {
+      queues[PROBATION].remove(node);
+      queues[PROTECTED].addLast(node, PROTECTED);
+      demoteProtected();
+    } else if (node.queue != -1) {
+      queues[node.queue].moveToLast(node);
+    }
+  }
+
+  /** Updates the weight of an entry whose values were replaced. */
+  synchronized void setWeight(Node node, long weight) {
+    if (node.queue != -1) {
+      queues[node.queue].weight += weight - node.weight;
+    }
+    node.weight = weight;
+    demoteProtected();
+    drainWindow();
+  }
+
+  synchronized void remove(Node node) {
+    if (node.queue != -1) {
+      queues[node.queue].remove(node);
+      size--;
+    }
+  }
+
+  /** Moves an entry that could not be evicted to the back of its queue. */
+  synchronized void requeue(Node node) {
+    if (node.queue != -1) {
+      queues[node.queue].moveToLast(node);
+    }
+  }
+
+  /**
+   * Returns the entry to evict next, or null if the policy is empty. The
+   * caller evicts it and calls {@link #remove}, repeating while the cache is
+   * over its maximum size.
+   */
+  synchronized Node victim() {
+    drainWindow();
+    Queue window = queues[WINDOW];
+    Queue probation = queues[PROBATION];
+    if (window.weight > windowMaximum && window.first() != null) {
+      Node candidate = window.first();
+      if (probation.first() == null && queues[PROTECTED].first() != null) {
+        Node demoted = queues[PROTECTED].first();
+        queues[PROTECTED].remove(demoted);
+        probation.addLast(demoted, PROBATION);
+      }
+      if (probation.first() == null) {
+        return candidate; // The main space is empty.
+      }
+      if (admit(candidate)) {
+        window.remove(candidate);
+        probation.addLast(candidate, PROBATION);
+        return probation.first();
+      }
+      return candidate;
+    }
+    for (Queue queue : new Queue[] {probation, queues[PROTECTED], window}) {
+      if (queue.first() != null) {
+        return queue.first();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if {@code candidate} was used more often than the probation
+   * entries it would displace together.
+   */
+  private boolean admit(Node candidate) {
+    int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+    int victimFrequency = 0;
+    long freed = 0;
+    for (Node victim = queues[PROBATION].first(); victim != null && freed < candidate.weight;
+        victim = queues[PROBATION].after(victim)) {
+      freed += victim.weight;
+      victimFrequency += sketch.frequency(victim.key.hashCode());
+      if (victimFrequency >= candidateFrequency) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Moves entries past the window's share into the main space while it has room. */
+  private void drainWindow() {
+    Queue window = queues[WINDOW];
+    Node first;
+    while (window.weight > windowMaximum && (first = window.first()) != null
+        && queues[PROBATION].weight + queues[PROTECTED].weight + first.weight <= mainMaximum) {
+      window.remove(first);
+      queues[PROBATION].addLast(first, PROBATION);
+    }
+  }
+
+  private void demoteProtected() {
+    Queue protectedQueue = queues[PROTECTED];
+    while (protectedQueue.weight > protectedMaximum && protectedQueue.first() != null) {
+      Node demoted = protectedQueue.first();
+      protectedQueue.remove(demoted);
+      queues[PROBATION].addLast(demoted, PROBATION);
+    }
+  }
+
+  /** A doubly linked list of nodes, least recently used first, and their total weight. */
+  private static final class Queue {
+    private final Node sentinel = new Node(null, 0);
+    long weight;
+
+    Queue() {
+      sentinel.prev = sentinel;
+      sentinel.next = sentinel;
+    }
+
+    Node first() {
+      return sentinel.next != sentinel ? sentinel.next : null;
+    }
+
+    Node after(Node node) {
+      return node.next != sentinel ? node.next : null;
+    }
+
+    void addLast(Node node, int queue) {
+      node.prev = sentinel.prev;
+      node.next = sentinel;
+      sentinel.prev.next = node;
+      sentinel.prev = node;
+      node.queue = queue;
+      weight += node.weight;
+    }
+
+    void remove(Node node) {
+      node.prev.next = node.next;
+      node.next.prev = node.prev;
+      node.prev = null;
+      node.next = null;
+      weight -= node.weight;
+      node.queue = -1;
+    }
+
+    void moveToLast(Node node) {
+      int queue = node.queue;
+      remove(node);
+      addLast(node, queue);
+    }
+  }
+}
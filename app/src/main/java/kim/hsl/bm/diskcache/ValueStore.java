@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kim.hsl.bm.diskcache;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where a {@link DiskLruCache} keeps the bytes of its values. A value is
+ * named by its entry's key and its index. Stores that pack values together
+ * also give each committed value a location, which the cache keeps in its
+ * index and journal and passes back whenever the value is used.
+ *
+ * <p>An edit writes a draft of each value it changes. Committing the draft
+ * makes it the value that readers see; aborting it throws it away. The cache
+ * serializes all calls for one key, so a store only has to guard state that
+ * is shared between keys.
+ */
+interface ValueStore extends Closeable {
+  /** Returns true if committed values have locations that must be journaled. */
+  boolean hasLocations();
+
+  /** Returns a stream that writes a new draft for the value at {@code index}. */
+  OutputStream newDraft(String key, int index) throws FileNotFoundException;
+
+  /** Returns true if a draft was written for the value at {@code index}. */
+  boolean hasDraft(String key, int index);
+
+  /**
+   * Publishes the draft for the value at {@code index}, replacing the value
+   * described by {@code locations[index]} and {@code lengths[index]}, and
+   * stores the new value's location and length there. {@code locations} is
+   * null unless this store {@link #hasLocations has locations}.
+   */
+  void commit(String key, int index, long[] locations, long[] lengths) throws IOException;
+
+  /** Discards the draft for the value at {@code index}, if any. */
+  void abort(String key, int index) throws IOException;
+
+  /** Returns true if a committed value is still present. */
+  boolean exists(String key, int index, long location, long length);
+
+  /**
+   * Opens a committed value, or returns null if it has gone missing. The
+   * value stays readable through the handle until it is closed, even if it
+   * is replaced or deleted in the meantime.
+   */
+  Handle open(String key, int index, long location, long length) throws IOException;
+
+  /**
+   * Deletes a committed value. A store may only make the value unreachable
+   * here and free its space later, in {@link #purgeDeleted}.
+   */
+  void delete(String key, int index, long location, long length) throws IOException;
+
+  /**
+   * Frees the space of values whose deletion was deferred and returns how
+   * many there were. The cache calls this without holding any entry lock.
+   */
+  int purgeDeleted() throws IOException;
+
+  /** Returns the number of deleted values whose space is not yet freed. */
+  int pendingDeleteCount();
+
+  /**
+   * Called while the cache is opened for each value its journal says is
+   * committed. Returns false if the value is missing, in which case the
+   * cache drops the entry.
+   */
+  boolean recover(String key, int index, long location, long length);
+
+  /** Called once every committed value was passed to {@link #recover}. */
+  void recoveryFinished() throws IOException;
+
+  /**
+   * A committed value held open for reading: {@code length} bytes starting
+   * at {@code offset} in a file channel. Closing the handle releases it.
+   */
+  abstract class Handle implements Closeable {
+    final long offset;
+    final long length;
+
+    Handle(long offset, long length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    /** Returns the channel that holds the value. Only call it if length is positive. */
+    abstract FileChannel channel() throws IOException;
+
+    /**
+     * Returns a stream over the value. Closing the stream closes this handle.
+     * This implementation makes positional reads on {@link #channel}.
+     */
+    InputStream newInputStream() {
+      return new InputStream() {
+        private long position;
+
+        @Override public int read() throws IOException {
+          byte[] b = new byte[1];
+          return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+          if (len == 0) {
+            return 0;
+          }
+          int read = Handle.this.read(ByteBuffer.wrap(b, off, len), position);
+          if (read > 0) {
+            position += read;
+          }
+          return read;
+        }
+
+        @Override public long skip(long n) {
+          long skipped = Math.max(0, Math.min(n, length - position));
+          position += skipped;
+          return skipped;
+        }
+
+        @Override public int available() {
+          return (int) Math.min(length - position, Integer.MAX_VALUE);
+        }
+
+        @Override public void close() throws IOException {
+          Handle.this.close();
+        }
+      };
+    }
+
+    /**
+     * Reads from {@code position} in the value into {@code dst} and returns
+     * the number of bytes read, or -1 if {@code position} is at the end.
+     */
+    int read(ByteBuffer dst, long position) throws IOException {
+      long remaining = length - position;
+      if (remaining <= 0) {
+        return -1;
+      }
+      int limit = dst.limit();
+      if (dst.remaining() > remaining) {
+        dst.limit(dst.position() + (int) remaining);
+      }
+      try {
+        return channel().read(dst, offset + position);
+      } finally {
+        dst.limit(limit);
+      }
+    }
+  }
+}
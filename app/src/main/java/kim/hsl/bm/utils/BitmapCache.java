@@ -0,0 +1,925 @@
+package kim.hsl.bm.utils;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bitmap 两级缓存
+ *
+ * 由以下几层组成 , 每一层都可以替换成自定义的实现 :
+ *  - 内存缓存 {@link MemoryTier} , 默认是 LruCache , 最多使用 APP 可用内存的 1/8
+ *  - Bitmap 复用池 {@link PoolTier} , 可选 , 从内存缓存中淘汰的可变 Bitmap 放入复用池 , 解码时复用其内存
+ *  - 磁盘缓存 {@link DiskTier} , 可选 , 默认使用 DiskLruCache ;
+ *    放入内存缓存的 Bitmap 由后台线程编码写入磁盘 , 参考 {@link DiskWriteQueue}
+ * 解码时的像素格式由 {@link QualityPolicy} 选择 , 默认没有透明度的图片使用 RGB_565 ;
+ * 8.0 及以上可以启用 HARDWARE 模式 , 只用于显示的图片解码为 HARDWARE , 使用单独的图形内存预算 ,
+ * 参考 {@link Builder#hardwareBitmaps(int)}
+ * 另外从内存缓存中淘汰 , 又不能复用的 Bitmap 只保存弱引用 , 被 GC 回收之前可以直接取回
+ *
+ * 每一层的命中 / 未命中次数 , 磁盘读写耗时都会被统计 , 参考 {@link #getStats()}
+ *
+ * 可以按名称创建多个实例 , 每个实例有自己的内存预算 , 如头像和全屏大图分别使用不同的缓存 :
+ * <pre>
+ *     BitmapCache avatars = new BitmapCache.Builder(context, "avatars")
+ *             .memoryCacheSize(4 * 1024 * 1024)
+ *             .build();
+ *     BitmapCache photos = new BitmapCache.Builder(context, "photos")
+ *             .reusePoolSize(8 * 1024 * 1024)
+ *             .qualityPolicy(BitmapCache.QUALITY_HIGH)
+ *             .diskCache(new File(context.getCacheDir(), "photos"), 50 * 1024 * 1024)
+ *             .build();
+ *     ...
+ *     BitmapCache.get("photos").getBitmapFromLruCache(key);
+ * </pre>
+ */
+public class BitmapCache {
+    private static final String TAG = "BitmapCache";
+
+    /**
+     * 按名称保存的缓存实例
+     */
+    private static final Map<String, BitmapCache> INSTANCES = new HashMap<>();
+
+    /**
+     * 获取已经创建的缓存实例
+     * @param name 创建时指定的名称
+     * @return 没有创建 , 或者已经释放时返回 null
+     */
+    public static BitmapCache get(String name) {
+        synchronized (INSTANCES) {
+            return INSTANCES.get(name);
+        }
+    }
+
+    /**
+     * 实例名称
+     */
+    private final String mName;
+
+    /**
+     * 应用上下文对象
+     */
+    private final Context mContext;
+
+    /**
+     * 内存缓存
+     */
+    private final MemoryTier mMemoryTier;
+
+    /**
+     * Bitmap 复用池 , 为 null 时不复用 Bitmap 内存
+     */
+    private final PoolTier mPoolTier;
+
+    /**
+     * 磁盘缓存 , 为 null 时只使用内存缓存
+     */
+    private final DiskTier mDiskTier;
+
+    /**
+     * 磁盘缓存的后台写入队列 , 没有磁盘缓存时为 null
+     */
+    private final DiskWriteQueue mDiskWriteQueue;
+
+    /**
+     * 解码时选择像素格式的策略
+     */
+    private final QualityPolicy mQualityPolicy;
+
+    /**
+     * 从内存缓存中淘汰 , 且不能复用的 Bitmap 的弱引用
+     * 被 GC 回收后由进程内共享的 ReferenceCleaner 清理 , 参考 WeakBitmapCache
+     */
+    private final WeakBitmapCache mWeakBitmapCache;
+
+    /*
+        各层的统计数据
+     */
+    private final AtomicInteger mMemoryHitCount = new AtomicInteger();
+    private final AtomicInteger mMemoryMissCount = new AtomicInteger();
+    private final AtomicInteger mWeakHitCount = new AtomicInteger();
+    private final AtomicInteger mPoolHitCount = new AtomicInteger();
+    private final AtomicInteger mPoolMissCount = new AtomicInteger();
+    private final AtomicInteger mDiskHitCount = new AtomicInteger();
+    private final AtomicInteger mDiskMissCount = new AtomicInteger();
+    private final AtomicInteger mDiskWriteCount = new AtomicInteger();
+    private final AtomicLong mDiskReadNanos = new AtomicLong();
+    private final AtomicLong mDiskWriteNanos = new AtomicLong();
+
+    /**
+     * 系统内存不足时回调 , 缩小 Bitmap 复用池
+     * 注册到 Application 上 , 不会持有 Activity
+     */
+    private final ComponentCallbacks2 mComponentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            BitmapCache.this.onTrimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            BitmapCache.this.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+    };
+
+    private BitmapCache(Builder builder, DiskTier diskTier) {
+        mName = builder.mName;
+        mContext = builder.mContext;
+        if (builder.mHardwareMemorySize > 0
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // HARDWARE Bitmap 使用单独的图形内存预算 , 不占用普通内存缓存
+            mMemoryTier = new HardwareMemoryTier(builder.mMemoryTier, builder.mHardwareMemorySize);
+            mQualityPolicy = hardwareQuality(builder.mQualityPolicy);
+        } else {
+            mMemoryTier = builder.mMemoryTier;
+            mQualityPolicy = builder.mQualityPolicy;
+        }
+        mPoolTier = builder.mPoolTier;
+        mDiskTier = diskTier;
+        if (diskTier != null) {
+            mDiskWriteQueue = new DiskWriteQueue(diskTier, builder.mDiskWriteQueueSize,
+                    new DiskWriteQueue.Listener() {
+                        @Override
+                        public void onWritten(String key, boolean written, long nanos) {
+                            if (written) {
+                                mDiskWriteCount.incrementAndGet();
+                            }
+                            mDiskWriteNanos.addAndGet(nanos);
+                        }
+                    });
+        } else {
+            mDiskWriteQueue = null;
+        }
+        mWeakBitmapCache = new WeakBitmapCache(ReferenceCleaner.getDefault());
+
+        mMemoryTier.setRemovalListener(new RemovalListener() {
+            @Override
+            public void onRemoved(String key, Bitmap bitmap, boolean evicted) {
+                entryRemoved(key, bitmap, evicted);
+            }
+        });
+        // 系统内存不足时 , 缩小复用池
+        mContext.registerComponentCallbacks(mComponentCallbacks);
+    }
+
+    /**
+     * 从内存缓存移除 Bitmap 时会回调该方法
+     */
+    private void entryRemoved(String key, Bitmap bitmap, boolean evicted) {
+        /*
+            如果从内存缓存中移除的 Bitmap 是可变的
+            才能被复用 , 放入复用池
+
+            Bitmap 回收策略 :
+            3.0 以下系统中 , Bitmap 内存在 Native 层
+            3.0 以上系统中 , Bitmap 内存在 Java 层
+            8.0 及以上的系统中 , Bitmap 内存在 Native 层 , 但随 Bitmap 对象被 GC 回收
+
+            因此不能被复用的 Bitmap 不需要调用 recycle 方法 , 界面可能还在显示该 Bitmap ;
+            被淘汰的 Bitmap 保存其弱引用 , 被 GC 回收之前再次获取不需要重新解码
+
+            还没有写入磁盘的 Bitmap 不能复用 , 否则写入磁盘的是复用后的图像
+         */
+        boolean pending = mDiskWriteQueue != null && mDiskWriteQueue.isPending(key, bitmap);
+        if ((pending || mPoolTier == null || !mPoolTier.put(bitmap)) && evicted) {
+            mWeakBitmapCache.put(key, bitmap);
+        }
+    }
+
+    /**
+     * 实例名称
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * 解码时选择像素格式的策略 , 从图片来源解码时也应该使用该策略
+     */
+    public QualityPolicy getQualityPolicy() {
+        return mQualityPolicy;
+    }
+
+    /*
+        下面的 4 个方法是提供给用户用于操作内存缓存的接口
+     */
+
+    /**
+     * 将 Bitmap 放入内存缓存中 , 有磁盘缓存时同时放入后台写入队列 , 立即返回
+     * @param key
+     * @param value
+     */
+    public void putBitmapToLruCache(String key, Bitmap value) {
+        putBitmapToMemory(key, value);
+        if (mDiskWriteQueue != null) {
+            mDiskWriteQueue.put(key, value);
+        }
+    }
+
+    /**
+     * 只放入内存缓存 , 不写入磁盘
+     * 如从磁盘缓存中读取的 Bitmap , 以及大图的分块 , 参考 TiledBitmapDecoder
+     * @param key
+     * @param value
+     */
+    public void putBitmapToMemory(String key, Bitmap value) {
+        // 之前被淘汰的 Bitmap 已经过期
+        mWeakBitmapCache.remove(key);
+        mMemoryTier.put(key, value);
+    }
+
+    /**
+     * 从内存缓存中获取 Bitmap 对象
+     * @param key
+     * @return
+     */
+    public Bitmap getBitmapFromLruCache(String key) {
+        Bitmap bitmap = mMemoryTier.get(key);
+        if (bitmap != null) {
+            mMemoryHitCount.incrementAndGet();
+            return bitmap;
+        }
+        // 已经被淘汰 , 但是还没有被 GC 回收 , 重新放入内存缓存
+        bitmap = mWeakBitmapCache.remove(key);
+        if (bitmap != null) {
+            mWeakHitCount.incrementAndGet();
+            mMemoryTier.put(key, bitmap);
+            return bitmap;
+        }
+        mMemoryMissCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 清除内存缓存 , 其中的 Bitmap 放入复用池
+     */
+    public void clearLruCache() {
+        mMemoryTier.clear();
+    }
+
+    /**
+     * 获取一个可以被复用的 Bitmap 对象 , 默认按 ARGB_8888 像素格式解码
+     *
+     * @param width         图像宽度
+     * @param height        图像高度
+     * @param inSampleSize  解码时的缩放系数
+     * @return 没有复用池 , 或者没有可以复用的 Bitmap 时返回 null
+     */
+    public Bitmap getReuseBitmap(int width, int height, int inSampleSize) {
+        return getReuseBitmap(width, height, inSampleSize, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * 获取一个可以被复用的 Bitmap 对象 , 并将其从复用池中移除
+     *
+     * 与 BitmapFactory 配合使用 :
+     *
+     * Android 4.4 以后的 Bitmap 复用情况 :
+     * 在 KITKAT ( Android 4.4 , 19 平台 ) 以后的代码中 ,
+     * 只要被解码生成的 Bitmap 对象的字节大小 ( 缩放后的 )
+     * 小于等于 inBitmap 的字节大小 , 就可以复用成功 ;
+     *
+     * Android 4.4 之前的 Bitmap 复用情况 : ( 比较苛刻 )
+     * 在 KITKAT 之前的代码中 , 被解码的图像必须是
+     *  - JPEG 或 PNG 格式 ,
+     *  - 并且 图像大小必须是相等的 ,
+     *  - inssampleSize 设置为 1 ,
+     * 才能复用成功 ;
+     * 另外被复用的图像的 像素格式 Config ( 如 RGB_565 ) 会覆盖设置的 inPreferredConfig 参数
+     *
+     * @param width         图像宽度
+     * @param height        图像高度
+     * @param inSampleSize  解码时的缩放系数
+     * @param config        解码使用的像素格式
+     * @return 没有复用池 , 或者没有可以复用的 Bitmap 时返回 null
+     */
+    public Bitmap getReuseBitmap(int width, int height, int inSampleSize, Bitmap.Config config) {
+        // Android 2.3.3（API 级别 10）及以下的版本中 , 不启用 Bitmap 内存复用机制
+        if (mPoolTier == null || Build.VERSION.SDK_INT <= Build.VERSION_CODES.GINGERBREAD_MR1) {
+            return null;
+        }
+        Bitmap bitmap = mPoolTier.get(width, height, inSampleSize, config);
+        if (bitmap != null) {
+            mPoolHitCount.incrementAndGet();
+        } else {
+            mPoolMissCount.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+    /**
+     * 将从 getReuseBitmap 获取 , 但是没有使用的 Bitmap 放回复用池
+     * @return 没有复用池 , 或者复用池不接受该 Bitmap 时返回 false
+     */
+    public boolean putReuseBitmap(Bitmap bitmap) {
+        return mPoolTier != null && mPoolTier.put(bitmap);
+    }
+
+    /*
+        下面的 4 个方法是提供给用户用于操作 磁盘 的接口
+     */
+
+    /**
+     * 将 Bitmap 放入 磁盘缓存 的后台写入队列 , 立即返回 , 没有磁盘缓存时不做任何处理
+     * 放入队列后 , 写入磁盘之前不能修改或者回收该 Bitmap
+     * @param key
+     * @param bitmap
+     */
+    public void putBitmapToDisk(String key, Bitmap bitmap) {
+        if (mDiskWriteQueue != null) {
+            mDiskWriteQueue.put(key, bitmap);
+        }
+    }
+
+    /**
+     * 将下载或者读取到的原始编码数据放入 磁盘缓存 , 在当前线程中写入 , 不要在主线程中调用
+     * 与放入 Bitmap 相比 , 不需要重新编码 , 也不会损失质量 ; 没有磁盘缓存时不做任何处理
+     * @param key
+     * @param source 原始编码数据 , 调用者负责关闭
+     */
+    public void putSourceToDisk(String key, InputStream source) {
+        if (mDiskTier == null) {
+            return;
+        }
+        // 队列中还没有写入的 Bitmap 已经过期
+        mDiskWriteQueue.remove(key);
+        long start = System.nanoTime();
+        try {
+            mDiskTier.putSource(key, source);
+            mDiskWriteCount.incrementAndGet();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            mDiskWriteNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 等待后台写入队列中的 Bitmap 全部写入磁盘 , 不要在主线程中调用
+     */
+    public void flushDiskWrites() throws InterruptedException {
+        if (mDiskWriteQueue != null) {
+            mDiskWriteQueue.flush();
+        }
+    }
+
+    /**
+     * 从 磁盘缓存 中取出 Bitmap 对象 , 并放入内存缓存
+     * @param key       键值
+     * @param inBitmap 复用 Bitmap 内存
+     * @return 没有磁盘缓存 , 或者磁盘缓存中没有时返回 null
+     */
+    public Bitmap getBitmapFromDisk(String key, Bitmap inBitmap) {
+        return getBitmapFromDisk(key, inBitmap, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 从 磁盘缓存 中取出 Bitmap 对象 , 缩小到指定尺寸以内 , 并放入内存缓存
+     * 与资源图片一样 , 只打开一次磁盘缓存文件 , 先解码图片头计算缩放系数 , 再解码像素
+     * @param key       键值
+     * @param inBitmap 复用 Bitmap 内存
+     * @param maxWidth  Bitmap 的最大宽度
+     * @param maxHeight Bitmap 的最大高度
+     * @return 没有磁盘缓存 , 或者磁盘缓存中没有时返回 null
+     */
+    public Bitmap getBitmapFromDisk(String key, Bitmap inBitmap, int maxWidth, int maxHeight) {
+        return getBitmapFromDisk(key, inBitmap, maxWidth, maxHeight, mQualityPolicy);
+    }
+
+    /**
+     * 从 磁盘缓存 中取出 Bitmap 对象 , 使用指定的像素格式策略 , 而不是该缓存的策略
+     * @see #getBitmapFromDisk(String, Bitmap, int, int)
+     */
+    public Bitmap getBitmapFromDisk(String key, Bitmap inBitmap, int maxWidth, int maxHeight,
+                                    QualityPolicy qualityPolicy) {
+        if (mDiskTier == null) {
+            return null;
+        }
+        Bitmap bitmap = null;
+        long start = System.nanoTime();
+        try {
+            bitmap = mDiskTier.get(key, maxWidth, maxHeight, qualityPolicy, inBitmap);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            mDiskReadNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        if (bitmap != null) {
+            mDiskHitCount.incrementAndGet();
+            // 从磁盘读取后 , 先缓存到内存中
+            putBitmapToMemory(key, bitmap);
+        } else {
+            mDiskMissCount.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+    /**
+     * 依次从内存缓存 , 磁盘缓存中获取 Bitmap 对象
+     * @param key
+     * @return 都没有时返回 null
+     */
+    public Bitmap getBitmap(String key) {
+        Bitmap bitmap = getBitmapFromLruCache(key);
+        if (bitmap == null) {
+            bitmap = getBitmapFromDisk(key, null);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 系统内存不足时 , 根据 ComponentCallbacks2 中的内存级别缩小 Bitmap 复用池 ;
+     * 已经注册了 ComponentCallbacks2 , 一般不需要手动调用
+     * @param level
+     */
+    public void onTrimMemory(int level) {
+        if (mPoolTier != null) {
+            mPoolTier.trimMemory(level);
+        }
+    }
+
+    /**
+     * 获取各层的统计数据
+     */
+    public Stats getStats() {
+        return new Stats(this);
+    }
+
+    /**
+     * 不使用时释放 , 清空复用池 , 之后可以使用相同的名称重新创建
+     * 磁盘缓存在后台写入队列中剩余的 Bitmap 写入之后关闭 , 调用者不会等待
+     */
+    public void release() {
+        synchronized (INSTANCES) {
+            if (INSTANCES.get(mName) != this) {
+                return; // 已经释放
+            }
+            INSTANCES.remove(mName);
+        }
+        mContext.unregisterComponentCallbacks(mComponentCallbacks);
+        mMemoryTier.setRemovalListener(null);
+        mMemoryTier.clear();
+        mWeakBitmapCache.clear();
+        if (mPoolTier != null) {
+            mPoolTier.clear();
+        }
+        if (mDiskWriteQueue != null) {
+            mDiskWriteQueue.close();
+        }
+    }
+
+    /**
+     * 内存缓存
+     */
+    public interface MemoryTier {
+        Bitmap get(String key);
+
+        void put(String key, Bitmap bitmap);
+
+        Bitmap remove(String key);
+
+        /**
+         * 移除所有 Bitmap , 每个 Bitmap 都要回调 RemovalListener
+         */
+        void clear();
+
+        /**
+         * 当前内存占用 , 单位字节
+         */
+        int getSize();
+
+        /**
+         * 最大内存占用 , 单位字节
+         */
+        int getMaxSize();
+
+        /**
+         * Bitmap 被淘汰 , 替换 , 或者移除时回调
+         */
+        void setRemovalListener(RemovalListener listener);
+    }
+
+    /**
+     * Bitmap 从内存缓存中移除时回调
+     */
+    public interface RemovalListener {
+        /**
+         * @param evicted 因为超出内存缓存大小被淘汰时为 true , 被替换或者移除时为 false
+         */
+        void onRemoved(String key, Bitmap bitmap, boolean evicted);
+    }
+
+    /**
+     * Bitmap 复用池
+     */
+    public interface PoolTier {
+        /**
+         * 放入复用池 , 不能复用时返回 false
+         */
+        boolean put(Bitmap bitmap);
+
+        /**
+         * 取出一个可以用于解码指定图像的 Bitmap , 没有时返回 null
+         */
+        Bitmap get(int width, int height, int inSampleSize, Bitmap.Config config);
+
+        /**
+         * 根据 ComponentCallbacks2.onTrimMemory 的内存级别缩小复用池
+         */
+        void trimMemory(int level);
+
+        void clear();
+
+        /**
+         * 当前内存占用 , 单位字节
+         */
+        int getCurrentSize();
+    }
+
+    /**
+     * 磁盘缓存
+     */
+    public interface DiskTier {
+        /**
+         * 从磁盘缓存中解码 Bitmap , 缩小到指定尺寸以内 , 没有时返回 null
+         * @param qualityPolicy 像素格式选择策略
+         * @param inBitmap      复用的 Bitmap , 可以为 null
+         */
+        Bitmap get(String key, int maxWidth, int maxHeight, QualityPolicy qualityPolicy,
+                   Bitmap inBitmap) throws IOException;
+
+        /**
+         * 将 Bitmap 编码后写入磁盘缓存
+         */
+        void put(String key, Bitmap bitmap) throws IOException;
+
+        /**
+         * 将原始的编码数据写入磁盘缓存 , 不需要重新编码 , 调用者负责关闭 source
+         */
+        void putSource(String key, InputStream source) throws IOException;
+
+        boolean remove(String key) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * 解码时选择像素格式的策略
+     *
+     * 解码图片头时会从 PNG / WEBP 的文件头中读取透明度标志 , JPEG 没有透明度 ,
+     * 没有透明度的图片使用 RGB_565 , 内存占用是 ARGB_8888 的一半 , 但渐变可能出现色带 ;
+     * 因此如缩略图使用 RGB_565 , 全屏大图使用 ARGB_8888
+     */
+    public interface QualityPolicy {
+        /**
+         * @param width    解码后的宽度
+         * @param height   解码后的高度
+         * @param hasAlpha 图片是否有透明度 , 不能确定时为 true
+         * @return 像素格式 , 为 null 时由解码器选择
+         */
+        Bitmap.Config getConfig(int width, int height, boolean hasAlpha);
+    }
+
+    /**
+     * 没有透明度的图片都使用 RGB_565 , 默认的策略
+     */
+    public static final QualityPolicy QUALITY_AUTO = thumbnailQuality(Integer.MAX_VALUE);
+
+    /**
+     * 总是使用 ARGB_8888
+     */
+    public static final QualityPolicy QUALITY_HIGH = fixedQuality(Bitmap.Config.ARGB_8888);
+
+    /**
+     * 宽高都不超过 maxDimension 并且没有透明度的图片使用 RGB_565 , 其它图片使用 ARGB_8888
+     * @param maxDimension 缩略图的最大宽高 , 单位像素
+     */
+    public static QualityPolicy thumbnailQuality(final int maxDimension) {
+        return new QualityPolicy() {
+            @Override
+            public Bitmap.Config getConfig(int width, int height, boolean hasAlpha) {
+                return !hasAlpha && width <= maxDimension && height <= maxDimension
+                        ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            }
+        };
+    }
+
+    /**
+     * 8.0 及以上解码为 HARDWARE , 像素只保存在图形内存中 , 只能用于显示 , 不能读取像素 ;
+     * 8.0 以下按 softwarePolicy 选择 ; 解码时传入了 inBitmap 则使用 inBitmap 的像素格式
+     * @param softwarePolicy 不能使用 HARDWARE 时的策略
+     */
+    public static QualityPolicy hardwareQuality(final QualityPolicy softwarePolicy) {
+        return new QualityPolicy() {
+            @Override
+            public Bitmap.Config getConfig(int width, int height, boolean hasAlpha) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    return Bitmap.Config.HARDWARE;
+                }
+                return softwarePolicy.getConfig(width, height, hasAlpha);
+            }
+        };
+    }
+
+    /**
+     * 不管有没有透明度都使用指定的像素格式 , 如调用者已经知道图片的格式
+     */
+    public static QualityPolicy fixedQuality(final Bitmap.Config config) {
+        return new QualityPolicy() {
+            @Override
+            public Bitmap.Config getConfig(int width, int height, boolean hasAlpha) {
+                return config;
+            }
+        };
+    }
+
+    /**
+     * 各层的统计数据 , 创建时的快照
+     */
+    public static final class Stats {
+        public final int memoryHitCount;
+        public final int memoryMissCount;
+        /** 从被淘汰的 Bitmap 弱引用中取回的次数 , 不计入 memoryMissCount */
+        public final int weakHitCount;
+        public final int memorySize;
+        public final int memoryMaxSize;
+        /** HARDWARE Bitmap 占用的图形内存 , 已经包含在 memorySize 中 , 没有启用 HARDWARE 模式时为 0 */
+        public final int hardwareSize;
+        public final int hardwareMaxSize;
+        public final int poolHitCount;
+        public final int poolMissCount;
+        public final int poolSize;
+        public final int diskHitCount;
+        public final int diskMissCount;
+        public final int diskWriteCount;
+        /** 后台写入队列中等待写入的 Bitmap 个数 */
+        public final int diskWritePendingCount;
+        /** 写入之前被同一个 key 的新 Bitmap 替换的次数 */
+        public final int diskWriteCoalescedCount;
+        /** 写入队列已满 , 主线程放入时被丢弃的次数 */
+        public final int diskWriteDroppedCount;
+        public final long diskReadNanos;
+        public final long diskWriteNanos;
+
+        Stats(BitmapCache cache) {
+            memoryHitCount = cache.mMemoryHitCount.get();
+            memoryMissCount = cache.mMemoryMissCount.get();
+            weakHitCount = cache.mWeakHitCount.get();
+            memorySize = cache.mMemoryTier.getSize();
+            memoryMaxSize = cache.mMemoryTier.getMaxSize();
+            if (cache.mMemoryTier instanceof HardwareMemoryTier) {
+                HardwareMemoryTier hardwareTier = (HardwareMemoryTier) cache.mMemoryTier;
+                hardwareSize = hardwareTier.getHardwareSize();
+                hardwareMaxSize = hardwareTier.getHardwareMaxSize();
+            } else {
+                hardwareSize = 0;
+                hardwareMaxSize = 0;
+            }
+            poolHitCount = cache.mPoolHitCount.get();
+            poolMissCount = cache.mPoolMissCount.get();
+            poolSize = cache.mPoolTier == null ? 0 : cache.mPoolTier.getCurrentSize();
+            diskHitCount = cache.mDiskHitCount.get();
+            diskMissCount = cache.mDiskMissCount.get();
+            diskWriteCount = cache.mDiskWriteCount.get();
+            DiskWriteQueue queue = cache.mDiskWriteQueue;
+            diskWritePendingCount = queue == null ? 0 : queue.getPendingCount();
+            diskWriteCoalescedCount = queue == null ? 0 : queue.getCoalescedCount();
+            diskWriteDroppedCount = queue == null ? 0 : queue.getDroppedCount();
+            diskReadNanos = cache.mDiskReadNanos.get();
+            diskWriteNanos = cache.mDiskWriteNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            int diskReads = diskHitCount + diskMissCount;
+            return "memory " + memoryHitCount + "/" + (memoryHitCount + memoryMissCount + weakHitCount)
+                    + " hits (+" + weakHitCount + " weak), " + memorySize + "/" + memoryMaxSize + " bytes"
+                    + " (" + hardwareSize + "/" + hardwareMaxSize + " hardware)"
+                    + "; pool " + poolHitCount + "/" + (poolHitCount + poolMissCount)
+                    + " hits, " + poolSize + " bytes"
+                    + "; disk " + diskHitCount + "/" + diskReads + " hits, "
+                    + (diskReads == 0 ? 0 : diskReadNanos / diskReads / 1000) + " us/read, "
+                    + (diskWriteCount == 0 ? 0 : diskWriteNanos / diskWriteCount / 1000) + " us/write, "
+                    + diskWritePendingCount + " pending, " + diskWriteCoalescedCount + " coalesced, "
+                    + diskWriteDroppedCount + " dropped";
+        }
+    }
+
+    /**
+     * 创建 BitmapCache 实例
+     */
+    public static class Builder {
+        private final Context mContext;
+        private final String mName;
+        private MemoryTier mMemoryTier;
+        private PoolTier mPoolTier;
+        private DiskTier mDiskTier;
+        private File mDiskDirectory;
+        private long mDiskMaxSize;
+        private DiskLruCacheTier.Format mDiskFormat;
+        private int mDiskQuality = 90;
+        private long mRawDiskMaxSize;
+        private int mRawMaxDimension;
+        private int mDiskWriteQueueSize = 32;
+        private QualityPolicy mQualityPolicy = QUALITY_AUTO;
+        private int mHardwareMemorySize;
+
+        /**
+         * @param context 上下文对象 , 只保存其 Application
+         * @param name    实例名称 , 同一时间只能有一个同名的实例
+         */
+        public Builder(Context context, String name) {
+            mContext = context.getApplicationContext();
+            mName = name;
+        }
+
+        /**
+         * 使用默认的 LruCache 内存缓存 , 并指定其最大内存占用
+         * 不设置时 , 一般是 APP 可用内存的 1/8
+         * @param maxSize 单位字节
+         */
+        public Builder memoryCacheSize(int maxSize) {
+            mMemoryTier = new LruMemoryTier(maxSize);
+            return this;
+        }
+
+        /**
+         * 使用自定义的内存缓存
+         */
+        public Builder memoryTier(MemoryTier memoryTier) {
+            mMemoryTier = memoryTier;
+            return this;
+        }
+
+        /**
+         * 启用 Bitmap 复用池 , 并指定其最大内存占用
+         * @param maxSize 单位字节
+         */
+        public Builder reusePoolSize(int maxSize) {
+            mPoolTier = new BitmapReusePool(maxSize);
+            return this;
+        }
+
+        /**
+         * 使用自定义的 Bitmap 复用池
+         */
+        public Builder reusePool(PoolTier poolTier) {
+            mPoolTier = poolTier;
+            return this;
+        }
+
+        /**
+         * 启用 DiskLruCache 磁盘缓存
+         * @param directory 磁盘缓存目录
+         * @param maxSize   缓存大小 , 单位字节
+         */
+        public Builder diskCache(File directory, long maxSize) {
+            mDiskDirectory = directory;
+            mDiskMaxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * DiskLruCache 磁盘缓存重新编码 Bitmap 使用的格式和质量
+         * 不设置时 , 有透明度的 Bitmap 使用 PNG , 否则使用质量为 90 的 JPEG
+         * @param format  JPEG , PNG 或者 WEBP
+         * @param quality 0 ~ 100 , PNG 忽略该值
+         */
+        public Builder diskCacheFormat(DiskLruCacheTier.Format format, int quality) {
+            mDiskFormat = format;
+            mDiskQuality = quality;
+            return this;
+        }
+
+        /**
+         * DiskLruCache 磁盘缓存同时保存小图像的原始像素 , 读取时不需要解码
+         * 原始像素保存在磁盘缓存目录旁边的 "目录名-raw" 目录中 , 使用单独的缓存大小
+         * @param maxSize      原始像素缓存大小 , 单位字节
+         * @param maxDimension 宽高都不超过该值的 Bitmap 才保存原始像素 , 如 128
+         */
+        public Builder rawDiskCache(long maxSize, int maxDimension) {
+            mRawDiskMaxSize = maxSize;
+            mRawMaxDimension = maxDimension;
+            return this;
+        }
+
+        /**
+         * 磁盘缓存后台写入队列中最多保存的 Bitmap 个数 , 默认 32
+         * 超出后主线程放入时丢弃最早放入的 Bitmap , 其它线程放入时等待
+         */
+        public Builder diskWriteQueueSize(int maxPending) {
+            mDiskWriteQueueSize = maxPending;
+            return this;
+        }
+
+        /**
+         * 解码时选择像素格式的策略 , 不设置时为 {@link #QUALITY_AUTO} ,
+         * 如缩略图缓存使用 {@link #thumbnailQuality(int)} , 全屏大图缓存使用 {@link #QUALITY_HIGH}
+         */
+        public Builder qualityPolicy(QualityPolicy qualityPolicy) {
+            mQualityPolicy = qualityPolicy;
+            return this;
+        }
+
+        /**
+         * 8.0 及以上启用 HARDWARE 模式 , 8.0 以下忽略 :
+         *  - 从图片来源和磁盘缓存解码时 , 不传入 inBitmap 的图片解码为 HARDWARE ,
+         *    像素不占用 Java 堆 , 滑动时 GC 更少 ; 此时 {@link #qualityPolicy} 只在 8.0 以下使用
+         *  - HARDWARE Bitmap 放入单独的内存缓存 , 按图形内存的预算淘汰 , 参考 {@link HardwareMemoryTier}
+         *  - 需要读取像素的图片 , 在 BitmapLoader 中指定 ARGB_8888 等像素格式 ,
+         *    或者解码时传入复用池中的 inBitmap , 仍然解码为普通 Bitmap , 放入普通的内存缓存
+         * @param maxGraphicsSize HARDWARE Bitmap 最多占用的图形内存 , 单位字节
+         */
+        public Builder hardwareBitmaps(int maxGraphicsSize) {
+            mHardwareMemorySize = maxGraphicsSize;
+            return this;
+        }
+
+        /**
+         * 使用自定义的磁盘缓存
+         */
+        public Builder diskTier(DiskTier diskTier) {
+            mDiskTier = diskTier;
+            return this;
+        }
+
+        /**
+         * 创建实例 , 之后可以通过 {@link BitmapCache#get(String)} 获取
+         * 磁盘缓存打开失败时 , 只使用内存缓存
+         * @throws IllegalStateException 已经存在同名的实例
+         */
+        public BitmapCache build() {
+            if (mMemoryTier == null) {
+                // 获取 Activity 管理器
+                ActivityManager activityManager = (ActivityManager) mContext.getSystemService(
+                        Context.ACTIVITY_SERVICE);
+                // 获取应用可用的最大内存 , 单位是 MB , 将其转为字节 , 除以 8
+                memoryCacheSize(activityManager.getMemoryClass() / 8 * 1024 * 1024);
+            }
+            checkName();
+            // 打开磁盘缓存需要读取日志 , 在锁外执行 , 不阻塞其它名称的缓存
+            DiskTier diskTier = mDiskTier;
+            DiskLruCacheTier openedTier = null;
+            if (diskTier == null && mDiskDirectory != null) {
+                try {
+                    openedTier = DiskLruCacheTier.open(mDiskDirectory, mDiskMaxSize,
+                            mDiskFormat, mDiskQuality);
+                    openedTier.setReusePool(mPoolTier);
+                    diskTier = openedTier;
+                    if (mRawDiskMaxSize > 0) {
+                        File rawDirectory = new File(mDiskDirectory.getParentFile(),
+                                mDiskDirectory.getName() + "-raw");
+                        openedTier.setRawCache(DiskLruCacheTier.openRawCache(rawDirectory,
+                                mRawDiskMaxSize), mRawMaxDimension);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            synchronized (INSTANCES) {
+                // 打开磁盘缓存期间 , 其它线程可能已经创建了同名的缓存 , 关闭刚打开的磁盘缓存
+                if (INSTANCES.containsKey(mName)) {
+                    if (openedTier != null) {
+                        try {
+                            openedTier.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    throw new IllegalStateException("BitmapCache " + mName + " already exists");
+                }
+                BitmapCache cache = new BitmapCache(this, diskTier);
+                INSTANCES.put(mName, cache);
+                return cache;
+            }
+        }
+
+        /**
+         * 同一个名称只能有一个缓存 , 已经存在时不再打开磁盘缓存 , 抛出 IllegalStateException
+         */
+        private void checkName() {
+            synchronized (INSTANCES) {
+                if (INSTANCES.containsKey(mName)) {
+                    throw new IllegalStateException("BitmapCache " + mName + " already exists");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,658 @@
+package kim.hsl.bm.utils;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在 BitmapCache 之上加载 Bitmap , 依次从内存缓存 , 磁盘缓存 , 图片来源中获取
+ *
+ * 相同的 ( key , 目标宽高 , 像素格式 ) 同时只会加载一次 :
+ * 如 RecyclerView 的多个条目同时显示同一张图片 , 第一个请求负责读取磁盘或者解码 ,
+ * 其它请求等待其结果 , 不会重复读取磁盘 , 也不会重复解码
+ *
+ * 两种加载方式 :
+ *  - {@link #load} 在调用线程中加载 , 会阻塞调用线程 , 不要在主线程中调用
+ *  - {@link #loadAsync} 由 {@link DecodeScheduler} 在后台加载 , 在主线程中回调结果 ;
+ *    条目被回收时调用 {@link Request#cancel()} , 没有其它请求等待时 , 还没有执行的加载任务会被移除
+ *
+ * 所有方法都是线程安全的
+ */
+public class BitmapLoader {
+    private static final String TAG = "BitmapLoader";
+
+    /**
+     * 图片来源 , 内存缓存和磁盘缓存中都没有时 , 从这里解码
+     */
+    public interface Source {
+        /**
+         * 解码不超过指定宽高的 Bitmap
+         * @param config 像素格式 , 为 null 时按缓存的 {@link BitmapCache#getQualityPolicy()} 选择
+         * @return 解码失败时返回 null
+         */
+        Bitmap decode(int maxWidth, int maxHeight, Bitmap.Config config) throws IOException;
+    }
+
+    /**
+     * 异步加载的回调
+     */
+    public interface Callback {
+        /**
+         * 在主线程中回调 , 请求被取消后不会回调
+         * @param bitmap 加载失败时为 null
+         */
+        void onLoaded(Bitmap bitmap);
+    }
+
+    /**
+     * 缓存
+     */
+    private final BitmapCache mCache;
+
+    /**
+     * 异步加载使用的调度器
+     */
+    private final DecodeScheduler mScheduler;
+
+    /**
+     * 在主线程中回调结果
+     */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * 正在加载的请求 , 键是缓存 key
+     */
+    private final ConcurrentHashMap<String, Flight> mInFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 等待其它请求的结果 , 没有重复加载的次数
+     */
+    private final AtomicInteger mCoalescedCount = new AtomicInteger();
+
+    /**
+     * 所有请求都被取消 , 没有执行的加载次数
+     */
+    private final AtomicInteger mCancelledCount = new AtomicInteger();
+
+    /**
+     * 使用进程内共享的调度器
+     */
+    public BitmapLoader(BitmapCache cache) {
+        this(cache, DecodeScheduler.getDefault());
+    }
+
+    public BitmapLoader(BitmapCache cache, DecodeScheduler scheduler) {
+        mCache = cache;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * 获取缓存使用的 key , 包含目标宽高和像素格式 , 同一张图片不同尺寸分别缓存
+     *
+     * 拼接后的字符串可能超过 DiskLruCache 的 64 个字符限制 , 这里取其 MD5 ,
+     * 结果固定为 32 个小写十六进制字符 , 符合 [a-z0-9_-]{1,64}
+     * @param config 像素格式 , 为 null 时表示由缓存的策略选择
+     */
+    public static String cacheKey(String key, int maxWidth, int maxHeight, Bitmap.Config config) {
+        return hashKey(key + "_" + maxWidth + "x" + maxHeight + "_"
+                + (config == null ? "auto" : config.name().toLowerCase(Locale.US)));
+    }
+
+    /**
+     * 将任意字符串转为 32 个小写十六进制字符
+     */
+    static String hashKey(String key) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // 所有 Java 平台都必须支持 MD5
+            throw new AssertionError(e);
+        }
+        byte[] bytes = digest.digest(key.getBytes(Charset.forName("UTF-8")));
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >>> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 加载 Bitmap , 阻塞调用线程
+     *
+     * @param key       图片的 key , 可以是任意字符串
+     * @param maxWidth  Bitmap 的最大宽度
+     * @param maxHeight Bitmap 的最大高度
+     * @param config    像素格式 , 为 null 时按缓存的 {@link BitmapCache#getQualityPolicy()} 选择
+     * @param source    缓存中都没有时 , 从这里解码
+     * @return 加载失败时返回 null
+     */
+    public Bitmap load(String key, int maxWidth, int maxHeight, Bitmap.Config config,
+                       Source source) {
+        return load(cacheKey(key, maxWidth, maxHeight, config), maxWidth, maxHeight, config,
+                qualityPolicy(config), source);
+    }
+
+    /**
+     * @param cacheKey      已经计算好的缓存 key
+     * @param qualityPolicy 从磁盘缓存中解码时使用的策略 , 与 source 解码时使用的相同
+     */
+    private Bitmap load(String cacheKey, int maxWidth, int maxHeight, Bitmap.Config config,
+                        BitmapCache.QualityPolicy qualityPolicy, Source source) {
+        // 内存缓存命中时不需要创建任务
+        Bitmap bitmap = mCache.getBitmapFromLruCache(cacheKey);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        Flight flight = new Flight(cacheKey, maxWidth, maxHeight, config, qualityPolicy, source,
+                DecodeScheduler.Priority.VISIBLE);
+        Flight inFlight = mInFlight.putIfAbsent(cacheKey, flight);
+        if (inFlight == null) {
+            // 由当前线程加载 , 完成后其它等待的请求都会得到结果
+            flight.loadNow();
+            return flight.mResult;
+        }
+        mCoalescedCount.incrementAndGet();
+        return inFlight.await();
+    }
+
+    /**
+     * 在后台加载 Bitmap , 立即返回
+     *
+     * @param priority 优先级 , 同一个优先级中 , 后提交的请求先加载
+     * @param callback 在主线程中回调结果 ; 在主线程中调用 , 并且内存缓存命中时 , 在返回之前回调
+     * @return 可以用于取消回调
+     * @see #load(String, int, int, Bitmap.Config, Source)
+     */
+    public Request loadAsync(String key, int maxWidth, int maxHeight, Bitmap.Config config,
+                             Source source, DecodeScheduler.Priority priority, Callback callback) {
+        return loadAsync(cacheKey(key, maxWidth, maxHeight, config), maxWidth, maxHeight, config,
+                qualityPolicy(config), source, priority, callback);
+    }
+
+    private Request loadAsync(String cacheKey, int maxWidth, int maxHeight, Bitmap.Config config,
+                              BitmapCache.QualityPolicy qualityPolicy, Source source,
+                              DecodeScheduler.Priority priority, Callback callback) {
+        Request request = new Request(priority, callback);
+        Bitmap bitmap = mCache.getBitmapFromLruCache(cacheKey);
+        if (bitmap != null) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                request.mDone = true;
+                callback.onLoaded(bitmap);
+            } else {
+                request.deliver(bitmap);
+            }
+            return request;
+        }
+        while (true) {
+            Flight flight = new Flight(cacheKey, maxWidth, maxHeight, config, qualityPolicy,
+                    source, priority);
+            Flight inFlight = mInFlight.putIfAbsent(cacheKey, flight);
+            if (inFlight == null) {
+                flight.addRequest(request);
+                flight.schedule();
+                return request;
+            }
+            if (inFlight.addRequest(request)) {
+                mCoalescedCount.incrementAndGet();
+                return request;
+            }
+            // 该请求刚刚完成或者被取消 , 重新创建
+        }
+    }
+
+    /**
+     * 加载资源图片 , 阻塞调用线程 , 参考 {@link #load(String, int, int, Bitmap.Config, Source)}
+     * @param hasAlphaChannel 是否包含透明度 , 为 true 时按 {@link BitmapCache#QUALITY_AUTO} 检查图片头 ,
+     *                        为 false 时固定使用 RGB_565 像素格式
+     */
+    public Bitmap loadResource(Context context, int imageResId, int maxWidth, int maxHeight,
+                               boolean hasAlphaChannel) {
+        BitmapCache.QualityPolicy qualityPolicy = resourceQuality(hasAlphaChannel);
+        return load(resourceKey(imageResId, maxWidth, maxHeight, hasAlphaChannel),
+                maxWidth, maxHeight, null, qualityPolicy,
+                resourceSource(context, imageResId, qualityPolicy));
+    }
+
+    /**
+     * 加载资源图片 , 像素格式由图片头中的透明度和缓存的策略选择 , 阻塞调用线程
+     * @see #loadResource(Context, int, int, int, boolean)
+     */
+    public Bitmap loadResource(Context context, int imageResId, int maxWidth, int maxHeight) {
+        return load("res_" + imageResId, maxWidth, maxHeight, null,
+                resourceSource(context, imageResId, null));
+    }
+
+    /**
+     * 在后台加载资源图片 , 参考 {@link #loadAsync}
+     * @param hasAlphaChannel 是否包含透明度 , 为 true 时按 {@link BitmapCache#QUALITY_AUTO} 检查图片头 ,
+     *                        为 false 时固定使用 RGB_565 像素格式
+     */
+    public Request loadResourceAsync(Context context, int imageResId, int maxWidth, int maxHeight,
+                                     boolean hasAlphaChannel, DecodeScheduler.Priority priority,
+                                     Callback callback) {
+        BitmapCache.QualityPolicy qualityPolicy = resourceQuality(hasAlphaChannel);
+        return loadAsync(resourceKey(imageResId, maxWidth, maxHeight, hasAlphaChannel),
+                maxWidth, maxHeight, null, qualityPolicy,
+                resourceSource(context, imageResId, qualityPolicy), priority, callback);
+    }
+
+    /**
+     * 在后台加载资源图片 , 像素格式由图片头中的透明度和缓存的策略选择
+     * @see #loadResourceAsync(Context, int, int, int, boolean, DecodeScheduler.Priority, Callback)
+     */
+    public Request loadResourceAsync(Context context, int imageResId, int maxWidth, int maxHeight,
+                                     DecodeScheduler.Priority priority, Callback callback) {
+        return loadAsync("res_" + imageResId, maxWidth, maxHeight, null,
+                resourceSource(context, imageResId, null), priority, callback);
+    }
+
+    /**
+     * 调用者指定是否有透明度时的策略 , 可能有透明度时仍然检查图片头 , 没有透明度时固定使用 RGB_565
+     */
+    private static BitmapCache.QualityPolicy resourceQuality(boolean hasAlphaChannel) {
+        return hasAlphaChannel ? BitmapCache.QUALITY_AUTO
+                : BitmapCache.fixedQuality(Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * 调用者指定是否有透明度时的缓存 key , 与按缓存的策略选择时的 key 不同 ;
+     * 没有透明度时与 {@link #cacheKey} 指定 RGB_565 时相同
+     */
+    private static String resourceKey(int imageResId, int maxWidth, int maxHeight,
+                                      boolean hasAlphaChannel) {
+        return hasAlphaChannel
+                ? hashKey("res_" + imageResId + "_" + maxWidth + "x" + maxHeight + "_quality_auto")
+                : cacheKey("res_" + imageResId, maxWidth, maxHeight, Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * @param qualityPolicy 解码使用的策略 , 为 null 时由请求的像素格式决定
+     */
+    private Source resourceSource(Context context, final int imageResId,
+                                  final BitmapCache.QualityPolicy qualityPolicy) {
+        final Context appContext = context.getApplicationContext();
+        return new Source() {
+            @Override
+            public Bitmap decode(int maxWidth, int maxHeight, Bitmap.Config config) {
+                try {
+                    return BitmapSizeReduce.getResizedBitmap(appContext, imageResId,
+                            maxWidth, maxHeight,
+                            qualityPolicy != null ? qualityPolicy : qualityPolicy(config), null);
+                } catch (Resources.NotFoundException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * 请求的像素格式对应的策略 , 没有指定时使用缓存的策略
+     */
+    private BitmapCache.QualityPolicy qualityPolicy(Bitmap.Config config) {
+        return config == null ? mCache.getQualityPolicy() : BitmapCache.fixedQuality(config);
+    }
+
+    /**
+     * 正在加载的请求个数
+     */
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    /**
+     * 等待其它请求的结果 , 没有重复加载的次数
+     */
+    public int getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * 所有请求都被取消 , 没有执行的加载次数
+     */
+    public int getCancelledCount() {
+        return mCancelledCount.get();
+    }
+
+    /**
+     * 缓存
+     */
+    public BitmapCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * 一次异步加载请求
+     */
+    public final class Request {
+        private final DecodeScheduler.Priority mPriority;
+        private final Callback mCallback;
+
+        /**
+         * 加载该请求的 Flight , 只在 Flight 的锁中访问
+         */
+        private Flight mFlight;
+
+        /**
+         * 已经回调 , 或者已经取消
+         */
+        private volatile boolean mDone;
+        private volatile boolean mCancelled;
+
+        Request(DecodeScheduler.Priority priority, Callback callback) {
+            mPriority = priority;
+            mCallback = callback;
+        }
+
+        /**
+         * 取消请求 , 之后不会再回调 ; 如 RecyclerView 的条目被回收 , 或者绑定了其它图片时调用
+         * 没有其它请求等待同一张图片时 , 还没有开始执行的加载任务会被移除
+         */
+        public void cancel() {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            Flight flight;
+            synchronized (this) {
+                flight = mFlight;
+            }
+            if (flight != null) {
+                flight.removeRequest(this);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * 已经回调 , 或者已经取消
+         */
+        public boolean isDone() {
+            return mDone || mCancelled;
+        }
+
+        /**
+         * 在主线程中回调 , 取消后不回调
+         */
+        void deliver(final Bitmap bitmap) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled || mDone) {
+                        return;
+                    }
+                    mDone = true;
+                    mCallback.onLoaded(bitmap);
+                }
+            });
+        }
+    }
+
+    /**
+     * 一个缓存 key 的加载过程 , 被所有等待该 key 的请求共享
+     *
+     * 先在磁盘线程池中查看内存缓存和磁盘缓存 , 都没有时再到解码线程池中解码 ;
+     * 同步加载 , 或者同步等待异步加载时 , 如果任务还在队列中 , 在调用线程中直接执行
+     */
+    private final class Flight {
+        final String mCacheKey;
+        final int mMaxWidth;
+        final int mMaxHeight;
+        final Bitmap.Config mConfig;
+        final BitmapCache.QualityPolicy mQualityPolicy;
+        final Source mSource;
+
+        /**
+         * 等待结果的异步请求
+         */
+        private final List<Request> mRequests = new ArrayList<>();
+
+        /**
+         * 同步等待结果的线程个数 , 大于 0 时不能取消
+         */
+        private int mWaiterCount;
+
+        private DecodeScheduler.Priority mPriority;
+
+        /**
+         * 当前在队列中等待 , 或者正在执行的任务
+         */
+        private DecodeScheduler.Task mTask;
+
+        private boolean mDone;
+        private boolean mCancelled;
+        Bitmap mResult;
+
+        Flight(String cacheKey, int maxWidth, int maxHeight, Bitmap.Config config,
+               BitmapCache.QualityPolicy qualityPolicy, Source source,
+               DecodeScheduler.Priority priority) {
+            mCacheKey = cacheKey;
+            mMaxWidth = maxWidth;
+            mMaxHeight = maxHeight;
+            mConfig = config;
+            mQualityPolicy = qualityPolicy;
+            mSource = source;
+            mPriority = priority;
+        }
+
+        /**
+         * 提交第一个任务 : 查看内存缓存和磁盘缓存
+         */
+        synchronized void schedule() {
+            if (mDone || mCancelled) {
+                return;
+            }
+            mTask = mScheduler.submitDisk(mPriority, new Runnable() {
+                @Override
+                public void run() {
+                    runDiskStage();
+                }
+            });
+        }
+
+        /**
+         * 加入一个异步请求 , 优先级更高时 , 提高还在队列中的任务的优先级
+         * @return 已经完成或者被取消时返回 false
+         */
+        synchronized boolean addRequest(Request request) {
+            if (mDone || mCancelled) {
+                return false;
+            }
+            synchronized (request) {
+                request.mFlight = this;
+            }
+            mRequests.add(request);
+            if (request.mPriority.compareTo(mPriority) < 0) {
+                mPriority = request.mPriority;
+                if (mTask != null) {
+                    mTask.setPriority(mPriority);
+                }
+            }
+            return true;
+        }
+
+        void removeRequest(Request request) {
+            DecodeScheduler.Task task = null;
+            synchronized (this) {
+                mRequests.remove(request);
+                if (!mRequests.isEmpty() || mWaiterCount > 0 || mDone || mCancelled) {
+                    return;
+                }
+                // 没有请求等待 , 任务还没有开始执行时取消
+                if (mTask != null && mTask.cancel()) {
+                    mCancelled = true;
+                    task = mTask;
+                    mTask = null;
+                }
+            }
+            if (task != null) {
+                mInFlight.remove(mCacheKey, this);
+                mCancelledCount.incrementAndGet();
+            }
+        }
+
+        /**
+         * 同步等待结果 ; 任务还在队列中时 , 从队列中移除 , 在当前线程中执行
+         */
+        Bitmap await() {
+            boolean runNow = false;
+            synchronized (this) {
+                if (mDone) {
+                    return mResult;
+                }
+                mWaiterCount++;
+                if (mCancelled) {
+                    // 异步请求都已经取消 , 还没有从 mInFlight 中移除 , 由当前线程加载
+                    mCancelled = false;
+                    runNow = true;
+                } else if (mTask != null && mTask.cancel()) {
+                    mTask = null;
+                    runNow = true;
+                }
+            }
+            if (runNow) {
+                loadNow();
+            }
+            synchronized (this) {
+                try {
+                    while (!mDone) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return null;
+                        }
+                    }
+                    return mResult;
+                } finally {
+                    mWaiterCount--;
+                }
+            }
+        }
+
+        /**
+         * 在当前线程中查看缓存 , 解码
+         */
+        void loadNow() {
+            Bitmap bitmap = null;
+            try {
+                bitmap = loadFromCache();
+                if (bitmap == null) {
+                    bitmap = decode();
+                }
+            } finally {
+                complete(bitmap);
+            }
+        }
+
+        /**
+         * 磁盘线程池中执行 , 缓存中没有时提交解码任务
+         */
+        void runDiskStage() {
+            Bitmap bitmap = null;
+            boolean completed = false;
+            try {
+                bitmap = loadFromCache();
+                if (bitmap != null) {
+                    completed = true;
+                    return;
+                }
+                synchronized (this) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    mTask = mScheduler.submitDecode(mPriority, new Runnable() {
+                        @Override
+                        public void run() {
+                            runDecodeStage();
+                        }
+                    });
+                }
+            } catch (RuntimeException e) {
+                // 包括调度器已经关闭
+                e.printStackTrace();
+                completed = true;
+            } finally {
+                if (completed) {
+                    complete(bitmap);
+                }
+            }
+        }
+
+        /**
+         * 解码线程池中执行
+         */
+        void runDecodeStage() {
+            Bitmap bitmap = null;
+            try {
+                bitmap = decode();
+            } finally {
+                complete(bitmap);
+            }
+        }
+
+        /**
+         * 查看内存缓存和磁盘缓存 , 磁盘命中时 , 已经放入内存缓存
+         */
+        private Bitmap loadFromCache() {
+            // 之前的请求可能刚刚完成
+            Bitmap bitmap = mCache.getBitmapFromLruCache(mCacheKey);
+            if (bitmap == null) {
+                bitmap = mCache.getBitmapFromDisk(mCacheKey, null, mMaxWidth, mMaxHeight,
+                        mQualityPolicy);
+            }
+            return bitmap;
+        }
+
+        /**
+         * 从图片来源解码 , 放入内存缓存 , 并由后台线程写入磁盘
+         */
+        private Bitmap decode() {
+            Bitmap bitmap = null;
+            try {
+                bitmap = mSource.decode(mMaxWidth, mMaxHeight, mConfig);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+            if (bitmap != null) {
+                mCache.putBitmapToLruCache(mCacheKey, bitmap);
+            }
+            return bitmap;
+        }
+
+        /**
+         * 保存结果 , 唤醒同步等待的线程 , 回调所有没有取消的请求
+         */
+        private void complete(Bitmap bitmap) {
+            List<Request> requests;
+            synchronized (this) {
+                mResult = bitmap;
+                mDone = true;
+                mTask = null;
+                requests = new ArrayList<>(mRequests);
+                mRequests.clear();
+                notifyAll();
+            }
+            mInFlight.remove(mCacheKey, this);
+            for (Request request : requests) {
+                request.deliver(bitmap);
+            }
+        }
+    }
+}
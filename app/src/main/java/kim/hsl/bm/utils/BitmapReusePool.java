@@ -0,0 +1,382 @@
+package kim.hsl.bm.utils;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bitmap 复用池
+ *
+ * 按 像素格式 Config 和 内存分配大小 对可复用的 Bitmap 分组 :
+ * 每种 Config 对应一个 TreeMap , 键是 Bitmap 的内存分配大小 , 值是该大小的 Bitmap 栈 ( 后进先出 ) ;
+ *
+ * 查找时先计算解码后图像需要的内存大小 , 在 TreeMap 中找到第一个大于等于该大小的分组 ,
+ * 时间复杂度是 O(log n) , 不需要遍历整个复用池 ;
+ * 每次只取出一个 Bitmap , 不会把其它符合条件的 Bitmap 也从池中删除 ;
+ * 后放入的 Bitmap 先被取出 , 其内存最近刚被使用过
+ *
+ * 复用池使用强引用保存 Bitmap , 不会在 GC 时被清空 , 复用率是可以预期的 ;
+ * 复用池的内存占用不超过指定的字节数 , 超过后按放入的先后顺序 ,
+ * 回收最早放入复用池的 Bitmap , 直到内存占用小于最大值 ;
+ * 系统内存不足时 , 通过 {@link #trimMemory(int)} 缩小或清空复用池
+ *
+ * 所有方法都是线程安全的
+ */
+public class BitmapReusePool implements BitmapCache.PoolTier {
+
+    /**
+     * 被复用的 Bitmap 内存最多是所需内存的 8 倍 , 避免使用很大的 Bitmap 内存解码很小的图像
+     */
+    private static final int MAX_SIZE_MULTIPLE = 8;
+
+    /**
+     * 像素格式 -> ( 内存分配大小 -> Bitmap 栈 )
+     */
+    private final Map<Bitmap.Config, TreeMap<Integer, ArrayDeque<Entry>>> groups = new HashMap<>();
+
+    /**
+     * 所有 Bitmap 按放入复用池的先后顺序组成的双向链表 , 链表头是最早放入的 Bitmap
+     * 使用哨兵节点 , 链表为空时 head.next == head
+     */
+    private final Entry head = new Entry(null, null, 0);
+
+    /**
+     * 复用池最大内存占用 , 单位字节
+     */
+    private int maxSize;
+
+    /**
+     * 复用池当前内存占用 , 单位字节
+     */
+    private int currentSize;
+
+    /**
+     * 复用池中的 Bitmap 个数
+     */
+    private int count;
+
+    /**
+     * 复用成功次数
+     */
+    private int hitCount;
+
+    /**
+     * 复用失败次数
+     */
+    private int missCount;
+
+    /**
+     * 因为超过最大内存被回收的 Bitmap 个数
+     */
+    private int evictionCount;
+
+    /**
+     * @param maxSize 复用池最大内存占用 , 单位字节
+     */
+    public BitmapReusePool(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        this.maxSize = maxSize;
+        head.previous = head;
+        head.next = head;
+    }
+
+    /**
+     * 将 Bitmap 放入复用池 , 如果超过最大内存占用 , 回收最早放入的 Bitmap
+     * @param bitmap 从内存缓存中移除的 Bitmap
+     * @return 如果该 Bitmap 不能被复用 ( 不可变 , 已经回收 , 像素格式未知 , 或者比整个复用池还大 ) ,
+     *         返回 false , 由调用者回收
+     */
+    @Override
+    public synchronized boolean put(Bitmap bitmap) {
+        Bitmap.Config config = bitmap.getConfig();
+        int size = getAllocationSize(bitmap);
+        if (!bitmap.isMutable() || bitmap.isRecycled() || config == null || size > maxSize) {
+            return false;
+        }
+
+        TreeMap<Integer, ArrayDeque<Entry>> sizes = groups.get(config);
+        if (sizes == null) {
+            sizes = new TreeMap<>();
+            groups.put(config, sizes);
+        }
+        ArrayDeque<Entry> stack = sizes.get(size);
+        if (stack == null) {
+            stack = new ArrayDeque<>();
+            sizes.put(size, stack);
+        }
+        Entry entry = new Entry(bitmap, config, size);
+        stack.push(entry);
+
+        // 放到链表尾部
+        entry.previous = head.previous;
+        entry.next = head;
+        head.previous.next = entry;
+        head.previous = entry;
+
+        count++;
+        currentSize += size;
+        trimToSize(maxSize);
+        return true;
+    }
+
+    /**
+     * 获取一个可以被复用的 Bitmap 对象 , 并将其从复用池中移除
+     *
+     * 在 Android 4.4（API 级别 19）及以上的版本中 ,
+     * 只要被解码后的 Bitmap 对象的字节大小 , 小于等于 inBitmap 的字节大小 , 就可以复用成功 ,
+     * 这里选择能容纳解码后图像的最小的 Bitmap ;
+     *
+     * Android 4.4（API 级别 19）以下的版本 , 被复用的图像宽高必须等于解码后的图像宽高 ,
+     * 并且 inSampleSize 必须是 1
+     *
+     * @param width         图像宽度
+     * @param height        图像高度
+     * @param inSampleSize  解码时的缩放系数
+     * @param config        解码使用的像素格式
+     * @return 没有可以复用的 Bitmap 时返回 null
+     */
+    @Override
+    public synchronized Bitmap get(int width, int height, int inSampleSize, Bitmap.Config config) {
+        Entry entry = null;
+        TreeMap<Integer, ArrayDeque<Entry>> sizes = groups.get(config);
+        if (sizes != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // 计算缩放后的宽高 , 解码器向上取整
+                if (inSampleSize > 1) {
+                    width = (width + inSampleSize - 1) / inSampleSize;
+                    height = (height + inSampleSize - 1) / inSampleSize;
+                }
+                entry = pollBestFit(sizes, width * height * getBytesPerPixel(config));
+            } else if (inSampleSize <= 1) {
+                entry = pollSameDimensions(sizes, width, height, config);
+            }
+        }
+
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        unlink(entry);
+        return entry.bitmap;
+    }
+
+    /**
+     * 从大于等于 size 的分组中 , 取出最小的一个 Bitmap
+     */
+    private Entry pollBestFit(TreeMap<Integer, ArrayDeque<Entry>> sizes, int size) {
+        long maxAllocation = (long) size * MAX_SIZE_MULTIPLE;
+        Integer key = sizes.ceilingKey(size);
+        if (key == null || key > maxAllocation) {
+            return null;
+        }
+        ArrayDeque<Entry> stack = sizes.get(key);
+        Entry entry = stack.pop();
+        if (stack.isEmpty()) {
+            sizes.remove(key);
+        }
+        return entry;
+    }
+
+    /**
+     * 从 size 对应的分组中 , 取出宽高相同的一个 Bitmap
+     */
+    private Entry pollSameDimensions(TreeMap<Integer, ArrayDeque<Entry>> sizes,
+                                     int width, int height, Bitmap.Config config) {
+        int size = width * height * getBytesPerPixel(config);
+        ArrayDeque<Entry> stack = sizes.get(size);
+        if (stack == null) {
+            return null;
+        }
+        Iterator<Entry> iterator = stack.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.bitmap.getWidth() == width && entry.bitmap.getHeight() == height) {
+                iterator.remove();
+                if (stack.isEmpty()) {
+                    sizes.remove(size);
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 从链表中移除已经从分组中取出的 Bitmap
+     */
+    private void unlink(Entry entry) {
+        entry.previous.next = entry.next;
+        entry.next.previous = entry.previous;
+        entry.previous = null;
+        entry.next = null;
+        count--;
+        currentSize -= entry.size;
+    }
+
+    /**
+     * 回收最早放入复用池的 Bitmap , 直到内存占用小于等于 size
+     */
+    private void trimToSize(int size) {
+        while (currentSize > size) {
+            // 链表头是最早放入的 Bitmap , 在它的分组栈中也是最早放入的 , 位于栈底
+            Entry eldest = head.next;
+            TreeMap<Integer, ArrayDeque<Entry>> sizes = groups.get(eldest.config);
+            ArrayDeque<Entry> stack = sizes.get(eldest.size);
+            stack.removeLast();
+            if (stack.isEmpty()) {
+                sizes.remove(eldest.size);
+            }
+            unlink(eldest);
+            evictionCount++;
+            eldest.bitmap.recycle();
+        }
+    }
+
+    /**
+     * 根据 ComponentCallbacks2.onTrimMemory 的内存级别缩小复用池
+     *
+     * 应用进入后台 , 或者内存已经非常紧张 , 清空复用池 ;
+     * 界面不可见 , 或者前台运行时内存紧张 , 将复用池缩小到一半
+     *
+     * @param level onTrimMemory 回调的内存级别
+     */
+    @Override
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(maxSize / 2);
+        }
+    }
+
+    /**
+     * 清空复用池 , 回收其中所有的 Bitmap
+     */
+    @Override
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * 修改复用池最大内存占用 , 如果超出 , 回收最早放入的 Bitmap
+     * @param maxSize 单位字节
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * 复用池最大内存占用 , 单位字节
+     */
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 复用池当前内存占用 , 单位字节
+     */
+    @Override
+    public synchronized int getCurrentSize() {
+        return currentSize;
+    }
+
+    /**
+     * 复用池中的 Bitmap 个数
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * 复用成功次数
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * 复用失败次数
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 因为超过最大内存被回收的 Bitmap 个数
+     */
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * 获取 Bitmap 的内存分配大小
+     * 如果使用的是复用的 Bitmap 对象 , 其占用内存大小是之前的图像分配的内存大小 ;
+     * HARDWARE 格式的像素保存在图形内存中 , 按每个像素 4 字节计算 , 与 getByteCount 无关
+     */
+    static int getAllocationSize(Bitmap bitmap) {
+        if (isHardware(bitmap)) {
+            return bitmap.getWidth() * bitmap.getHeight() * 4;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    /**
+     * 是否是 8.0 的 HARDWARE 格式 , 像素在图形内存中 , 不能读取像素 , 也不能复用
+     */
+    static boolean isHardware(Bitmap bitmap) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && bitmap.getConfig() == Bitmap.Config.HARDWARE;
+    }
+
+    /**
+     * 每个像素占用的字节数
+     */
+    static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            case ARGB_8888:
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * 复用池中的一个 Bitmap , 同时位于分组栈和按放入顺序排列的链表中
+     */
+    private static final class Entry {
+        final Bitmap bitmap;
+        final Bitmap.Config config;
+        final int size;
+        Entry previous;
+        Entry next;
+
+        Entry(Bitmap bitmap, Bitmap.Config config, int size) {
+            this.bitmap = bitmap;
+            this.config = config;
+            this.size = size;
+        }
+    }
+}
@@ -4,38 +4,210 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.util.Log;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Bitmap 尺寸缩小
+ *
+ * 只能整张解码 ; 全景图等超大图像放大查看时 , 使用 {@link TiledBitmapDecoder} 只解码可见区域的分块
  */
 public class BitmapSizeReduce {
     private static final String TAG = "BitmapSizeReduce";
 
+    /**
+     * 解码图片头时最多读取的字节数 , 之后还要 reset 到开头解码像素 , 缓冲区最多扩大到该大小
+     * JPEG 的 EXIF 块最大 64KB , 加上 ICC 等其它块 , 绝大多数图片头都不超过该值 ;
+     * 超过该值的图片头 reset 失败 : 资源和文件重新打开后解码像素 ,
+     * 其它输入流 ( 如磁盘缓存 ) 抛出 IOException , 由调用者当作没有缓存 , 从图片来源重新解码
+     */
+    static final int MARK_LIMIT = 256 * 1024;
+
+    /**
+     * 重新打开图片数据 , 图片头超过 MARK_LIMIT 不能 reset 时使用
+     */
+    interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * 只使用 inSampleSize 缩小时 , 解码得到的 Bitmap 字节数之和
+     */
+    private static final AtomicLong sSampledBytes = new AtomicLong();
+
+    /**
+     * 缩放到目标尺寸后 , 实际解码得到的 Bitmap 字节数之和
+     */
+    private static final AtomicLong sDecodedBytes = new AtomicLong();
+
     /**
      * 获取指定尺寸于鏊求的 Bitmap 对象
-     * 该方法有缺陷 , 计算值的时候没有考虑像素密度
-     * 如果从不同像素密度的资源文件中加载
-     * 可能计算出的值与指定的 maxBitmapWidth maxBitmapHeight 略有出入
+     * 图片按原始像素计算 , 与资源所在目录的像素密度无关 ;
+     * 保持宽高比 , 缩小到刚好能放入 maxBitmapWidth * maxBitmapHeight 的矩形框中 , 图片比矩形框小时不放大
      *
      * @param context           上下文对象
      * @param iamgeResId        要解析的图片资源 id
      * @param maxBitmapWidth    Bitmap 的最大宽度
      * @param maxBitmapHeight   Bitmap 的最大高度
-     * @param hasAlphaChannel   是否包含 ALPHA 通道, 即透明度信息
+     * @param hasAlphaChannel   是否包含 ALPHA 通道, 即透明度信息 , 为 true 时按图片头中的透明度选择 ,
+     *                          为 false 时使用 RGB_565
      * @param inBitmap          复用的 Bitmap, 将新的 Bitmap 对象解析到该 Bitmap 内存中
-     * @return  返回新的 Bitmap 对象
+     * @return  返回新的 Bitmap 对象 , 解码失败时返回 null
      */
     public static Bitmap getResizedBitmap(Context context,
                                           int iamgeResId, int maxBitmapWidth, int maxBitmapHeight,
                                           boolean hasAlphaChannel, Bitmap inBitmap){
+        return getResizedBitmap(context, iamgeResId, maxBitmapWidth, maxBitmapHeight,
+                qualityPolicy(hasAlphaChannel), inBitmap);
+    }
+
+    /**
+     * 获取指定尺寸于鏊求的 Bitmap 对象 , 像素格式由图片头中的透明度信息和 qualityPolicy 决定 ,
+     * 如 {@link BitmapCache#QUALITY_AUTO} 对没有透明度的图片使用 RGB_565
+     * @param qualityPolicy     像素格式选择策略
+     * @see #getResizedBitmap(Context, int, int, int, boolean, Bitmap)
+     */
+    public static Bitmap getResizedBitmap(Context context,
+                                          int iamgeResId, int maxBitmapWidth, int maxBitmapHeight,
+                                          BitmapCache.QualityPolicy qualityPolicy, Bitmap inBitmap){
+        // 用于解析资源
+        final Resources resources = context.getResources();
+        final int resId = iamgeResId;
+        // 一般只打开一次资源 , 图片头和像素从同一个输入流中解码
+        InputStream inputStream = resources.openRawResource(resId);
+        try {
+            return decodeStream(inputStream, maxBitmapWidth, maxBitmapHeight,
+                    qualityPolicy, inBitmap, resources.getDisplayMetrics().densityDpi,
+                    ImageHeaderParser.Alpha.UNKNOWN, new StreamOpener() {
+                        @Override
+                        public InputStream open() {
+                            return resources.openRawResource(resId);
+                        }
+                    });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * 获取指定尺寸于鏊求的 Bitmap 对象 , 从图片文件中解码
+     * @see #getResizedBitmap(Context, int, int, int, boolean, Bitmap)
+     */
+    public static Bitmap getResizedBitmap(Context context,
+                                          String path, int maxBitmapWidth, int maxBitmapHeight,
+                                          boolean hasAlphaChannel, Bitmap inBitmap){
+        return getResizedBitmap(context, path, maxBitmapWidth, maxBitmapHeight,
+                qualityPolicy(hasAlphaChannel), inBitmap);
+    }
+
+    /**
+     * 获取指定尺寸于鏊求的 Bitmap 对象 , 从图片文件中解码 , 像素格式由 qualityPolicy 决定
+     * @see #getResizedBitmap(Context, int, int, int, BitmapCache.QualityPolicy, Bitmap)
+     */
+    public static Bitmap getResizedBitmap(Context context,
+                                          String path, int maxBitmapWidth, int maxBitmapHeight,
+                                          BitmapCache.QualityPolicy qualityPolicy, Bitmap inBitmap){
+        final String file = path;
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            return decodeStream(inputStream, maxBitmapWidth, maxBitmapHeight,
+                    qualityPolicy, inBitmap, context.getResources().getDisplayMetrics().densityDpi,
+                    ImageHeaderParser.Alpha.UNKNOWN, new StreamOpener() {
+                        @Override
+                        public InputStream open() throws IOException {
+                            return new FileInputStream(file);
+                        }
+                    });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * 调用者指定可能有透明度时 , 仍然按 {@link BitmapCache#QUALITY_AUTO} 检查图片头 ,
+     * 没有透明度时固定使用 RGB_565
+     */
+    private static BitmapCache.QualityPolicy qualityPolicy(boolean hasAlphaChannel) {
+        return hasAlphaChannel ? BitmapCache.QUALITY_AUTO
+                : BitmapCache.fixedQuality(Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * 从输入流中解码指定尺寸的 Bitmap , 输入流只读取一次 :
+     * 先解码图片头获取宽高和透明度 , 计算缩放系数 , 然后 reset 到开头 , 从同一个输入流中解码像素 ;
+     * 输入流由调用者关闭 , 如资源 , 文件 , DiskLruCache.Snapshot 的输入流
+     *
+     * @param inputStream       图片数据 , 不需要支持 mark / reset , 这里会添加可以复用缓冲区的 BufferedInputStream
+     * @param maxBitmapWidth    Bitmap 的最大宽度
+     * @param maxBitmapHeight   Bitmap 的最大高度
+     * @param qualityPolicy     像素格式选择策略
+     * @param inBitmap          复用的 Bitmap, 将新的 Bitmap 对象解析到该 Bitmap 内存中
+     * @param decodeDensityDpi  Bitmap 的像素密度 , 一般是屏幕像素密度
+     * @return  返回新的 Bitmap 对象 , 解码失败时返回 null
+     * @throws IOException 读取失败 , 或者图片头超过 {@link #MARK_LIMIT} 不能 reset
+     */
+    public static Bitmap decodeStream(InputStream inputStream,
+                                      int maxBitmapWidth, int maxBitmapHeight,
+                                      BitmapCache.QualityPolicy qualityPolicy, Bitmap inBitmap,
+                                      int decodeDensityDpi) throws IOException {
+        return decodeStream(inputStream, maxBitmapWidth, maxBitmapHeight,
+                qualityPolicy, inBitmap, decodeDensityDpi, ImageHeaderParser.Alpha.UNKNOWN, null);
+    }
+
+    /**
+     * 调用者已经知道图像格式时使用 , 如磁盘缓存中记录的格式
+     * @param alpha 由格式决定的透明度 , 如 JPEG 一定没有透明度 , 不再读取图片头 ; 为 UNKNOWN 时读取图片头
+     * @see #decodeStream(InputStream, int, int, BitmapCache.QualityPolicy, Bitmap, int)
+     */
+    static Bitmap decodeStream(InputStream inputStream,
+                               int maxBitmapWidth, int maxBitmapHeight,
+                               BitmapCache.QualityPolicy qualityPolicy, Bitmap inBitmap,
+                               int decodeDensityDpi, ImageHeaderParser.Alpha alpha)
+            throws IOException {
+        return decodeStream(inputStream, maxBitmapWidth, maxBitmapHeight,
+                qualityPolicy, inBitmap, decodeDensityDpi, alpha, null);
+    }
+
+    /**
+     * @param reopener 图片头超过 MARK_LIMIT 时重新打开图片解码像素 , 为 null 时抛出 IOException
+     */
+    private static Bitmap decodeStream(InputStream inputStream,
+                                       int maxBitmapWidth, int maxBitmapHeight,
+                                       BitmapCache.QualityPolicy qualityPolicy, Bitmap inBitmap,
+                                       int decodeDensityDpi, ImageHeaderParser.Alpha alpha,
+                                       StreamOpener reopener)
+            throws IOException {
+        RecyclableBufferedInputStream bufferedStream = new RecyclableBufferedInputStream(inputStream);
+        try {
+            return decodeStream(bufferedStream, maxBitmapWidth, maxBitmapHeight,
+                    qualityPolicy, inBitmap, decodeDensityDpi, alpha, reopener);
+        } finally {
+            // 只回收缓冲区 , 不关闭调用者的输入流
+            bufferedStream.releaseBuffer();
+        }
+    }
+
+    private static Bitmap decodeStream(RecyclableBufferedInputStream inputStream,
+                                       int maxBitmapWidth, int maxBitmapHeight,
+                                       BitmapCache.QualityPolicy qualityPolicy, Bitmap inBitmap,
+                                       int decodeDensityDpi, ImageHeaderParser.Alpha alpha,
+                                       StreamOpener reopener)
+            throws IOException {
 
         // 0. 声明方法中使用的局部变量
 
-        // 用于解析资源
-        Resources resources = context.getResources();
-        // 为图像指定解码的 像素密度
-        int decodeDensityDpi = resources.getDisplayMetrics().densityDpi;
         // Bitmap 图片加载选项
         BitmapFactory.Options options = new BitmapFactory.Options();
         // 图片宽度
@@ -50,6 +222,7 @@ public class BitmapSizeReduce {
         int inSampleSize = 1;
 
         // 1. 解析图片参数 : 该阶段不解析所有的数据 , 否则会将实际的图片数据解析到内存中 , 这里只解析图片的宽高信息
+        //    图片头读入缓冲区 , 之后 reset 到开头 , 不需要再次打开图片
 
         /*
             设置 inJustDecodeBounds 为 true , 解析器会返回 null
@@ -59,7 +232,8 @@ public class BitmapSizeReduce {
          */
         options.inJustDecodeBounds = true;
 
-        // 设置图片的来源方向的像素密度 , 如设置
+        // 来源和目标方向设置相同的像素密度 , 不按资源所在目录缩放 , 得到的是图片的原始像素宽高
+        // 设置图片的来源方向的像素密度
         options.inDensity = decodeDensityDpi;
         // 设置图片的目标方向的像素密度
         options.inTargetDensity = decodeDensityDpi;
@@ -72,11 +246,30 @@ public class BitmapSizeReduce {
             如 outWidth , outHeight , outConfig , outColorSpace 等 ;
             可以获取该图片的宽高 , 像素格式 , 颜色空间等信息
          */
-        BitmapFactory.decodeResource(resources, iamgeResId, options);
+        // 记录当前位置 , 解码图片头之后回到这里
+        inputStream.mark(MARK_LIMIT);
+        // 先从文件头中读取透明度标志 , 最多读取一个缓冲区 ; 调用者已经知道时不再读取
+        if (alpha == ImageHeaderParser.Alpha.UNKNOWN) {
+            alpha = ImageHeaderParser.getAlpha(inputStream);
+            inputStream.reset();
+        }
+        BitmapFactory.decodeStream(inputStream, null, options);
+        // 解码像素使用的输入流
+        InputStream pixelStream = inputStream;
+        try {
+            inputStream.resetAndUnmark();
+        } catch (IOException e) {
+            // 图片头超过 MARK_LIMIT , 开头的数据已经不在缓冲区中 , 宽高已经读取到 , 重新打开后只解码像素
+            if (reopener == null) {
+                throw e;
+            }
+            Log.w(TAG, "decodeStream header exceeds MARK_LIMIT , reopen");
+            pixelStream = reopener.open();
+        }
 
-        // 获取 iamgeResId 图片资源对应的图片宽度
+        // 获取图片宽度
         imageWidth = options.outWidth;
-        // 获取 iamgeResId 图片资源对应的图片高度
+        // 获取图片高度
         imageHeight = options.outHeight;
         // 打印解码后的宽高值
         Log.w(TAG, "getResizedBitmap options.outWidth=" + options.outWidth +
@@ -87,21 +280,33 @@ public class BitmapSizeReduce {
         // 2. 计算图片缩小比例
 
         /*
-            计算缩小的比例
+            计算目标尺寸
             宽度和高度只要存在一个大于限定的最大值时 , 就进行缩小操作
             要求指定的图片必须能放到 maxBitmapWidth 宽度 , maxBitmapHeight 高度的矩形框中
-            最终要求就是 宽度必须小于 maxBitmapWidth, 同时高度也要小于 maxBitmapHeight
+            按宽高中缩小得更多的一边计算缩放比例 , 保持宽高比
          */
+        int targetWidth = imageWidth;
+        int targetHeight = imageHeight;
         if(imageWidth > maxBitmapWidth || imageHeight > maxBitmapHeight){
-            // 如果需要启动缩小功能 , 那么进入如下循环 , 试探最小的缩放比例是多少
-            while ( imageWidth / inSampleSize > maxBitmapWidth ||
-                    imageHeight / inSampleSize > maxBitmapHeight ){
+            double scale = Math.min((double) maxBitmapWidth / imageWidth,
+                    (double) maxBitmapHeight / imageHeight);
+            targetWidth = Math.max(1, (int) Math.round(imageWidth * scale));
+            targetHeight = Math.max(1, (int) Math.round(imageHeight * scale));
+
+            /*
+                inSampleSize 在解码时按 2 的幂次方缩小 , 速度最快 , 内存也最少 ;
+                这里找出缩小后宽高都不小于目标尺寸的最大的 inSampleSize ,
+                剩下的缩放由下面的 inDensity / inTargetDensity 在同一次解码中完成
+             */
+            while ( imageWidth / (inSampleSize * 2) >= targetWidth &&
+                    imageHeight / (inSampleSize * 2) >= targetHeight ){
                 // 注意该值必须是 2 的幂次方值 , 1 , 2 , 4 , 8 , 16 , 32 , 64
                 inSampleSize = inSampleSize * 2;
             }
 
-            // 执行到此处 , 说明已经找到了最小的缩放比例 , 打印下最小比例
-            Log.w(TAG, "getResizedBitmap inSampleSize=" + inSampleSize);
+            // 执行到此处 , 说明已经找到了缩放比例 , 打印下缩放比例和目标尺寸
+            Log.w(TAG, "getResizedBitmap inSampleSize=" + inSampleSize +
+                    " , target=" + targetWidth + "x" + targetHeight);
         }
 
 
@@ -122,17 +327,45 @@ public class BitmapSizeReduce {
          */
         options.inSampleSize = inSampleSize;
 
-        // 用户设置的是否保留透明度选项 , 如果不保留透明度选项 , 设置像素格式为 RGB_565
-        // 每个像素占 2 字节内存
-        if (!hasAlphaChannel){
-            /*
-                指定配置解码 : 如果配置为非空 , 解码器会将 Bitmap 的像素解码成该指定的非空像素格式 ;
-                自动匹配配置解码 : 如果该配置为空 , 或者像素配置无法满足 , 解码器会尝试根据系统的屏幕深度 ,
-                源图像的特点 , 选择合适的像素格式 ;
-                如果源图像有透明度通道 , 那么自动匹配的默认配置也有对应通道 ;
-                默认配置 : 默认使用 ARGB_8888 进行解码
-             */
-            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        /*
+            子采样之后 , 解码器再按 inTargetDensity / inDensity 缩放 ;
+            子采样后的宽度是 imageWidth / inSampleSize ,
+            因此设置 inDensity 为 imageWidth , inTargetDensity 为 targetWidth * inSampleSize ,
+            最终宽度就是 targetWidth , 不需要先解码出较大的 Bitmap 再创建缩小的 Bitmap
+         */
+        if (targetWidth * inSampleSize != imageWidth) {
+            options.inScaled = true;
+            options.inDensity = imageWidth;
+            options.inTargetDensity = targetWidth * inSampleSize;
+        } else {
+            options.inScaled = false;
+        }
+
+        // 根据图片是否有透明度 , 由策略选择像素格式 ; 没有透明度时一般使用 RGB_565 , 每个像素占 2 字节内存
+        /*
+            指定配置解码 : 如果配置为非空 , 解码器会将 Bitmap 的像素解码成该指定的非空像素格式 ;
+            自动匹配配置解码 : 如果该配置为空 , 或者像素配置无法满足 , 解码器会尝试根据系统的屏幕深度 ,
+            源图像的特点 , 选择合适的像素格式 ;
+            如果源图像有透明度通道 , 那么自动匹配的默认配置也有对应通道 ;
+            默认配置 : 默认使用 ARGB_8888 进行解码
+         */
+        if (qualityPolicy == null) {
+            qualityPolicy = BitmapCache.QUALITY_HIGH;
+        }
+        Bitmap.Config config = qualityPolicy.getConfig(targetWidth, targetHeight,
+                hasAlpha(alpha, options));
+        /*
+            HARDWARE 格式的像素在图形内存中 , 不能复用 inBitmap , 也不能是可变的 ;
+            调用者传入 inBitmap 说明需要可以复用的普通 Bitmap , 使用 inBitmap 的像素格式解码
+         */
+        boolean hardware = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && config == Bitmap.Config.HARDWARE;
+        if (hardware && inBitmap != null) {
+            config = inBitmap.getConfig();
+            hardware = false;
+        }
+        if (config != null) {
+            options.inPreferredConfig = config;
         }
 
         /*
@@ -143,9 +376,9 @@ public class BitmapSizeReduce {
         options.inJustDecodeBounds = false;
 
         /*
-            设置图片可以被复用
+            设置图片可以被复用 , HARDWARE 格式总是不可变的
          */
-        options.inMutable = true;
+        options.inMutable = !hardware;
 
         /*
             如果设置了一个 Bitmap 对象给 inBitmap 参数
@@ -177,11 +410,87 @@ public class BitmapSizeReduce {
             另外被复用的图像的 像素格式 Config ( 如 RGB_565 ) 会覆盖设置的 inPreferredConfig 参数
          */
         options.inBitmap = inBitmap;
+        // 4.4 以下的系统中 , 缩放解码 , 或者宽高不同时不能复用
+        if (inBitmap != null && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT
+                && (inSampleSize != 1 || options.inScaled
+                    || inBitmap.getWidth() != targetWidth || inBitmap.getHeight() != targetHeight)) {
+            options.inBitmap = null;
+        }
 
 
         // 4. 解码图片 , 并返回被解码的图片
 
-        return BitmapFactory.decodeResource(resources, iamgeResId, options);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(pixelStream, null, options);
+        } finally {
+            if (pixelStream != inputStream) {
+                closeQuietly(pixelStream);
+            }
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        // 解码时使用 inTargetDensity 作为 Bitmap 的像素密度 , 改回屏幕像素密度 , 显示时不再缩放
+        bitmap.setDensity(decodeDensityDpi);
+        recordSavings(bitmap, imageWidth / inSampleSize, imageHeight / inSampleSize);
+        return bitmap;
+    }
+
+    /**
+     * 图片是否可能有透明度 , 不能确定时按有透明度处理
+     * @param alpha 从文件头中读取的透明度标志
+     */
+    private static boolean hasAlpha(ImageHeaderParser.Alpha alpha, BitmapFactory.Options options) {
+        if (alpha != ImageHeaderParser.Alpha.UNKNOWN) {
+            return alpha == ImageHeaderParser.Alpha.TRANSLUCENT;
+        }
+        // JPEG 没有透明度
+        if ("image/jpeg".equals(options.outMimeType)) {
+            return false;
+        }
+        // 8.0 以上解码图片头时会给出解码器选择的像素格式
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.O
+                || options.outConfig != Bitmap.Config.RGB_565;
+    }
+
+    static void closeQuietly(InputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 统计缩放到目标尺寸节省的内存 , 与只使用 inSampleSize 缩小相比
+     */
+    private static void recordSavings(Bitmap bitmap, int sampledWidth, int sampledHeight) {
+        long sampledBytes = (long) sampledWidth * sampledHeight
+                * BitmapReusePool.getBytesPerPixel(bitmap.getConfig() == null
+                        ? Bitmap.Config.ARGB_8888 : bitmap.getConfig());
+        long decodedBytes = bitmap.getByteCount();
+        sSampledBytes.addAndGet(sampledBytes);
+        sDecodedBytes.addAndGet(decodedBytes);
+        Log.w(TAG, "getResizedBitmap " + bitmap.getWidth() + "x" + bitmap.getHeight() +
+                " , " + decodedBytes + " bytes , saved " + (sampledBytes - decodedBytes) + " bytes");
+    }
+
+    /**
+     * 与只使用 inSampleSize 缩小相比 , 缩放到目标尺寸累计节省的字节数
+     */
+    public static long getSavedBytes() {
+        return sSampledBytes.get() - sDecodedBytes.get();
+    }
+
+    /**
+     * 与只使用 inSampleSize 缩小相比 , 缩放到目标尺寸后的字节数比例 , 没有解码过图片时返回 1
+     */
+    public static double getSizeRatio() {
+        long sampled = sSampledBytes.get();
+        return sampled == 0 ? 1 : (double) sDecodedBytes.get() / sampled;
     }
 
 }
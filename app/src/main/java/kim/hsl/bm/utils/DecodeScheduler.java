@@ -0,0 +1,195 @@
+package kim.hsl.bm.utils;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bitmap 加载任务调度器
+ *
+ * 磁盘读写和解码分别使用各自的线程池 , 读取磁盘的线程不会占用解码需要的 CPU , 解码也不会阻塞磁盘命中 ;
+ * 每个线程池的任务按优先级分为 3 个队列 : 正在显示 , 预加载 , 后台 ,
+ * 只有高优先级的队列为空时才执行低优先级的任务 ;
+ * 同一个优先级中后提交的任务先执行 , 快速滑动时 , 刚滑到屏幕上的图片先加载 ,
+ * 已经滑出屏幕的图片在队列中等待 , 一般会在执行之前被取消
+ */
+public class DecodeScheduler {
+    private static final String TAG = "DecodeScheduler";
+
+    /**
+     * 任务优先级 , 按声明顺序从高到低
+     */
+    public enum Priority {
+        /** 正在显示的图片 */
+        VISIBLE,
+        /** 即将显示的图片 , 如列表滑动方向上的下几个条目 */
+        PREFETCH,
+        /** 后台任务 , 如预先填充磁盘缓存 */
+        BACKGROUND
+    }
+
+    /**
+     * 空闲线程保留的时间
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static DecodeScheduler sDefault;
+
+    /**
+     * 获取进程内共享的调度器 : 2 个磁盘线程 , 解码线程个数与 CPU 核数相同
+     */
+    public static synchronized DecodeScheduler getDefault() {
+        if (sDefault == null) {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            sDefault = new DecodeScheduler(2, Math.max(1, cpus));
+        }
+        return sDefault;
+    }
+
+    /**
+     * 任务提交顺序 , 同一个优先级中 , 序号大的先执行
+     */
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final ThreadPoolExecutor mDiskExecutor;
+    private final ThreadPoolExecutor mDecodeExecutor;
+
+    /**
+     * @param diskThreads   磁盘线程个数
+     * @param decodeThreads 解码线程个数
+     */
+    public DecodeScheduler(int diskThreads, int decodeThreads) {
+        mDiskExecutor = newExecutor("disk", diskThreads);
+        mDecodeExecutor = newExecutor("decode", decodeThreads);
+    }
+
+    private static ThreadPoolExecutor newExecutor(final String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(TAG + " " + name + " " + mCount.incrementAndGet()) {
+                            @Override
+                            public void run() {
+                                android.os.Process.setThreadPriority(
+                                        android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        };
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 提交读写磁盘的任务
+     */
+    public Task submitDisk(Priority priority, Runnable runnable) {
+        return submit(mDiskExecutor, priority, runnable);
+    }
+
+    /**
+     * 提交解码任务
+     */
+    public Task submitDecode(Priority priority, Runnable runnable) {
+        return submit(mDecodeExecutor, priority, runnable);
+    }
+
+    private Task submit(ThreadPoolExecutor executor, Priority priority, Runnable runnable) {
+        Task task = new Task(executor, priority, mSequence.incrementAndGet(), runnable);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * 等待执行的磁盘任务个数
+     */
+    public int getQueuedDiskCount() {
+        return mDiskExecutor.getQueue().size();
+    }
+
+    /**
+     * 等待执行的解码任务个数
+     */
+    public int getQueuedDecodeCount() {
+        return mDecodeExecutor.getQueue().size();
+    }
+
+    /**
+     * 不再接受新的任务 , 丢弃还没有执行的任务
+     */
+    public void shutdown() {
+        mDiskExecutor.shutdownNow();
+        mDecodeExecutor.shutdownNow();
+    }
+
+    /**
+     * 提交到调度器中的任务 , 还没有执行时可以取消 , 或者修改优先级
+     */
+    public final class Task implements Runnable, Comparable<Task> {
+        private final ThreadPoolExecutor mExecutor;
+        private final Runnable mRunnable;
+        private volatile Priority mPriority;
+        private volatile long mSequence;
+
+        Task(ThreadPoolExecutor executor, Priority priority, long sequence, Runnable runnable) {
+            mExecutor = executor;
+            mPriority = priority;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+
+        /**
+         * 优先级高的在前 , 同一个优先级中 , 后提交的在前
+         */
+        @Override
+        public int compareTo(Task other) {
+            int result = mPriority.compareTo(other.mPriority);
+            if (result != 0) {
+                return result;
+            }
+            return mSequence > other.mSequence ? -1 : (mSequence < other.mSequence ? 1 : 0);
+        }
+
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * 从队列中移除 , 不再执行
+         * @return 已经开始执行 , 或者已经被移除时返回 false
+         */
+        public boolean cancel() {
+            return mExecutor.remove(this);
+        }
+
+        /**
+         * 修改优先级 , 并作为最新提交的任务重新排队
+         * @return 已经开始执行 , 或者已经被取消时返回 false
+         */
+        public boolean setPriority(Priority priority) {
+            // 在队列中时不能修改比较的字段 , 先移除再重新放入
+            if (!mExecutor.remove(this)) {
+                return false;
+            }
+            mPriority = priority;
+            mSequence = DecodeScheduler.this.mSequence.incrementAndGet();
+            mExecutor.execute(this);
+            return true;
+        }
+    }
+}
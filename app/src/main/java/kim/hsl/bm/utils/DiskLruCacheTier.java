@@ -0,0 +1,616 @@
+package kim.hsl.bm.utils;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import kim.hsl.bm.BuildConfig;
+import kim.hsl.bm.diskcache.DiskLruCache;
+
+/**
+ * 默认的磁盘缓存 , 将 Bitmap 保存到 DiskLruCache 中
+ *
+ * 每个 key 对应 1 个值 :
+ *  - 第 1 个字节 : 图像格式 {@link Format#code} , 读取时先检查格式 , 不认识的格式当作没有缓存 ;
+ *                  JPEG 一定没有透明度 , 解码时不再从图片头中读取透明度
+ *  - 之后 : 图像数据 , 原始的编码数据 , 或者按 {@link Format} 重新编码的数据
+ * 格式与数据在同一个文件中 , 不需要为每个 key 再创建一个文件
+ *
+ * 另外可以使用一个单独的 DiskLruCache 保存小图像的原始像素 , 即 {@link Format#RAW} 格式 ,
+ * 参考 {@link #setRawCache(DiskLruCache, int)} ; 读取时内存映射文件 , 直接复制到 Bitmap 中 , 不需要解码 ;
+ * 原始像素比编码数据大很多 , 使用单独的缓存大小 , 被淘汰后仍然可以从编码数据中解码
+ */
+public class DiskLruCacheTier implements BitmapCache.DiskTier {
+
+    /**
+     * 图像格式和图像数据
+     */
+    static final int VALUE_DATA = 0;
+
+    /**
+     * 编码写出时的缓冲区大小
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * RAW 格式的文件头 : 宽度 , 高度 , 像素格式编号 , 每行字节数 , 是否有透明度 , 各 4 字节
+     */
+    static final int RAW_HEADER_SIZE = 20;
+
+    /**
+     * RAW 文件头中的像素格式编号 , 写入文件后不能修改 ;
+     * 不使用 Bitmap.Config 的 ordinal , 不同版本的系统可能增加或者调整枚举值
+     */
+    private static final int RAW_CONFIG_ALPHA_8 = 1;
+    private static final int RAW_CONFIG_RGB_565 = 2;
+    private static final int RAW_CONFIG_ARGB_8888 = 3;
+
+    /**
+     * 磁盘缓存中保存的图像格式
+     */
+    public enum Format {
+        /** 下载或者读取到的原始编码数据 , 没有重新编码 */
+        SOURCE(1, null),
+        JPEG(2, Bitmap.CompressFormat.JPEG),
+        PNG(3, Bitmap.CompressFormat.PNG),
+        WEBP(4, Bitmap.CompressFormat.WEBP),
+        /** 原始像素 , 只保存在单独的原始像素缓存中 */
+        RAW(5, null);
+
+        /**
+         * 格式编号 , 写在图像数据之前的 1 个字节
+         */
+        final int code;
+
+        /**
+         * 重新编码使用的格式 , SOURCE 为 null
+         */
+        final Bitmap.CompressFormat compressFormat;
+
+        Format(int code, Bitmap.CompressFormat compressFormat) {
+            this.code = code;
+            this.compressFormat = compressFormat;
+        }
+
+        /**
+         * 根据格式编号获取格式 , 不认识时返回 null
+         */
+        static Format fromCode(int code) {
+            for (Format format : values()) {
+                if (format.code == code) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 磁盘缓存
+     */
+    private final DiskLruCache mDiskLruCache;
+
+    /**
+     * 重新编码 Bitmap 使用的格式 , 为 null 时自动选择 : 有透明度时使用 PNG , 否则使用 JPEG
+     */
+    private final Format mFormat;
+
+    /**
+     * 重新编码的质量 , 0 ~ 100 , PNG 忽略该值
+     */
+    private final int mQuality;
+
+    /**
+     * 保存原始像素的磁盘缓存 , 为 null 时不保存原始像素
+     */
+    private volatile DiskLruCache mRawCache;
+
+    /**
+     * 宽高都不超过该值的 Bitmap 才保存原始像素
+     */
+    private volatile int mRawMaxDimension;
+
+    /**
+     * 读取原始像素时 , 从复用池中获取 Bitmap , 可以为 null
+     */
+    private volatile BitmapCache.PoolTier mReusePool;
+
+    /**
+     * 有透明度的 Bitmap 使用 PNG , 否则使用质量为 90 的 JPEG
+     * @param diskLruCache 必须使用 1 个值打开 , 参考 {@link #open(File, long)}
+     */
+    public DiskLruCacheTier(DiskLruCache diskLruCache) {
+        this(diskLruCache, null, 90);
+    }
+
+    /**
+     * @param diskLruCache 必须使用 1 个值打开 , 参考 {@link #open(File, long)}
+     * @param format       重新编码 Bitmap 使用的格式 , 为 null 时自动选择 , 不能是 SOURCE
+     * @param quality      重新编码的质量 , 0 ~ 100
+     */
+    public DiskLruCacheTier(DiskLruCache diskLruCache, Format format, int quality) {
+        if (format == Format.SOURCE) {
+            throw new IllegalArgumentException("SOURCE cannot encode a bitmap");
+        }
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("quality must be 0..100");
+        }
+        mDiskLruCache = diskLruCache;
+        mFormat = format;
+        mQuality = quality;
+    }
+
+    /**
+     * 打开磁盘缓存 , 自动选择编码格式
+     * @param directory 磁盘缓存目录
+     * @param maxSize   缓存大小 , 单位字节
+     */
+    public static DiskLruCacheTier open(File directory, long maxSize) throws IOException {
+        return open(directory, maxSize, null, 90);
+    }
+
+    /**
+     * 打开磁盘缓存
+     * @param directory 磁盘缓存目录
+     * @param maxSize   缓存大小 , 单位字节
+     * @param format    重新编码 Bitmap 使用的格式 , 为 null 时自动选择
+     * @param quality   重新编码的质量 , 0 ~ 100
+     */
+    public static DiskLruCacheTier open(File directory, long maxSize, Format format, int quality)
+            throws IOException {
+        /*
+            初始化磁盘缓存
+            需要传入磁盘缓存目录文件
+            APP 版本
+            缓存值的个数 , 图像格式和图像数据保存在同一个值中
+            缓存大小 , 单位字节 , 这个最重要
+            打开选项 , 索引分段加锁 , 不同 key 的读写可以并行
+            日志批量提交 , 最多延迟 100 毫秒 , 多次写入合并为一次磁盘写入
+         */
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.concurrencyLevel = 8;
+        options.journalFlushLatencyMillis = 100;
+        return new DiskLruCacheTier(DiskLruCache.open(
+                directory,
+                BuildConfig.VERSION_CODE,
+                1,
+                maxSize,
+                options
+        ), format, quality);
+    }
+
+    /**
+     * 获取 DiskLruCache , 可以查看其大小 , 修改最大值等
+     */
+    public DiskLruCache getDiskLruCache() {
+        return mDiskLruCache;
+    }
+
+    /**
+     * 启用原始像素缓存 , 宽高都不超过 maxDimension 的 Bitmap 同时保存原始像素
+     * @param rawCache     使用 1 个值打开 , 目录不能在主缓存的目录中 , 参考 {@link #openRawCache(File, long)}
+     * @param maxDimension 如 128 , 只有图标 , 头像这样的小图像保存原始像素
+     */
+    public void setRawCache(DiskLruCache rawCache, int maxDimension) {
+        mRawMaxDimension = maxDimension;
+        mRawCache = rawCache;
+    }
+
+    /**
+     * 打开原始像素缓存
+     * @param directory 缓存目录 , 不能在主缓存的目录中 , 主缓存清空目录时会删除
+     * @param maxSize   缓存大小 , 单位字节 , 与主缓存分开计算
+     */
+    public static DiskLruCache openRawCache(File directory, long maxSize) throws IOException {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.concurrencyLevel = 8;
+        options.journalFlushLatencyMillis = 100;
+        return DiskLruCache.open(directory, BuildConfig.VERSION_CODE, 1, maxSize, options);
+    }
+
+    /**
+     * 读取原始像素时 , 调用者没有传入 inBitmap , 从该复用池中获取 Bitmap
+     */
+    public void setReusePool(BitmapCache.PoolTier reusePool) {
+        mReusePool = reusePool;
+    }
+
+    /**
+     * 选择重新编码该 Bitmap 使用的格式
+     */
+    private Format chooseFormat(Bitmap bitmap) {
+        if (mFormat != null) {
+            // 4.2 以下的 WEBP 不支持透明度
+            if (mFormat == Format.WEBP && bitmap.hasAlpha()
+                    && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                return Format.PNG;
+            }
+            return mFormat;
+        }
+        return bitmap.hasAlpha() ? Format.PNG : Format.JPEG;
+    }
+
+    /**
+     * 将 Bitmap 编码后写入磁盘缓存 , 编码数据直接写入 Editor 的输出流 , 不在内存中保存
+     */
+    @Override
+    public void put(String key, Bitmap bitmap) throws IOException {
+        DiskLruCache rawCache = mRawCache;
+        if (rawCache != null && !(bitmap.getWidth() <= mRawMaxDimension
+                && bitmap.getHeight() <= mRawMaxDimension && putRaw(rawCache, key, bitmap))) {
+            // 之前保存的原始像素已经过期 , HARDWARE 等不能读取像素的 Bitmap 只保存编码数据
+            rawCache.remove(key);
+        }
+        Format format = chooseFormat(bitmap);
+        // 该用法与 SharedPreference 用法类似
+        // 该 key 正在被写入时返回 null , 不进行任何处理
+        DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+        if(editor == null){
+            return;
+        }
+        OutputStream outputStream = null;
+        try {
+            // 这里的 0 表示获取该 key 对应的第 0 个文件
+            // 每个 可以 可以对应多个文件 , 这个值是创建 DiskLruCache 时传入的 valueCount 参数
+            outputStream = new BufferedOutputStream(editor.newOutputStream(VALUE_DATA), BUFFER_SIZE);
+            outputStream.write(format.code);
+            // 写出 Bitmap 对象到文件中
+            if (!bitmap.compress(format.compressFormat, mQuality, outputStream)) {
+                return; // 编码失败 , 放弃本次编辑
+            }
+            outputStream.close();
+            outputStream = null;
+
+            // 该用法与 SharedPreference 用法类似
+            editor.commit();
+        } finally {
+            // 写入失败时 , 放弃本次编辑
+            editor.abortUnlessCommitted();
+            if(outputStream != null){
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 将原始的编码数据写入磁盘缓存 , 不需要解码再重新编码
+     */
+    @Override
+    public void putSource(String key, InputStream source) throws IOException {
+        DiskLruCache rawCache = mRawCache;
+        if (rawCache != null) {
+            // 之前保存的原始像素已经过期
+            rawCache.remove(key);
+        }
+        DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+        if(editor == null){
+            return;
+        }
+        OutputStream outputStream = null;
+        try {
+            outputStream = editor.newOutputStream(VALUE_DATA);
+            outputStream.write(Format.SOURCE.code);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = source.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+            outputStream.close();
+            outputStream = null;
+            editor.commit();
+        } finally {
+            editor.abortUnlessCommitted();
+            if(outputStream != null){
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 将 Bitmap 的原始像素写入原始像素缓存 , 像素格式未知时不写入
+     * @return 没有写入时返回 false
+     */
+    private static boolean putRaw(DiskLruCache rawCache, String key, Bitmap bitmap) throws IOException {
+        Bitmap.Config config = bitmap.getConfig();
+        int configCode = rawConfigCode(config);
+        if (configCode == 0 || bitmap.isRecycled()) {
+            return false;
+        }
+        int stride = bitmap.getRowBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(RAW_HEADER_SIZE + stride * bitmap.getHeight());
+        buffer.putInt(bitmap.getWidth());
+        buffer.putInt(bitmap.getHeight());
+        buffer.putInt(configCode);
+        buffer.putInt(stride);
+        buffer.putInt(bitmap.hasAlpha() ? 1 : 0);
+        bitmap.copyPixelsToBuffer(buffer);
+
+        DiskLruCache.Editor editor = rawCache.edit(key);
+        if (editor == null) {
+            return false;
+        }
+        OutputStream outputStream = null;
+        try {
+            outputStream = editor.newOutputStream(0);
+            outputStream.write(buffer.array(), 0, buffer.position());
+            outputStream.close();
+            outputStream = null;
+            editor.commit();
+            return true;
+        } finally {
+            editor.abortUnlessCommitted();
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 像素格式在 RAW 文件头中的编号 , 只有这些格式的像素可以直接复制 ,
+     * 8.0 的 HARDWARE 格式不能读取像素
+     * @return 不能保存原始像素时返回 0
+     */
+    private static int rawConfigCode(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return RAW_CONFIG_ALPHA_8;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return RAW_CONFIG_RGB_565;
+        } else if (config == Bitmap.Config.ARGB_8888) {
+            return RAW_CONFIG_ARGB_8888;
+        }
+        return 0;
+    }
+
+    /**
+     * RAW 文件头中的编号对应的像素格式
+     * @return 不认识的编号返回 null
+     */
+    private static Bitmap.Config rawConfig(int code) {
+        switch (code) {
+            case RAW_CONFIG_ALPHA_8:
+                return Bitmap.Config.ALPHA_8;
+            case RAW_CONFIG_RGB_565:
+                return Bitmap.Config.RGB_565;
+            case RAW_CONFIG_ARGB_8888:
+                return Bitmap.Config.ARGB_8888;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 从原始像素缓存中读取 , 内存映射文件后直接复制到 Bitmap 中
+     * 原始像素不能缩小 , 也不能转换像素格式 , 尺寸超出 maxWidth / maxHeight ,
+     * 或者像素格式与 qualityPolicy 选择的不同时 , 由调用者从编码数据中解码
+     * @return 没有该 key , 文件头不正确 , 或者不满足上述要求时返回 null
+     */
+    private Bitmap getRaw(DiskLruCache rawCache, String key, int maxWidth, int maxHeight,
+                          BitmapCache.QualityPolicy qualityPolicy, Bitmap inBitmap) throws IOException {
+        DiskLruCache.Snapshot snapshot = rawCache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        ByteBuffer buffer;
+        try {
+            if (snapshot.getLength(0) < RAW_HEADER_SIZE) {
+                return null;
+            }
+            // 关闭 Snapshot 之后 , 内存映射仍然有效
+            buffer = snapshot.map(0);
+        } finally {
+            snapshot.close();
+        }
+
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        Bitmap.Config config = rawConfig(buffer.getInt());
+        int stride = buffer.getInt();
+        boolean hasAlpha = buffer.getInt() != 0;
+        if (width <= 0 || height <= 0 || config == null
+                || buffer.remaining() != (long) stride * height) {
+            return null;
+        }
+        if (width > maxWidth || height > maxHeight
+                || !matchesPolicy(config, width, height, hasAlpha, qualityPolicy, inBitmap)) {
+            return null;
+        }
+        // 每行字节数不同 , 不能直接复制 , 在获取 Bitmap 之前检查 , 不会改变 inBitmap 的宽高
+        if (stride != width * BitmapReusePool.getBytesPerPixel(config)) {
+            return null;
+        }
+
+        Bitmap bitmap = obtainRawBitmap(width, height, config, inBitmap);
+        if (bitmap.getRowBytes() != stride) {
+            // 有对齐填充的设备 , 从编码数据中解码 ; 从复用池中取出的 Bitmap 放回复用池
+            releaseRawBitmap(bitmap, inBitmap);
+            return null;
+        }
+        bitmap.copyPixelsFromBuffer(buffer);
+        bitmap.setHasAlpha(hasAlpha);
+        return bitmap;
+    }
+
+    /**
+     * 原始像素的像素格式是否就是解码时 qualityPolicy 会选择的像素格式 ,
+     * 与 BitmapSizeReduce 一样 , 传入 inBitmap 时 HARDWARE 使用 inBitmap 的像素格式
+     */
+    private static boolean matchesPolicy(Bitmap.Config config, int width, int height, boolean hasAlpha,
+                                         BitmapCache.QualityPolicy qualityPolicy, Bitmap inBitmap) {
+        if (qualityPolicy == null) {
+            qualityPolicy = BitmapCache.QUALITY_HIGH;
+        }
+        Bitmap.Config wanted = qualityPolicy.getConfig(width, height, hasAlpha);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && wanted == Bitmap.Config.HARDWARE
+                && inBitmap != null) {
+            wanted = inBitmap.getConfig();
+        }
+        // 为 null 时由解码器选择 , 原始像素的格式就是之前解码时选择的
+        return wanted == null || wanted == config;
+    }
+
+    /**
+     * 原始像素没有复制到该 Bitmap 中 , 不是调用者传入的 inBitmap 时放回复用池 ;
+     * 调用者的 inBitmap 可能已经被 reconfigure , 4.4 以后解码时按内存大小复用 , 仍然可以使用
+     */
+    private void releaseRawBitmap(Bitmap bitmap, Bitmap inBitmap) {
+        BitmapCache.PoolTier pool = mReusePool;
+        if (bitmap != inBitmap && pool != null) {
+            pool.put(bitmap);
+        }
+    }
+
+    /**
+     * 获取用于保存原始像素的可变 Bitmap
+     * 优先使用调用者传入的 inBitmap , 其次从复用池中获取 , 都不能使用时创建新的 Bitmap
+     */
+    private Bitmap obtainRawBitmap(int width, int height, Bitmap.Config config, Bitmap inBitmap) {
+        if (canReuse(inBitmap, width, height, config)) {
+            return inBitmap;
+        }
+        BitmapCache.PoolTier pool = mReusePool;
+        if (pool != null && Build.VERSION.SDK_INT > Build.VERSION_CODES.GINGERBREAD_MR1) {
+            Bitmap bitmap = pool.get(width, height, 1, config);
+            if (bitmap != null) {
+                if (canReuse(bitmap, width, height, config)) {
+                    return bitmap;
+                }
+                pool.put(bitmap);
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * 该 Bitmap 是否可以保存指定大小的原始像素 , 4.4 以后大小不同时重新设置其宽高和像素格式
+     */
+    private static boolean canReuse(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                && bitmap.getConfig() == config) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            try {
+                // 内存不够时抛出异常
+                bitmap.reconfigure(width, height, config);
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 读取图像数据前的格式编号 , 之后输入流位于图像数据的开头
+     * @return 数据为空 , 或者格式不认识时返回 null ; 主缓存中不会有 RAW 格式
+     */
+    private static Format readFormat(InputStream inputStream) throws IOException {
+        int code = inputStream.read();
+        Format format = code == -1 ? null : Format.fromCode(code);
+        return format == Format.RAW ? null : format;
+    }
+
+    /**
+     * 获取磁盘缓存中该 key 的图像格式 , 只读取第 1 个字节
+     * @return 没有该 key , 或者格式不认识时返回 null
+     */
+    public Format getFormat(String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return readFormat(snapshot.getInputStream(VALUE_DATA));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Override
+    public Bitmap get(String key, int maxWidth, int maxHeight, BitmapCache.QualityPolicy qualityPolicy,
+                      Bitmap inBitmap) throws IOException {
+        // 小图像优先读取原始像素 , 不需要解码
+        DiskLruCache rawCache = mRawCache;
+        if (rawCache != null) {
+            Bitmap bitmap = getRaw(rawCache, key, maxWidth, maxHeight, qualityPolicy, inBitmap);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        /*
+            只通过 Snapshot 读取 , 日志中只追加一条 READ 记录 ;
+            不打开 Editor , 同一个 key 可以被多个线程同时读取 , 也不会阻塞该 key 的写入 ;
+            Snapshot 关闭时 , 同时关闭其输入流
+         */
+        DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+        // 缓存中没有对应 key 键值的文件
+        if(snapshot == null) {
+            return null;
+        }
+        try {
+            // 这里的 0 表示获取该 key 对应的第 0 个文件
+            // 每个 可以 可以对应多个文件 , 这个值是创建 DiskLruCache 时传入的 valueCount 参数
+            InputStream inputStream = snapshot.getInputStream(VALUE_DATA);
+            // 不认识的格式 , 可能是其它版本写入的 , 当作没有缓存
+            Format format = readFormat(inputStream);
+            if (format == null) {
+                return null;
+            }
+            // 重新编码为 JPEG 的图像一定没有透明度 , 不再读取图片头 ; 其它格式从图片头中读取
+            ImageHeaderParser.Alpha alpha = format == Format.JPEG
+                    ? ImageHeaderParser.Alpha.OPAQUE : ImageHeaderParser.Alpha.UNKNOWN;
+
+            /*
+                所有的格式都由 BitmapFactory 自动识别 ;
+                与资源图片一样 , 从同一个输入流中先解码图片头 , 再按目标尺寸解码像素 ,
+                不再把整个文件读入数组 , 缓存的大图也只按显示需要的尺寸解码
+             */
+            return BitmapSizeReduce.decodeStream(inputStream, maxWidth, maxHeight,
+                    qualityPolicy, inBitmap, Resources.getSystem().getDisplayMetrics().densityDpi,
+                    alpha);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        DiskLruCache rawCache = mRawCache;
+        boolean removed = rawCache != null && rawCache.remove(key);
+        return mDiskLruCache.remove(key) || removed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        DiskLruCache rawCache = mRawCache;
+        try {
+            if (rawCache != null) {
+                rawCache.close();
+            }
+        } finally {
+            mDiskLruCache.close();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package kim.hsl.bm.utils;
+
+import android.graphics.Bitmap;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 磁盘缓存的后台写入队列
+ *
+ * 放入内存缓存的 Bitmap 同时放入该队列 , 调用者立即返回 ,
+ * 由后台线程调用 {@link BitmapCache.DiskTier#put(String, Bitmap)} 编码并写入磁盘 , 界面线程不需要执行 Bitmap.compress ;
+ *
+ *  - 同一个 key 还没有写入时再次放入 , 只写入最后放入的 Bitmap
+ *  - 队列中最多保存 maxPending 个 Bitmap , 超出后 :
+ *      主线程放入时丢弃最早放入的 Bitmap , 不会阻塞界面 ;
+ *      其它线程放入时等待后台线程写入 , 避免队列持有太多 Bitmap 内存
+ *
+ * 队列中 , 或者正在写入的 Bitmap 不能被复用 , 参考 {@link #isPending(String, Bitmap)}
+ */
+final class DiskWriteQueue {
+    private static final String TAG = "DiskWriteQueue";
+
+    /**
+     * 写入完成的回调 , 在后台线程中执行
+     */
+    interface Listener {
+        /**
+         * @param written 写入失败时为 false
+         * @param nanos   编码并写入的耗时
+         */
+        void onWritten(String key, boolean written, long nanos);
+    }
+
+    private final BitmapCache.DiskTier mDiskTier;
+    private final int mMaxPending;
+    private final Listener mListener;
+
+    /**
+     * 等待写入的 Bitmap , 按放入顺序排列
+     */
+    private final LinkedHashMap<String, Bitmap> mPending = new LinkedHashMap<>();
+
+    /**
+     * 后台线程正在写入的 key 和 Bitmap , 没有时为 null
+     */
+    private String mWritingKey;
+    private Bitmap mWritingBitmap;
+
+    private int mCoalescedCount;
+    private int mDroppedCount;
+
+    /**
+     * 调用 close 之后不再接受新的 Bitmap
+     */
+    private boolean mClosed;
+
+    /**
+     * 写入线程 , 第一次放入时启动 , 队列为空并且已经关闭时退出
+     */
+    private Thread mThread;
+
+    /**
+     * @param diskTier   磁盘缓存
+     * @param maxPending 队列中最多保存的 Bitmap 个数
+     * @param listener   写入完成的回调 , 可以为 null
+     */
+    DiskWriteQueue(BitmapCache.DiskTier diskTier, int maxPending, Listener listener) {
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("maxPending <= 0");
+        }
+        mDiskTier = diskTier;
+        mMaxPending = maxPending;
+        mListener = listener;
+    }
+
+    /**
+     * 放入队列 , 由后台线程写入磁盘
+     * @return 已经关闭时返回 false
+     */
+    synchronized boolean put(String key, Bitmap bitmap) {
+        if (mClosed) {
+            return false;
+        }
+        // 同一个 key 还没有写入 , 替换为新的 Bitmap , 并移动到队尾
+        if (mPending.remove(key) != null) {
+            mCoalescedCount++;
+        }
+        boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+        while (mPending.size() >= mMaxPending) {
+            if (mainThread) {
+                // 主线程不等待 , 丢弃最早放入的 Bitmap
+                Iterator<Map.Entry<String, Bitmap>> iterator = mPending.entrySet().iterator();
+                iterator.next();
+                iterator.remove();
+                mDroppedCount++;
+                continue;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (mClosed) {
+                return false;
+            }
+        }
+        mPending.put(key, bitmap);
+        if (mThread == null) {
+            mThread = new WriterThread();
+            mThread.start();
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * 该 Bitmap 是否还在队列中 , 或者正在写入
+     * 这样的 Bitmap 被复用后 , 写入磁盘的图像内容会被覆盖
+     */
+    synchronized boolean isPending(String key, Bitmap bitmap) {
+        return mPending.get(key) == bitmap
+                || (bitmap == mWritingBitmap && key.equals(mWritingKey));
+    }
+
+    /**
+     * 取消该 key 还没有写入的 Bitmap
+     */
+    synchronized void remove(String key) {
+        if (mPending.remove(key) != null) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * 等待队列中的 Bitmap 全部写入磁盘
+     */
+    synchronized void flush() throws InterruptedException {
+        while (!mPending.isEmpty() || mWritingBitmap != null) {
+            wait();
+        }
+    }
+
+    /**
+     * 不再接受新的 Bitmap , 后台线程写入剩余的 Bitmap 后 , 关闭磁盘缓存 ;
+     * 调用者不会等待写入完成
+     */
+    void close() {
+        boolean closeNow;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            closeNow = mThread == null;
+            notifyAll();
+        }
+        if (closeNow) {
+            closeDiskTier();
+        }
+    }
+
+    private void closeDiskTier() {
+        try {
+            mDiskTier.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 队列中等待写入的 Bitmap 个数
+     */
+    synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * 写入之前被同一个 key 的新 Bitmap 替换的次数
+     */
+    synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * 队列已满 , 主线程放入时被丢弃的次数
+     */
+    synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * 写入线程 , 每次从队首取出一个 Bitmap 写入磁盘
+     */
+    private final class WriterThread extends Thread {
+        WriterThread() {
+            super(TAG);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                String key;
+                Bitmap bitmap;
+                synchronized (DiskWriteQueue.this) {
+                    mWritingKey = null;
+                    mWritingBitmap = null;
+                    // 唤醒等待空位 , 以及等待 flush 的线程
+                    DiskWriteQueue.this.notifyAll();
+                    while (mPending.isEmpty() && !mClosed) {
+                        try {
+                            DiskWriteQueue.this.wait();
+                        } catch (InterruptedException e) {
+                            // 只有关闭后才退出
+                        }
+                    }
+                    if (mPending.isEmpty()) {
+                        break; // 已经关闭 , 并且全部写入
+                    }
+                    Iterator<Map.Entry<String, Bitmap>> iterator = mPending.entrySet().iterator();
+                    Map.Entry<String, Bitmap> entry = iterator.next();
+                    iterator.remove();
+                    key = entry.getKey();
+                    bitmap = entry.getValue();
+                    mWritingKey = key;
+                    mWritingBitmap = bitmap;
+                }
+
+                boolean written = false;
+                long start = System.nanoTime();
+                try {
+                    if (!bitmap.isRecycled()) {
+                        mDiskTier.put(key, bitmap);
+                        written = true;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+                if (mListener != null) {
+                    mListener.onWritten(key, written, System.nanoTime() - start);
+                }
+            }
+            closeDiskTier();
+        }
+    }
+}
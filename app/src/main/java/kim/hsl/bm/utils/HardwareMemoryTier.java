@@ -0,0 +1,100 @@
+package kim.hsl.bm.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * 分别缓存 HARDWARE 和普通 Bitmap 的内存缓存 , 8.0 及以上使用
+ *
+ * HARDWARE 格式的像素只保存在图形内存中 , 不占用 Java 堆 , 也不增加 GC 压力 ,
+ * 但是图形内存同样有限 , 因此使用单独的 LruCache 和单独的预算 :
+ *  - HARDWARE Bitmap 放入图形内存缓存 , 大小按 宽 * 高 * 4 计算
+ *  - 其它 Bitmap , 如需要读取像素 , 或者复用池中解码的 Bitmap 放入普通的内存缓存
+ * 同一个 key 只保存在其中一个缓存中 ; 被淘汰的 HARDWARE Bitmap 不可变 , 不会放入复用池
+ */
+public class HardwareMemoryTier implements BitmapCache.MemoryTier {
+
+    /**
+     * 普通 Bitmap 的内存缓存 , 按 Java 堆的预算
+     */
+    private final BitmapCache.MemoryTier mSoftwareTier;
+
+    /**
+     * HARDWARE Bitmap 的内存缓存 , 按图形内存的预算
+     */
+    private final BitmapCache.MemoryTier mHardwareTier;
+
+    /**
+     * @param softwareTier    普通 Bitmap 的内存缓存
+     * @param maxHardwareSize HARDWARE Bitmap 最多占用的图形内存 , 单位字节
+     */
+    public HardwareMemoryTier(BitmapCache.MemoryTier softwareTier, int maxHardwareSize) {
+        mSoftwareTier = softwareTier;
+        mHardwareTier = new LruMemoryTier(maxHardwareSize);
+    }
+
+    @Override
+    public Bitmap get(String key) {
+        Bitmap bitmap = mHardwareTier.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        return mSoftwareTier.get(key);
+    }
+
+    @Override
+    public void put(String key, Bitmap bitmap) {
+        if (BitmapReusePool.isHardware(bitmap)) {
+            mSoftwareTier.remove(key);
+            mHardwareTier.put(key, bitmap);
+        } else {
+            mHardwareTier.remove(key);
+            mSoftwareTier.put(key, bitmap);
+        }
+    }
+
+    @Override
+    public Bitmap remove(String key) {
+        Bitmap bitmap = mHardwareTier.remove(key);
+        Bitmap software = mSoftwareTier.remove(key);
+        return bitmap != null ? bitmap : software;
+    }
+
+    @Override
+    public void clear() {
+        mHardwareTier.clear();
+        mSoftwareTier.clear();
+    }
+
+    /**
+     * 两个缓存的内存占用之和 , 单位字节
+     */
+    @Override
+    public int getSize() {
+        return mHardwareTier.getSize() + mSoftwareTier.getSize();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return mHardwareTier.getMaxSize() + mSoftwareTier.getMaxSize();
+    }
+
+    /**
+     * HARDWARE Bitmap 占用的图形内存 , 单位字节
+     */
+    public int getHardwareSize() {
+        return mHardwareTier.getSize();
+    }
+
+    /**
+     * HARDWARE Bitmap 最多占用的图形内存 , 单位字节
+     */
+    public int getHardwareMaxSize() {
+        return mHardwareTier.getMaxSize();
+    }
+
+    @Override
+    public void setRemovalListener(BitmapCache.RemovalListener listener) {
+        mHardwareTier.setRemovalListener(listener);
+        mSoftwareTier.setRemovalListener(listener);
+    }
+}
@@ -0,0 +1,182 @@
+package kim.hsl.bm.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 从图片头判断图片是否包含透明度
+ *
+ * BitmapFactory 解码图片头时 , outMimeType 只能区分格式 , outConfig 在 8.0 以下没有 ,
+ * 并且有没有透明度的 PNG / WEBP 都返回 ARGB_8888 ; 这里直接读取文件头中的透明度标志 :
+ *  - JPEG 没有透明度
+ *  - PNG 读取 IHDR 中的颜色类型 , 4 / 6 带有透明度通道 , 其它类型再查找 IDAT 之前有没有 tRNS 块
+ *  - WEBP 有损格式 VP8 没有透明度 , 无损格式 VP8L 读取 alpha_is_used 位 , 扩展格式 VP8X 读取 ALPHA 标志
+ * 其它格式 ( 如 GIF ) 返回 UNKNOWN
+ *
+ * 会从输入流中读取数据 , 由调用者 mark / reset
+ */
+final class ImageHeaderParser {
+
+    enum Alpha {
+        /** 确定没有透明度 */
+        OPAQUE,
+        /** 有透明度 */
+        TRANSLUCENT,
+        /** 不认识的格式 , 或者图片头不完整 */
+        UNKNOWN
+    }
+
+    /**
+     * 最多读取的字节数 , 不超过 RecyclableBufferedInputStream 的缓冲区 , 不会扩大缓冲区
+     */
+    private static final int MAX_HEADER_BYTES = RecyclableBufferedInputStream.BUFFER_SIZE;
+
+    private static final int PNG_SIGNATURE = 0x89504E47;
+    private static final int RIFF = 0x52494646;
+    private static final int WEBP = 0x57454250;
+    private static final int VP8 = 0x56503820;
+    private static final int VP8L = 0x5650384C;
+    private static final int VP8X = 0x56503858;
+
+    private static final int IHDR = 0x49484452;
+    private static final int TRNS = 0x74524E53;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+
+    /** PNG 颜色类型 : 灰度 + 透明度 */
+    private static final int PNG_GRAY_ALPHA = 4;
+    /** PNG 颜色类型 : RGB + 透明度 */
+    private static final int PNG_RGBA = 6;
+
+    /** VP8X 标志中的 ALPHA 位 */
+    private static final int VP8X_ALPHA_FLAG = 0x10;
+
+    private ImageHeaderParser() {
+    }
+
+    static Alpha getAlpha(InputStream inputStream) throws IOException {
+        Reader reader = new Reader(inputStream);
+        try {
+            int magic = reader.readInt();
+            if ((magic >>> 16) == 0xFFD8) {
+                return Alpha.OPAQUE;
+            }
+            if (magic == PNG_SIGNATURE) {
+                return getPngAlpha(reader);
+            }
+            if (magic == RIFF) {
+                return getWebpAlpha(reader);
+            }
+            return Alpha.UNKNOWN;
+        } catch (EOFException e) {
+            return Alpha.UNKNOWN;
+        }
+    }
+
+    private static Alpha getPngAlpha(Reader reader) throws IOException {
+        // 签名剩下的 4 字节
+        reader.skip(4);
+        // 第一个块必须是 IHDR : 宽 4 , 高 4 , 位深 1 , 颜色类型 1 , 压缩 / 过滤 / 隔行各 1 , 最后是 4 字节 CRC
+        int length = reader.readInt();
+        if (reader.readInt() != IHDR || length != 13) {
+            return Alpha.UNKNOWN;
+        }
+        reader.skip(9);
+        int colorType = reader.readByte();
+        if (colorType == PNG_GRAY_ALPHA || colorType == PNG_RGBA) {
+            return Alpha.TRANSLUCENT;
+        }
+        reader.skip(3 + 4);
+        // 灰度 , RGB , 调色板图片可以由 tRNS 块指定透明颜色 , 该块在 IDAT 之前
+        while (true) {
+            length = reader.readInt();
+            int type = reader.readInt();
+            if (type == TRNS) {
+                return Alpha.TRANSLUCENT;
+            }
+            if (type == IDAT || type == IEND) {
+                return Alpha.OPAQUE;
+            }
+            if (length < 0) {
+                return Alpha.UNKNOWN;
+            }
+            reader.skip(length + 4L);
+        }
+    }
+
+    private static Alpha getWebpAlpha(Reader reader) throws IOException {
+        // RIFF 文件大小
+        reader.skip(4);
+        if (reader.readInt() != WEBP) {
+            return Alpha.UNKNOWN;
+        }
+        int chunk = reader.readInt();
+        // 块大小
+        reader.skip(4);
+        if (chunk == VP8) {
+            return Alpha.OPAQUE;
+        }
+        if (chunk == VP8L) {
+            // 1 字节签名 0x2F , 之后的 32 位小端整数 : 宽 - 1 ( 14 位 ) , 高 - 1 ( 14 位 ) , alpha_is_used ( 1 位 )
+            reader.skip(1);
+            int bits = reader.readIntLittleEndian();
+            return ((bits >>> 28) & 1) != 0 ? Alpha.TRANSLUCENT : Alpha.OPAQUE;
+        }
+        if (chunk == VP8X) {
+            return (reader.readByte() & VP8X_ALPHA_FLAG) != 0 ? Alpha.TRANSLUCENT : Alpha.OPAQUE;
+        }
+        return Alpha.UNKNOWN;
+    }
+
+    /**
+     * 最多读取 MAX_HEADER_BYTES 字节 , 超出或者数据结束时抛出 EOFException
+     */
+    private static final class Reader {
+        private final InputStream mInputStream;
+        private long mCount;
+
+        Reader(InputStream inputStream) {
+            mInputStream = inputStream;
+        }
+
+        int readByte() throws IOException {
+            ensure(1);
+            int value = mInputStream.read();
+            if (value == -1) {
+                throw new EOFException();
+            }
+            mCount++;
+            return value;
+        }
+
+        int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        int readIntLittleEndian() throws IOException {
+            return readByte() | (readByte() << 8) | (readByte() << 16) | (readByte() << 24);
+        }
+
+        void skip(long count) throws IOException {
+            ensure(count);
+            while (count > 0) {
+                long skipped = mInputStream.skip(count);
+                if (skipped <= 0) {
+                    // skip 可能返回 0 , 读取一个字节确认是否已经结束
+                    readByte();
+                    skipped = 1;
+                } else {
+                    mCount += skipped;
+                }
+                count -= skipped;
+            }
+        }
+
+        private void ensure(long count) throws EOFException {
+            if (mCount + count > MAX_HEADER_BYTES) {
+                throw new EOFException();
+            }
+        }
+    }
+}
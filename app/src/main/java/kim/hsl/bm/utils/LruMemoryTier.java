@@ -0,0 +1,84 @@
+package kim.hsl.bm.utils;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * 默认的内存缓存 , 使用 LruCache 按 Bitmap 的内存分配大小淘汰最近最少使用的 Bitmap
+ */
+public class LruMemoryTier implements BitmapCache.MemoryTier {
+
+    /**
+     * 缓存图片的 LruCache
+     */
+    private final LruCache<String, Bitmap> mLruCache;
+
+    /**
+     * Bitmap 从 LruCache 中移除时回调
+     */
+    private volatile BitmapCache.RemovalListener mRemovalListener;
+
+    /**
+     * @param maxSize 最大内存占用 , 单位字节
+     */
+    public LruMemoryTier(int maxSize) {
+        mLruCache = new LruCache<String, Bitmap>(maxSize) {
+            /**
+             * 返回 LruCache<String, Bitmap> 的值 , 即 Bitmap 占用内存
+             * 如果使用的是复用的 Bitmap 对象 , 其占用内存大小是之前的图像分配的内存大小
+             */
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return BitmapReusePool.getAllocationSize(value);
+            }
+
+            /**
+             * 从 LruCache 缓存移除 Bitmap 时会回调该方法
+             */
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                                        Bitmap newValue) {
+                // 同一个 Bitmap 重新放入 , 还在缓存中
+                BitmapCache.RemovalListener listener = mRemovalListener;
+                if (oldValue != newValue && listener != null) {
+                    listener.onRemoved(key, oldValue, evicted);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Bitmap get(String key) {
+        return mLruCache.get(key);
+    }
+
+    @Override
+    public void put(String key, Bitmap bitmap) {
+        mLruCache.put(key, bitmap);
+    }
+
+    @Override
+    public Bitmap remove(String key) {
+        return mLruCache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        mLruCache.evictAll();
+    }
+
+    @Override
+    public int getSize() {
+        return mLruCache.size();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return mLruCache.maxSize();
+    }
+
+    @Override
+    public void setRemovalListener(BitmapCache.RemovalListener listener) {
+        mRemovalListener = listener;
+    }
+}
@@ -0,0 +1,103 @@
+package kim.hsl.bm.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * 缓冲区可以复用的 BufferedInputStream
+ *
+ * 先解码图片头获取宽高 , 再 reset 到开头解码像素 , 需要支持 mark / reset 的输入流 ;
+ * 每次解码都创建缓冲区会产生大量的临时数组 , 这里的缓冲区从一个小的数组池中获取 , 关闭时放回 ;
+ * mark 之后读取的数据超出缓冲区时 , BufferedInputStream 会创建更大的数组 , 最多 mark 的 readlimit 字节 ,
+ * 即 BitmapSizeReduce.MARK_LIMIT , 这样的大数组不放回数组池
+ */
+final class RecyclableBufferedInputStream extends BufferedInputStream {
+
+    /**
+     * 数组池中的缓冲区大小 , 足够容纳绝大多数 JPEG / PNG / WEBP 的图片头
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 数组池中最多保存的缓冲区个数 , 与同时解码的线程个数相当
+     */
+    private static final int MAX_POOLED = 4;
+
+    private static final ArrayDeque<byte[]> POOL = new ArrayDeque<>();
+
+    private static byte[] obtain() {
+        synchronized (POOL) {
+            byte[] buffer = POOL.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void recycle(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        synchronized (POOL) {
+            if (POOL.size() < MAX_POOLED) {
+                POOL.push(buffer);
+            }
+        }
+    }
+
+    RecyclableBufferedInputStream(InputStream in) {
+        // 父类创建的 1 字节缓冲区立即替换为数组池中的缓冲区
+        super(in, 1);
+        buf = obtain();
+    }
+
+    /**
+     * 已经 mark 时不缩小 readlimit
+     * 4.1 ~ 4.3 的 BitmapFactory 解码前会用很小的 readlimit 调用 mark , 解码图片头之后 reset 失败 ;
+     * 这里保留之前较大的 readlimit , mark 的位置仍然更新为当前位置
+     */
+    @Override
+    public synchronized void mark(int readlimit) {
+        if (markpos != -1) {
+            readlimit = Math.max(readlimit, marklimit);
+        }
+        super.mark(readlimit);
+    }
+
+    /**
+     * 回到 mark 的位置 , 并取消 mark ;
+     * 之后读取的数据不再保存在缓冲区中 , 解码像素时不会把整张图片都读入缓冲区
+     */
+    synchronized void resetAndUnmark() throws IOException {
+        reset();
+        markpos = -1;
+    }
+
+    /**
+     * 缓冲区放回数组池 , 不关闭被包装的输入流 , 之后不能再读取
+     */
+    void releaseBuffer() {
+        byte[] buffer;
+        synchronized (this) {
+            buffer = buf;
+            buf = null;
+        }
+        recycle(buffer);
+    }
+
+    /**
+     * 关闭输入流 , 缓冲区放回数组池
+     */
+    @Override
+    public void close() throws IOException {
+        releaseBuffer();
+        InputStream input = in;
+        in = null;
+        if (input != null) {
+            input.close();
+        }
+    }
+}
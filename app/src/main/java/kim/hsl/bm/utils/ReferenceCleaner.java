@@ -0,0 +1,229 @@
+package kim.hsl.bm.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * 进程内共享的引用清理服务
+ *
+ * 各个缓存将需要监控的对象注册到这里 , 对象被 GC 回收后 , 执行注册时传入的清理操作 ;
+ * 整个进程只有一个守护线程阻塞在引用队列上 , 不管创建多少个缓存 ,
+ * 线程个数和唤醒次数都不变 , 之前每个缓存都要启动一个 referenceQueueMonitorThread 线程 ;
+ *
+ * 线程在第一次注册时启动 , {@link #shutdown()} 可以停止线程 , 之后再注册会重新启动 ;
+ * 每次唤醒最多连续处理 {@link #MAX_BATCH} 个引用 , 然后让出 CPU ;
+ * 也可以调用 {@link #drain(int)} 在当前线程中处理已经被回收的引用
+ *
+ * 同时统计被回收的对象个数和字节数
+ */
+public final class ReferenceCleaner {
+    private static final String TAG = "ReferenceCleaner";
+
+    /**
+     * 清理线程每次唤醒后 , 最多连续处理的引用个数
+     */
+    static final int MAX_BATCH = 64;
+
+    private static final ReferenceCleaner DEFAULT = new ReferenceCleaner();
+
+    /**
+     * 获取进程内共享的清理服务
+     */
+    public static ReferenceCleaner getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * 被监控的对象被 GC 回收后 , 其引用会放入该队列
+     */
+    private final ReferenceQueue<Object> mQueue = new ReferenceQueue<>();
+
+    /**
+     * 已经注册 , 还没有被回收或者取消的引用组成的双向链表
+     * 引用对象本身必须被强引用 , 否则引用对象也会被回收 , 不会放入引用队列
+     * 使用哨兵节点 , 链表为空时 mHead.next == mHead
+     */
+    private final Cleanable<Object> mHead = new Cleanable<>(null, null, 0, null);
+
+    private int mRegisteredCount;
+    private long mReclaimedCount;
+    private long mReclaimedBytes;
+
+    /**
+     * 清理线程 , 没有启动或者已经停止时为 null
+     */
+    private Thread mThread;
+
+    ReferenceCleaner() {
+        mHead.previous = mHead;
+        mHead.next = mHead;
+    }
+
+    /**
+     * 注册一个需要监控的对象
+     *
+     * @param referent  被监控的对象 , 清理服务只持有其弱引用
+     * @param bytes     该对象占用的内存 , 用于统计回收的字节数
+     * @param action    对象被回收后 , 在清理线程中执行的操作 , 不能持有 referent 的强引用
+     * @return 可以通过 {@link Cleanable#get()} 获取对象 , 不再需要监控时调用 {@link Cleanable#cancel()}
+     */
+    public <T> Cleanable<T> register(T referent, long bytes, Runnable action) {
+        Cleanable<T> cleanable = new Cleanable<>(referent, this, bytes, action);
+        synchronized (this) {
+            cleanable.previous = mHead.previous;
+            cleanable.next = mHead;
+            mHead.previous.next = cleanable;
+            mHead.previous = cleanable;
+            mRegisteredCount++;
+            if (mThread == null) {
+                mThread = new CleanerThread();
+                mThread.start();
+            }
+        }
+        return cleanable;
+    }
+
+    /**
+     * 将引用从链表中移除 , 返回 false 说明已经被移除
+     */
+    private synchronized boolean unlink(Cleanable<?> cleanable) {
+        if (cleanable.next == null) {
+            return false;
+        }
+        cleanable.previous.next = cleanable.next;
+        cleanable.next.previous = cleanable.previous;
+        cleanable.previous = null;
+        cleanable.next = null;
+        mRegisteredCount--;
+        return true;
+    }
+
+    /**
+     * 处理一个被回收的引用 , 执行其清理操作
+     */
+    private void clean(Reference<?> reference) {
+        Cleanable<?> cleanable = (Cleanable<?>) reference;
+        if (!unlink(cleanable)) {
+            return; // 已经取消
+        }
+        synchronized (this) {
+            mReclaimedCount++;
+            mReclaimedBytes += cleanable.bytes;
+        }
+        try {
+            cleanable.action.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 在当前线程中处理已经被回收的引用 , 不会阻塞
+     * @param maxCount 最多处理的引用个数
+     * @return 处理的引用个数
+     */
+    public int drain(int maxCount) {
+        int count = 0;
+        Reference<?> reference;
+        while (count < maxCount && (reference = mQueue.poll()) != null) {
+            clean(reference);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 停止清理线程 , 并处理已经被回收的引用 ; 之后再注册对象会重新启动线程
+     */
+    public void shutdown() throws InterruptedException {
+        Thread stopping;
+        synchronized (this) {
+            stopping = mThread;
+            mThread = null;
+        }
+        if (stopping != null) {
+            stopping.interrupt();
+            stopping.join();
+        }
+        while (drain(MAX_BATCH) > 0) {
+        }
+    }
+
+    /**
+     * 已经注册 , 还没有被回收或者取消的对象个数
+     */
+    public synchronized int getRegisteredCount() {
+        return mRegisteredCount;
+    }
+
+    /**
+     * 被 GC 回收的对象个数
+     */
+    public synchronized long getReclaimedCount() {
+        return mReclaimedCount;
+    }
+
+    /**
+     * 被 GC 回收的对象占用的字节数
+     */
+    public synchronized long getReclaimedBytes() {
+        return mReclaimedBytes;
+    }
+
+    /**
+     * 清理线程 , 阻塞在引用队列上 , 被唤醒后分批处理引用
+     */
+    private final class CleanerThread extends Thread {
+        CleanerThread() {
+            super(TAG);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                synchronized (ReferenceCleaner.this) {
+                    if (mThread != this) {
+                        return;
+                    }
+                }
+                try {
+                    clean(mQueue.remove());
+                } catch (InterruptedException e) {
+                    continue; // 检查是否被停止
+                }
+                if (drain(MAX_BATCH - 1) == MAX_BATCH - 1) {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    /**
+     * 注册到清理服务中的弱引用
+     */
+    public static final class Cleanable<T> extends WeakReference<T> {
+        final ReferenceCleaner cleaner;
+        final long bytes;
+        final Runnable action;
+        Cleanable<?> previous;
+        Cleanable<?> next;
+
+        Cleanable(T referent, ReferenceCleaner cleaner, long bytes, Runnable action) {
+            super(referent, cleaner == null ? null : cleaner.mQueue);
+            this.cleaner = cleaner;
+            this.bytes = bytes;
+            this.action = action;
+        }
+
+        /**
+         * 取消监控 , 对象被回收后不再执行清理操作 , 也不计入回收统计
+         */
+        public void cancel() {
+            clear();
+            cleaner.unlink(this);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package kim.hsl.bm.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 超大图像分块解码
+ *
+ * 全景图 , 几千万像素的照片 , 整张解码会超出内存 , 使用 BitmapSizeReduce 缩小后放大查看又会丢失细节 ;
+ * 这里使用 BitmapRegionDecoder 只解码与可见区域相交的分块 :
+ *  - 按显示比例选择缩放系数 , 即分块的级别 , 缩放系数是 2 的幂次方 , 每个分块解码后最多 tileSize 像素
+ *  - 分块只放入 BitmapCache 的内存缓存 , key 由 ( 图片 , 级别 , 列 , 行 ) 组成 , 不写入磁盘
+ *  - 解码时从复用池中获取 Bitmap , 被内存缓存淘汰的分块又放入复用池
+ * 因此不管原图多大 , 内存占用都不会超过内存缓存和复用池的大小
+ *
+ * 解码方法会阻塞调用线程 , 不要在主线程中调用 , 可以提交到 DecodeScheduler 中执行
+ */
+public class TiledBitmapDecoder {
+    private static final String TAG = "TiledBitmapDecoder";
+
+    /**
+     * 默认的分块大小 , 解码后的宽高 , 单位像素
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    /**
+     * 图片的 key , 用于组成分块的 key
+     */
+    private final String mSourceKey;
+
+    private final BitmapRegionDecoder mDecoder;
+    private final BitmapCache mCache;
+    private final int mTileSize;
+    private final Bitmap.Config mConfig;
+
+    /**
+     * 原图宽高
+     */
+    private final int mWidth;
+    private final int mHeight;
+
+    /**
+     * @param sourceKey 图片的 key , 不同的图片必须不同
+     * @param decoder   区域解码器 , 由该对象负责回收
+     * @param cache     缓存分块的 BitmapCache , 建议启用复用池
+     * @param tileSize  分块解码后的宽高 , 单位像素
+     * @param config    分块的像素格式
+     */
+    public TiledBitmapDecoder(String sourceKey, BitmapRegionDecoder decoder, BitmapCache cache,
+                              int tileSize, Bitmap.Config config) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tileSize <= 0");
+        }
+        mSourceKey = sourceKey;
+        mDecoder = decoder;
+        mCache = cache;
+        mTileSize = tileSize;
+        mConfig = config;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+    }
+
+    /**
+     * 打开资源图片 , 只读取图片头 , 不解码像素
+     * @param imageResId JPEG 或者 PNG 图片资源 id , 不能是 9-patch 等需要按像素密度缩放的资源
+     */
+    public static TiledBitmapDecoder newInstance(Context context, int imageResId, BitmapCache cache,
+                                                 Bitmap.Config config) throws IOException {
+        InputStream inputStream = context.getResources().openRawResource(imageResId);
+        try {
+            // 第二个参数 isShareable 为 false , 解码器复制一份数据 , 可以关闭输入流
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(inputStream, false);
+            return new TiledBitmapDecoder("res_" + imageResId, decoder, cache,
+                    DEFAULT_TILE_SIZE, config);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 打开图片文件 , 只读取图片头 , 不解码像素
+     */
+    public static TiledBitmapDecoder newInstance(String path, BitmapCache cache,
+                                                 Bitmap.Config config) throws IOException {
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(path, false);
+        return new TiledBitmapDecoder(path, decoder, cache, DEFAULT_TILE_SIZE, config);
+    }
+
+    /**
+     * 原图宽度
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * 原图高度
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 根据显示比例计算缩放系数 , 即不超过 1 / scale 的最大的 2 的幂次方
+     * 解码后的分块不会比显示的尺寸小 , 最多是显示尺寸的 2 倍
+     * @param scale 显示比例 , 屏幕像素 / 原图像素 , 如原图 8000 像素宽 , 显示为 1000 像素时为 0.125
+     */
+    public static int sampleSizeForScale(float scale) {
+        int inSampleSize = 1;
+        while (scale * inSampleSize * 2 <= 1) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * 解码与可见区域相交的分块 , 内存缓存中已经有的分块不再解码
+     *
+     * @param viewport 可见区域 , 原图坐标
+     * @param scale    显示比例 , 屏幕像素 / 原图像素
+     * @return 与可见区域相交的分块 , 解码失败的分块不包含在内
+     */
+    public List<Tile> decodeViewport(Rect viewport, float scale) {
+        int inSampleSize = sampleSizeForScale(scale);
+        // 一个分块对应的原图宽高
+        int sourceTileSize = mTileSize * inSampleSize;
+
+        List<Tile> tiles = new ArrayList<>();
+        Rect visible = new Rect(viewport);
+        if (!visible.intersect(0, 0, mWidth, mHeight)) {
+            return tiles;
+        }
+        int firstColumn = visible.left / sourceTileSize;
+        int lastColumn = (visible.right - 1) / sourceTileSize;
+        int firstRow = visible.top / sourceTileSize;
+        int lastRow = (visible.bottom - 1) / sourceTileSize;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                Tile tile = getTile(inSampleSize, column, row);
+                if (tile != null) {
+                    tiles.add(tile);
+                }
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * 获取一个分块 , 内存缓存中没有时解码
+     *
+     * @param inSampleSize 缩放系数 , 2 的幂次方
+     * @param column       列 , 从 0 开始
+     * @param row          行 , 从 0 开始
+     * @return 超出原图范围 , 或者解码失败时返回 null
+     */
+    public Tile getTile(int inSampleSize, int column, int row) {
+        int sourceTileSize = mTileSize * inSampleSize;
+        Rect rect = new Rect(column * sourceTileSize, row * sourceTileSize,
+                (column + 1) * sourceTileSize, (row + 1) * sourceTileSize);
+        if (!rect.intersect(0, 0, mWidth, mHeight)) {
+            return null;
+        }
+        String key = tileKey(inSampleSize, column, row);
+        Bitmap bitmap = mCache.getBitmapFromLruCache(key);
+        if (bitmap == null) {
+            bitmap = decodeRegion(rect, inSampleSize);
+            if (bitmap == null) {
+                return null;
+            }
+            // 分块只放入内存缓存 , 被淘汰后放入复用池
+            mCache.putBitmapToMemory(key, bitmap);
+        }
+        return new Tile(inSampleSize, column, row, rect, bitmap);
+    }
+
+    /**
+     * 分块在内存缓存中的 key
+     */
+    String tileKey(int inSampleSize, int column, int row) {
+        return "tile_" + mSourceKey + "_" + inSampleSize + "_" + column + "_" + row;
+    }
+
+    /**
+     * 解码原图中的一个区域 , 优先复用复用池中的 Bitmap
+     */
+    private Bitmap decodeRegion(Rect rect, int inSampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = inSampleSize;
+        options.inPreferredConfig = mConfig;
+        options.inMutable = true;
+        options.inBitmap = obtainTileBitmap(rect, inSampleSize);
+        try {
+            return mDecoder.decodeRegion(rect, options);
+        } catch (IllegalArgumentException e) {
+            // 不能复用该 Bitmap , 放回复用池 , 不复用再解码一次
+            if (options.inBitmap == null) {
+                e.printStackTrace();
+                return null;
+            }
+            mCache.putReuseBitmap(options.inBitmap);
+            options.inBitmap = null;
+            return mDecoder.decodeRegion(rect, options);
+        } catch (IllegalStateException e) {
+            // 已经回收
+            return null;
+        }
+    }
+
+    /**
+     * 从复用池中获取宽高与解码后的分块相同的 Bitmap
+     *
+     * 与 BitmapFactory 不同 , BitmapRegionDecoder 解码到较大的 inBitmap 中时 ,
+     * 返回的 Bitmap 保持 inBitmap 的宽高 , 分块之外是上次的像素 ;
+     * 因此宽高或者像素格式不同时 , 4.4 以后 reconfigure 为分块的宽高 , 不能 reconfigure 时放回复用池
+     *
+     * @return 没有可以复用的 Bitmap 时返回 null
+     */
+    private Bitmap obtainTileBitmap(Rect rect, int inSampleSize) {
+        // 解码器向上取整
+        int width = (rect.width() + inSampleSize - 1) / inSampleSize;
+        int height = (rect.height() + inSampleSize - 1) / inSampleSize;
+        Bitmap bitmap = mCache.getReuseBitmap(rect.width(), rect.height(), inSampleSize, mConfig);
+        if (bitmap == null) {
+            return null;
+        }
+        Bitmap.Config config = mConfig != null ? mConfig : bitmap.getConfig();
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                && bitmap.getConfig() == config) {
+            return bitmap;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && bitmap.isMutable()) {
+            try {
+                // 内存不够时抛出异常
+                bitmap.reconfigure(width, height, config);
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                // 放回复用池
+            }
+        }
+        mCache.putReuseBitmap(bitmap);
+        return null;
+    }
+
+    /**
+     * 不再使用时回收区域解码器 , 已经缓存的分块仍然在内存缓存中 , 由内存缓存淘汰
+     */
+    public void recycle() {
+        mDecoder.recycle();
+    }
+
+    /**
+     * 一个解码后的分块
+     */
+    public static final class Tile {
+        /** 缩放系数 , 即分块的级别 */
+        public final int inSampleSize;
+        public final int column;
+        public final int row;
+        /** 分块对应的原图区域 , 绘制时缩放到该区域 */
+        public final Rect sourceRect;
+        public final Bitmap bitmap;
+
+        Tile(int inSampleSize, int column, int row, Rect sourceRect, Bitmap bitmap) {
+            this.inSampleSize = inSampleSize;
+            this.column = column;
+            this.row = row;
+            this.sourceRect = sourceRect;
+            this.bitmap = bitmap;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package kim.hsl.bm.utils;
+
+import android.graphics.Bitmap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 已经从 LruCache 中移除 , 但可能还在被界面使用的 Bitmap 的弱引用缓存
+ *
+ * 3.0 及以上的系统中 , Bitmap 的内存会随着 Bitmap 对象被 GC 回收 ,
+ * 不需要调用 recycle 方法 ; 而界面可能还在显示从 LruCache 中移除的 Bitmap ,
+ * 直接回收会导致绘制已经回收的 Bitmap ;
+ * 这里只保存其弱引用 , 再次获取该图片时 , 只要还没有被回收 , 就不需要重新解码
+ *
+ * 被 GC 回收的弱引用由进程内共享的 {@link ReferenceCleaner} 从缓存中移除 ,
+ * 不需要每个缓存启动一个监控线程
+ */
+class WeakBitmapCache {
+
+    private final ReferenceCleaner mCleaner;
+
+    private final Map<String, ReferenceCleaner.Cleanable<Bitmap>> mBitmaps = new HashMap<>();
+
+    WeakBitmapCache(ReferenceCleaner cleaner) {
+        mCleaner = cleaner;
+    }
+
+    /**
+     * 保存 Bitmap 的弱引用 , 替换该键之前的弱引用
+     */
+    synchronized void put(String key, Bitmap bitmap) {
+        Expunge expunge = new Expunge(key);
+        expunge.reference = mCleaner.register(bitmap,
+                BitmapReusePool.getAllocationSize(bitmap), expunge);
+        ReferenceCleaner.Cleanable<Bitmap> previous = mBitmaps.put(key, expunge.reference);
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    /**
+     * 取出还没有被回收的 Bitmap , 并从缓存中移除
+     * @return 没有保存 , 或者已经被回收时返回 null
+     */
+    synchronized Bitmap remove(String key) {
+        ReferenceCleaner.Cleanable<Bitmap> reference = mBitmaps.remove(key);
+        if (reference == null) {
+            return null;
+        }
+        Bitmap bitmap = reference.get();
+        reference.cancel();
+        return bitmap == null || bitmap.isRecycled() ? null : bitmap;
+    }
+
+    /**
+     * 清空缓存 , 不再监控其中的 Bitmap
+     */
+    synchronized void clear() {
+        for (ReferenceCleaner.Cleanable<Bitmap> reference : mBitmaps.values()) {
+            reference.cancel();
+        }
+        mBitmaps.clear();
+    }
+
+    synchronized int size() {
+        return mBitmaps.size();
+    }
+
+    /**
+     * Bitmap 被回收后 , 在清理线程中将其弱引用从缓存中移除
+     * 只持有键 , 不能持有 Bitmap 的强引用
+     */
+    private final class Expunge implements Runnable {
+        final String key;
+        ReferenceCleaner.Cleanable<Bitmap> reference;
+
+        Expunge(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            synchronized (WeakBitmapCache.this) {
+                if (mBitmaps.get(key) == reference) {
+                    mBitmaps.remove(key);
+                }
+            }
+        }
+    }
+}
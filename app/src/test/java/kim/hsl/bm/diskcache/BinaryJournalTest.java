@@ -0,0 +1,169 @@
+package kim.hsl.bm.diskcache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers migration between the text and {@link BinaryJournal} formats and
+ * compares how long {@link DiskLruCache#open} takes to replay each of them.
+ * Set {@code -Ddisklrucache.benchmark.full=true} to include a 1M-entry journal.
+ */
+public class BinaryJournalTest {
+    private static final int APP_VERSION = 100;
+
+    /** Timed opens of each journal, after one warm-up open of each. */
+    private static final int BENCHMARK_RUNS = 6;
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void textJournalIsMigratedToBinaryAndBack() throws Exception {
+        File dir = tempDir.newFolder("migrate");
+        DiskLruCache cache = open(dir, false);
+        set(cache, "a", "apple");
+        set(cache, "b", "banana");
+        cache.remove("a");
+        cache.close();
+        assertFalse(BinaryJournal.isBinary(new File(dir, DiskLruCache.JOURNAL_FILE)));
+
+        cache = open(dir, true);
+        assertTrue(BinaryJournal.isBinary(new File(dir, DiskLruCache.JOURNAL_FILE)));
+        assertNull(cache.get("a"));
+        assertEquals("banana", get(cache, "b"));
+        set(cache, "c", "cherry");
+        cache.close();
+
+        cache = open(dir, true);
+        assertEquals("banana", get(cache, "b"));
+        assertEquals("cherry", get(cache, "c"));
+        cache.close();
+
+        cache = open(dir, false);
+        assertFalse(BinaryJournal.isBinary(new File(dir, DiskLruCache.JOURNAL_FILE)));
+        assertEquals("cherry", get(cache, "c"));
+        cache.close();
+    }
+
+    @Test
+    public void tornRecordAtEndIsIgnored() throws Exception {
+        File dir = tempDir.newFolder("torn");
+        DiskLruCache cache = open(dir, true);
+        set(cache, "a", "apple");
+        set(cache, "b", "banana");
+        cache.close();
+
+        File journal = new File(dir, DiskLruCache.JOURNAL_FILE);
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+
+        cache = open(dir, true);
+        assertEquals("apple", get(cache, "a"));
+        set(cache, "c", "cherry");
+        cache.close();
+
+        cache = open(dir, true);
+        assertEquals("apple", get(cache, "a"));
+        assertEquals("cherry", get(cache, "c"));
+        cache.close();
+    }
+
+    @Test
+    public void startupBenchmark() throws Exception {
+        int[] sizes = Boolean.getBoolean("disklrucache.benchmark.full")
+                ? new int[] {10000, 100000, 1000000}
+                : new int[] {10000, 100000};
+        for (int entries : sizes) {
+            File text = writeJournal(entries, false);
+            File binary = writeJournal(entries, true);
+            // Warm up both formats, then alternate which one goes first and
+            // keep the best of several runs, so JIT and page cache favor neither
+            timeOpen(text, false);
+            timeOpen(binary, true);
+            long bestText = Long.MAX_VALUE;
+            long bestBinary = Long.MAX_VALUE;
+            for (int run = 0; run < BENCHMARK_RUNS; run++) {
+                if (run % 2 == 0) {
+                    bestText = Math.min(bestText, timeOpen(text, false));
+                    bestBinary = Math.min(bestBinary, timeOpen(binary, true));
+                } else {
+                    bestBinary = Math.min(bestBinary, timeOpen(binary, true));
+                    bestText = Math.min(bestText, timeOpen(text, false));
+                }
+            }
+            System.out.println("DiskLruCache open " + entries + " entries: text " + bestText
+                    + " ms, binary " + bestBinary + " ms");
+            // Below 100k entries both take a few milliseconds and the gap is noise.
+            // Building the entries costs the same for both formats and is most of
+            // open(), so the check only catches binary replay falling behind text
+            if (entries >= 100000) {
+                assertTrue("text " + bestText + " ms, binary " + bestBinary + " ms",
+                        bestBinary <= bestText + bestText / 5);
+            }
+        }
+    }
+
+    /** Writes a journal with {@code entries} CLEAN records plus a READ for every tenth key. */
+    private File writeJournal(int entries, boolean binary) throws Exception {
+        File journal = new File(tempDir.newFolder(), DiskLruCache.JOURNAL_FILE);
+        JournalWriter writer = new JournalWriter(journal, false, 0, false, binary, 0);
+        writer.writeHeader(APP_VERSION, 1);
+        long[] lengths = new long[1];
+        for (int i = 0; i < entries; i++) {
+            lengths[0] = 1000 + i % 5000;
+            writer.writeClean("3400330d1dfc7f3f7f4b8d4d803d" + i, lengths);
+            if (i % 10 == 0) {
+                writer.writeRead("3400330d1dfc7f3f7f4b8d4d803d" + (i / 2));
+            }
+        }
+        writer.close();
+        return journal;
+    }
+
+    /** Opens a fresh copy of {@code journal}, since opening may rewrite it, and returns the time taken. */
+    private long timeOpen(File journal, boolean binary) throws Exception {
+        File dir = tempDir.newFolder();
+        Files.copy(journal.toPath(), new File(dir, DiskLruCache.JOURNAL_FILE).toPath());
+
+        long start = System.nanoTime();
+        DiskLruCache cache = open(dir, binary);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue(cache.size() > 0);
+        cache.close();
+        return elapsed;
+    }
+
+    private static DiskLruCache open(File dir, boolean binary) throws Exception {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.binaryJournal = binary;
+        return DiskLruCache.open(dir, APP_VERSION, 1, Long.MAX_VALUE, options);
+    }
+
+    private static void set(DiskLruCache cache, String key, String value) throws Exception {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static String get(DiskLruCache cache, String key) throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(snapshot);
+        try {
+            return snapshot.getString(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+}
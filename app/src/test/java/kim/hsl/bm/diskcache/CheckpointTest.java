@@ -0,0 +1,120 @@
+package kim.hsl.bm.diskcache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers {@link DiskLruCache} checkpoints: the journal stays short, reopening
+ * restores entries and LRU order, and turning checkpoints off restores a
+ * complete journal.
+ */
+public class CheckpointTest {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void checkpointKeepsJournalShortAndRestoresEntries() throws Exception {
+        File dir = tempDir.newFolder("ckpt");
+        DiskLruCache cache = open(dir, 50, Long.MAX_VALUE);
+        for (int i = 0; i < 20; i++) {
+            set(cache, "k" + i, "value" + i);
+        }
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 20; i++) {
+                cache.get("k" + i).close();
+            }
+        }
+        awaitCleanup(cache);
+        cache.close();
+
+        File journal = new File(dir, DiskLruCache.JOURNAL_FILE);
+        assertTrue(new File(dir, DiskLruCache.CHECKPOINT_FILE).exists());
+        // The full history would be about 3.7 KB: 40 edit lines and 400 READ lines.
+        assertTrue("journal " + journal.length(), journal.length() < 2500);
+
+        cache = open(dir, 50, Long.MAX_VALUE);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("value" + i, get(cache, "k" + i));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void reopenedCacheEvictsInCheckpointedOrder() throws Exception {
+        File dir = tempDir.newFolder("order");
+        DiskLruCache cache = open(dir, 5, Long.MAX_VALUE);
+        set(cache, "a", "aaaa");
+        set(cache, "b", "bbbb");
+        set(cache, "c", "cccc");
+        cache.get("a").close();
+        cache.get("b").close();
+        cache.get("a").close();
+        cache.close();
+
+        cache = open(dir, 5, 8);
+        cache.flush();
+        assertNull(cache.get("c"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        cache.close();
+    }
+
+    @Test
+    public void disablingCheckpointsRestoresFullJournal() throws Exception {
+        File dir = tempDir.newFolder("disable");
+        DiskLruCache cache = open(dir, 1, Long.MAX_VALUE);
+        set(cache, "a", "apple");
+        set(cache, "b", "banana");
+        cache.close();
+
+        cache = open(dir, 0, Long.MAX_VALUE);
+        assertFalse(new File(dir, DiskLruCache.CHECKPOINT_FILE).exists());
+        cache.close();
+
+        cache = open(dir, 0, Long.MAX_VALUE);
+        assertEquals("apple", get(cache, "a"));
+        assertEquals("banana", get(cache, "b"));
+        cache.close();
+    }
+
+    /** Waits for checkpoints queued on the cache's single cleanup thread. */
+    private static void awaitCleanup(DiskLruCache cache) throws Exception {
+        cache.executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    private static DiskLruCache open(File dir, int checkpointInterval, long maxSize)
+            throws Exception {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.checkpointInterval = checkpointInterval;
+        return DiskLruCache.open(dir, 1, 1, maxSize, options);
+    }
+
+    private static void set(DiskLruCache cache, String key, String value) throws Exception {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static String get(DiskLruCache cache, String key) throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(snapshot);
+        try {
+            return snapshot.getString(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package kim.hsl.bm.diskcache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that disk hits read through {@link DiskLruCache.Snapshot} journal
+ * only READ records and can run concurrently for one key, and measures their
+ * latency against the edit-and-commit reads the bitmap disk tier used to do.
+ */
+public class DiskHitLatencyTest {
+    private static final int VALUE_SIZE = 32 * 1024;
+    private static final int READS = 2000;
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void snapshotReadsJournalOnlyReadRecords() throws Exception {
+        File dir = tempDir.newFolder();
+        DiskLruCache cache = open(dir);
+        set(cache, "k", new byte[VALUE_SIZE]);
+        cache.flush();
+        File journal = new File(dir, DiskLruCache.JOURNAL_FILE);
+        long before = journal.length();
+
+        for (int i = 0; i < 3; i++) {
+            readWithSnapshot(cache, "k");
+        }
+        cache.flush();
+        byte[] bytes = Files.readAllBytes(journal.toPath());
+        String appended = new String(bytes, (int) before, bytes.length - (int) before,
+                Charset.forName("US-ASCII"));
+        assertEquals("READ k\nREAD k\nREAD k\n", appended);
+        cache.close();
+    }
+
+    @Test
+    public void concurrentReadersOfOneKey() throws Exception {
+        final DiskLruCache cache = open(tempDir.newFolder());
+        set(cache, "k", new byte[VALUE_SIZE]);
+
+        // An open editor does not keep snapshot readers out, unlike edit-based reads.
+        DiskLruCache.Editor editor = cache.edit("k");
+        assertNotNull(editor);
+        assertNull(cache.edit("k"));
+        assertEquals(VALUE_SIZE, readWithSnapshot(cache, "k"));
+
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] readers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            readers[i] = new Thread() {
+                @Override public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 200; j++) {
+                            if (readWithSnapshot(cache, "k") != VALUE_SIZE) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        start.countDown();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(0, failures.get());
+        editor.abort();
+        cache.close();
+    }
+
+    @Test
+    public void diskHitLatency() throws Exception {
+        DiskLruCache cache = open(tempDir.newFolder());
+        set(cache, "k", new byte[VALUE_SIZE]);
+
+        // Warm up both paths before timing them.
+        for (int i = 0; i < READS / 4; i++) {
+            readWithEditor(cache, "k");
+            readWithSnapshot(cache, "k");
+        }
+
+        long[] editor = new long[READS];
+        long[] snapshot = new long[READS];
+        for (int i = 0; i < READS; i++) {
+            long start = System.nanoTime();
+            assertEquals(VALUE_SIZE, readWithEditor(cache, "k"));
+            editor[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            assertEquals(VALUE_SIZE, readWithSnapshot(cache, "k"));
+            snapshot[i] = System.nanoTime() - start;
+        }
+        System.out.println("Disk hit of " + VALUE_SIZE + " bytes: edit+commit "
+                + percentiles(editor) + ", snapshot " + percentiles(snapshot));
+        cache.close();
+    }
+
+    /** The read the bitmap disk tier did before: open an editor just to read, then commit. */
+    private static int readWithEditor(DiskLruCache cache, String key) throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        try {
+            DiskLruCache.Editor editor = cache.edit(key);
+            if (editor == null) {
+                return -1;
+            }
+            InputStream in = editor.newInputStream(0);
+            int read = drain(in);
+            in.close();
+            editor.commit();
+            return read;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static int readWithSnapshot(DiskLruCache cache, String key) throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            return -1;
+        }
+        try {
+            return drain(snapshot.getInputStream(0));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static int drain(InputStream in) throws Exception {
+        byte[] buffer = new byte[8192];
+        int total = 0;
+        for (int count; (count = in.read(buffer)) != -1; ) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return "p50 " + sorted[sorted.length / 2] / 1000 + " us, p99 "
+                + sorted[sorted.length * 99 / 100] / 1000 + " us";
+    }
+
+    private static DiskLruCache open(File dir) throws Exception {
+        return DiskLruCache.open(dir, 1, 1, Long.MAX_VALUE);
+    }
+
+    private static void set(DiskLruCache cache, String key, byte[] value) throws Exception {
+        DiskLruCache.Editor editor = cache.edit(key);
+        assertNotNull(editor);
+        OutputStream out = editor.newOutputStream(0);
+        out.write(value);
+        out.close();
+        editor.commit();
+    }
+}
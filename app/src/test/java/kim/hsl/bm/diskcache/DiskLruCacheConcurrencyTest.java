@@ -0,0 +1,221 @@
+package kim.hsl.bm.diskcache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Exercises the striped {@link DiskLruCache} from several threads at once and
+ * checks that read throughput scales from 1 thread to one thread per CPU.
+ */
+public class DiskLruCacheConcurrencyTest {
+    private static final int MAX_THREADS = 8;
+    private static final int KEYS_PER_THREAD = 200;
+    private static final int READS_PER_KEY = 5;
+
+    /** Keys shared by all threads in the scaling measurement. */
+    private static final int SCALING_KEYS = 256;
+    /** Reads per thread in each scaling run, enough for a run to take tens of milliseconds. */
+    private static final int SCALING_READS_PER_THREAD = 20000;
+    /** Each thread count is measured this many times and the best run is kept. */
+    private static final int SCALING_RUNS = 3;
+    /** Minimum speedup of the multi-threaded run over the single-threaded run. */
+    private static final double MIN_SPEEDUP = 1.3;
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File cacheDir;
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = tempDir.newFolder("DiskLruCacheConcurrencyTest");
+        cache = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    private DiskLruCache open() throws Exception {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.concurrencyLevel = 16;
+        return DiskLruCache.open(cacheDir, 100, 1, Integer.MAX_VALUE, options);
+    }
+
+    @Test
+    public void concurrentWritesAndReadsAreAllVisible() throws Exception {
+        runWorkload(MAX_THREADS, "consistency");
+
+        for (int t = 0; t < MAX_THREADS; t++) {
+            for (int k = 0; k < KEYS_PER_THREAD; k++) {
+                DiskLruCache.Snapshot snapshot = cache.get(key("consistency", t, k));
+                assertNotNull(snapshot);
+                assertEquals(value(t, k), snapshot.getString(0));
+                snapshot.close();
+            }
+        }
+    }
+
+    @Test
+    public void journalSurvivesConcurrentUseAndReopen() throws Exception {
+        runWorkload(MAX_THREADS, "reopen");
+        long size = cache.size();
+        cache.close();
+
+        cache = open();
+        assertEquals(size, cache.size());
+        for (int t = 0; t < MAX_THREADS; t++) {
+            DiskLruCache.Snapshot snapshot = cache.get(key("reopen", t, KEYS_PER_THREAD - 1));
+            assertNotNull(snapshot);
+            assertEquals(value(t, KEYS_PER_THREAD - 1), snapshot.getString(0));
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void evictionKeepsSizeBoundedUnderConcurrency() throws Exception {
+        cache.setMaxSize(4 * 1024);
+        runWorkload(MAX_THREADS, "evict");
+        cache.flush();
+        assertTrue("size " + cache.size(), cache.size() <= 4 * 1024);
+    }
+
+    @Test
+    public void readThroughputScalesWithThreads() throws Exception {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        assumeTrue("needs more than one CPU", cpus > 1);
+        int threads = Math.min(cpus, 4);
+
+        for (int k = 0; k < SCALING_KEYS; k++) {
+            DiskLruCache.Editor editor = cache.edit(key("scale", 0, k));
+            editor.set(0, value(0, k));
+            editor.commit();
+        }
+        // Warm up the JIT and the page cache before measuring
+        measureReads(threads);
+
+        double single = bestReadThroughput(1);
+        double multi = bestReadThroughput(threads);
+        assertTrue(threads + " threads: " + (long) multi + " ops/s, 1 thread: "
+                + (long) single + " ops/s", multi >= single * MIN_SPEEDUP);
+    }
+
+    private double bestReadThroughput(int threads) throws Exception {
+        double best = 0;
+        for (int run = 0; run < SCALING_RUNS; run++) {
+            long nanos = measureReads(threads);
+            best = Math.max(best, (double) threads * SCALING_READS_PER_THREAD
+                    * 1000000000L / Math.max(1, nanos));
+        }
+        return best;
+    }
+
+    /**
+     * Every thread reads the shared keys {@link #SCALING_READS_PER_THREAD} times.
+     * Only the time between releasing the started threads and the last one
+     * finishing is measured, not creating the pool.
+     */
+    private long measureReads(int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * 31;
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    ready.countDown();
+                    start.await();
+                    for (int i = 0; i < SCALING_READS_PER_THREAD; i++) {
+                        DiskLruCache.Snapshot snapshot =
+                                cache.get(key("scale", 0, (offset + i) % SCALING_KEYS));
+                        snapshot.getString(0);
+                        snapshot.close();
+                    }
+                    return null;
+                }
+            }));
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        executor.shutdown();
+        return elapsed;
+    }
+
+    /**
+     * Each thread writes its own keys, then reads each of them several times.
+     * Returns the total number of operations performed.
+     */
+    private int runWorkload(int threads, final String prefix) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    start.await();
+                    int ops = 0;
+                    for (int k = 0; k < KEYS_PER_THREAD; k++) {
+                        DiskLruCache.Editor editor = cache.edit(key(prefix, thread, k));
+                        editor.set(0, value(thread, k));
+                        editor.commit();
+                        ops++;
+                    }
+                    for (int r = 0; r < READS_PER_KEY; r++) {
+                        for (int k = 0; k < KEYS_PER_THREAD; k++) {
+                            DiskLruCache.Snapshot snapshot = cache.get(key(prefix, thread, k));
+                            if (snapshot != null) {
+                                snapshot.getString(0);
+                                snapshot.close();
+                            }
+                            ops++;
+                        }
+                    }
+                    return ops;
+                }
+            }));
+        }
+        start.countDown();
+        int ops = 0;
+        for (Future<Integer> result : results) {
+            ops += result.get();
+        }
+        executor.shutdown();
+        return ops;
+    }
+
+    private static String key(String prefix, int thread, int index) {
+        return prefix + "_" + thread + "_" + index;
+    }
+
+    private static String value(int thread, int index) {
+        return "value-" + thread + "-" + index;
+    }
+}
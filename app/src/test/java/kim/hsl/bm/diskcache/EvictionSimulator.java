@@ -0,0 +1,120 @@
+package kim.hsl.bm.diskcache;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Replays an access trace against the {@link DiskLruCache} eviction policies
+ * and reports their hit ratios. A trace has one access per line: a key and,
+ * optionally, the size of its value in bytes, separated by whitespace. A miss
+ * is assumed to be followed by writing the value into the cache.
+ *
+ * <p>Run {@code main} with a trace file and a maximum size in bytes, or set
+ * {@code -Ddisklrucache.trace=<file>} and {@code -Ddisklrucache.trace.maxSize=<bytes>}
+ * when running {@link EvictionSimulatorTest}.
+ */
+public final class EvictionSimulator {
+    private EvictionSimulator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        long maxSize = Long.parseLong(args[1]);
+        System.out.println("LRU        " + hitRatio(new FileReader(args[0]), maxSize, false));
+        System.out.println("W-TinyLFU  " + hitRatio(new FileReader(args[0]), maxSize, true));
+    }
+
+    /** Replays {@code trace}, closing it, and returns the fraction of accesses that hit. */
+    public static double hitRatio(Reader trace, long maxSize, boolean tinyLfu) throws IOException {
+        Policy policy = tinyLfu ? new TinyLfu(maxSize) : new Lru(maxSize);
+        BufferedReader reader = new BufferedReader(trace);
+        long accesses = 0;
+        long hits = 0;
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts[0].isEmpty()) {
+                    continue;
+                }
+                long size = parts.length > 1 ? Long.parseLong(parts[1]) : 1;
+                accesses++;
+                if (policy.access(parts[0], size)) {
+                    hits++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return accesses == 0 ? 0 : (double) hits / accesses;
+    }
+
+    private interface Policy {
+        /** Records an access and returns true if it was a hit. */
+        boolean access(String key, long size);
+    }
+
+    /** What DiskLruCache does by default: evict the least recently used entries. */
+    private static final class Lru implements Policy {
+        private final LinkedHashMap<String, Long> entries =
+                new LinkedHashMap<String, Long>(0, 0.75f, true);
+        private final long maxSize;
+        private long size;
+
+        Lru(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public boolean access(String key, long weight) {
+            if (entries.get(key) != null) {
+                return true;
+            }
+            entries.put(key, weight);
+            size += weight;
+            for (Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator();
+                    size > maxSize && i.hasNext(); ) {
+                size -= i.next().getValue();
+                i.remove();
+            }
+            return false;
+        }
+    }
+
+    /** Drives the {@link TinyLfuPolicy} the way DiskLruCache does. */
+    private static final class TinyLfu implements Policy {
+        private final HashMap<String, TinyLfuPolicy.Node> entries =
+                new HashMap<String, TinyLfuPolicy.Node>();
+        private final TinyLfuPolicy policy;
+        private final long maxSize;
+        private long size;
+
+        TinyLfu(long maxSize) {
+            this.policy = new TinyLfuPolicy(maxSize);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public boolean access(String key, long weight) {
+            TinyLfuPolicy.Node node = entries.get(key);
+            if (node != null) {
+                policy.recordAccess(node);
+                return true;
+            }
+            policy.recordMiss(key);
+            entries.put(key, policy.add(key, weight));
+            size += weight;
+            while (size > maxSize) {
+                TinyLfuPolicy.Node victim = policy.victim();
+                policy.remove(victim);
+                entries.remove(victim.key);
+                size -= victim.weight;
+            }
+            return false;
+        }
+    }
+}
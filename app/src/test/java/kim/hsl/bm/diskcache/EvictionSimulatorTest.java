@@ -0,0 +1,109 @@
+package kim.hsl.bm.diskcache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.StringReader;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the {@link DiskLruCache} eviction policies with
+ * {@link EvictionSimulator} and checks that a cache opened with
+ * {@link DiskLruCache.EvictionPolicy#W_TINY_LFU} keeps its popular entries.
+ */
+public class EvictionSimulatorTest {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void tinyLfuKeepsHotSetThroughScans() throws Exception {
+        String trace = avatarsAndGalleryScans();
+        long maxSize = 1024 * 1024;
+        double lru = EvictionSimulator.hitRatio(new StringReader(trace), maxSize, false);
+        double tinyLfu = EvictionSimulator.hitRatio(new StringReader(trace), maxSize, true);
+        System.out.println("Avatars and gallery scans: LRU " + lru + ", W-TinyLFU " + tinyLfu);
+        assertTrue(tinyLfu > lru + 0.1);
+    }
+
+    @Test
+    public void recordedTrace() throws Exception {
+        String path = System.getProperty("disklrucache.trace");
+        if (path == null) {
+            return;
+        }
+        long maxSize = Long.getLong("disklrucache.trace.maxSize", 64L * 1024 * 1024);
+        System.out.println(path + ": LRU "
+                + EvictionSimulator.hitRatio(new FileReader(path), maxSize, false)
+                + ", W-TinyLFU "
+                + EvictionSimulator.hitRatio(new FileReader(path), maxSize, true));
+    }
+
+    @Test
+    public void cacheEvictsScannedEntriesBeforePopularOnes() throws Exception {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.evictionPolicy = DiskLruCache.EvictionPolicy.W_TINY_LFU;
+        File dir = tempDir.newFolder("cache");
+        DiskLruCache cache = DiskLruCache.open(dir, 1, 1, 1000, options);
+        for (int i = 0; i < 5; i++) {
+            set(cache, "hot" + i);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 5; i++) {
+                cache.get("hot" + i).close();
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            set(cache, "scan" + i);
+            cache.flush();
+        }
+        for (int i = 0; i < 5; i++) {
+            DiskLruCache.Snapshot snapshot = cache.get("hot" + i);
+            assertNotNull("hot" + i, snapshot);
+            snapshot.close();
+        }
+        assertTrue(cache.size() <= 1000);
+        cache.close();
+
+        cache = DiskLruCache.open(dir, 1, 1, 1000, options);
+        assertEquals(100, cache.get("hot0").getLength(0));
+        cache.close();
+    }
+
+    /**
+     * 200 avatars of 2 KB, used over and over with a skewed popularity,
+     * interleaved with scrolls through a gallery of 50 KB images that are
+     * each seen only once.
+     */
+    private static String avatarsAndGalleryScans() {
+        Random random = new Random(42);
+        StringBuilder trace = new StringBuilder();
+        int image = 0;
+        for (int i = 0; i < 40000; i++) {
+            if (i % 1000 < 300) {
+                trace.append("image").append(image++).append(' ').append(50 * 1024);
+            } else {
+                int avatar = (int) (200 * Math.pow(random.nextDouble(), 2));
+                trace.append("avatar").append(avatar).append(' ').append(2 * 1024);
+            }
+            trace.append('\n');
+        }
+        return trace.toString();
+    }
+
+    private static void set(DiskLruCache cache, String key) throws Exception {
+        DiskLruCache.Editor editor = cache.edit(key);
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 100) {
+            value.append(key);
+        }
+        editor.set(0, value.substring(0, 100));
+        editor.commit();
+    }
+}
@@ -0,0 +1,253 @@
+package kim.hsl.bm.diskcache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers eviction and compaction in batches on the cleanup thread, deferred
+ * deletes, and the pause times the cache reports for them.
+ */
+public class IncrementalCleanupTest {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void shrinkingEvictsInBatches() throws Exception {
+        for (DiskLruCache.EvictionPolicy policy : DiskLruCache.EvictionPolicy.values()) {
+            DiskLruCache.Options options = new DiskLruCache.Options();
+            options.evictionPolicy = policy;
+            options.cleanupBatchEntries = 10;
+            options.cleanupPauseMillis = 1;
+            DiskLruCache cache = DiskLruCache.open(tempDir.newFolder(), 1, 1, 100000, options);
+            for (int i = 0; i < 200; i++) {
+                set(cache, "k" + i, pad(i));
+            }
+            assertEquals(0, cache.getEvictionBacklog());
+
+            cache.setMaxSize(1000);
+            assertTrue(cache.getEvictionBacklog() > 0);
+            awaitCleanup(cache);
+            assertEquals(0, cache.getEvictionBacklog());
+            assertTrue(cache.size() <= 1000);
+            assertTrue(cache.getLongestCleanupPauseNanos() > 0);
+            assertTrue(cache.getTotalCleanupPauseNanos() >= cache.getLongestCleanupPauseNanos());
+            assertEquals(pad(199), get(cache, "k199"));
+            cache.close();
+        }
+    }
+
+    @Test
+    public void deferredDeletesArePurgedByTheCleanupThread() throws Exception {
+        File dir = tempDir.newFolder();
+        DiskLruCache cache = open(dir);
+        for (int i = 0; i < 50; i++) {
+            set(cache, "k" + i, pad(i));
+        }
+        DiskLruCache.Snapshot snapshot = cache.get("k0");
+        for (int i = 0; i < 50; i++) {
+            assertTrue(cache.remove("k" + i));
+        }
+        assertNull(cache.get("k0"));
+        assertEquals(pad(0), snapshot.getString(0));
+        snapshot.close();
+
+        awaitCleanup(cache);
+        assertEquals(0, cache.getPendingDeleteCount());
+        assertEquals(0, countDeleted(dir));
+        cache.close();
+    }
+
+    @Test
+    public void valuesReplacedBeforeThePurgeAreKept() throws Exception {
+        File dir = tempDir.newFolder();
+        DiskLruCache cache = open(dir);
+        set(cache, "a", "apple");
+        cache.remove("a");
+        set(cache, "a", "apricot");
+        cache.flush();
+        assertEquals(0, cache.getPendingDeleteCount());
+        assertEquals("apricot", get(cache, "a"));
+        cache.close();
+    }
+
+    @Test
+    public void renamedFilesLeftByACrashAreSweptOnOpen() throws Exception {
+        File dir = tempDir.newFolder();
+        DiskLruCache cache = open(dir);
+        set(cache, "a", "apple");
+        cache.close();
+        assertTrue(new File(dir, "b.0.7" + FileValueStore.DELETED_SUFFIX).createNewFile());
+
+        cache = open(dir);
+        assertEquals(0, countDeleted(dir));
+        assertEquals("apple", get(cache, "a"));
+        cache.close();
+    }
+
+    @Test
+    public void compactionPausesAreBounded() throws Exception {
+        // Warm up, then take the smallest longest pause of several trials,
+        // so one descheduled batch or GC does not count
+        longestCompactionPause(0);
+        longestCompactionPause(4);
+        long unbounded = Long.MAX_VALUE;
+        long batched = Long.MAX_VALUE;
+        for (int trial = 0; trial < 5; trial++) {
+            unbounded = Math.min(unbounded, longestCompactionPause(0));
+            batched = Math.min(batched, longestCompactionPause(4));
+        }
+        System.out.println("DiskLruCache longest compaction pause: unbounded "
+                + unbounded / 1000 + " us, batches of 4 " + batched / 1000 + " us");
+        // Unbounded, the whole stripe is copied under one lock; batched, the
+        // pause is a few entries or the final swap of the journal files
+        assertTrue("unbounded " + unbounded + " ns, batched " + batched + " ns",
+                batched * 4 < unbounded);
+    }
+
+    /**
+     * Fills a single stripe with 20000 entries, then reopens the cache with
+     * checkpoints switched on, which makes the cleanup thread rebuild the
+     * journal with no other thread using the cache, and returns the longest
+     * compaction pause.
+     */
+    private long longestCompactionPause(int batchEntries) throws Exception {
+        File dir = tempDir.newFolder();
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.concurrencyLevel = 1;
+        options.segmentSize = 16 * 1024;
+        DiskLruCache cache = DiskLruCache.open(dir, 1, 1, Long.MAX_VALUE, options);
+        for (int i = 0; i < 20000; i++) {
+            set(cache, "k" + i, pad(i));
+        }
+        awaitCleanup(cache);
+        cache.close();
+
+        options.cleanupBatchEntries = batchEntries;
+        options.checkpointInterval = 1;
+        cache = DiskLruCache.open(dir, 1, 1, Long.MAX_VALUE, options);
+        cache.setMaxSize(Long.MAX_VALUE);
+        awaitCleanup(cache);
+        long longest = cache.getLongestCompactionPauseNanos();
+        assertTrue(new File(dir, DiskLruCache.CHECKPOINT_FILE).exists());
+        assertTrue(longest > 0);
+        assertEquals(0, cache.getLongestEvictionPauseNanos());
+        cache.close();
+
+        cache = DiskLruCache.open(dir, 1, 1, Long.MAX_VALUE, options);
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(pad(i), get(cache, "k" + i));
+        }
+        cache.close();
+        return longest;
+    }
+
+    @Test
+    public void journalRebuildKeepsEditsMadeWhileItRuns() throws Exception {
+        for (int checkpointInterval : new int[] {0, 500}) {
+            File dir = tempDir.newFolder();
+            DiskLruCache.Options options = new DiskLruCache.Options();
+            options.concurrencyLevel = 4;
+            options.checkpointInterval = checkpointInterval;
+            DiskLruCache cache = DiskLruCache.open(dir, 1, 1, Long.MAX_VALUE, options);
+            Thread[] writers = new Thread[4];
+            final DiskLruCache writing = cache;
+            final Exception[] failure = new Exception[1];
+            for (int t = 0; t < writers.length; t++) {
+                final int thread = t;
+                writers[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            // Enough records to trigger several rebuilds while writing
+                            for (int round = 0; round < 10; round++) {
+                                for (int i = 0; i < 300; i++) {
+                                    set(writing, "t" + thread + "_" + i, round + pad(i));
+                                }
+                                writing.remove("t" + thread + "_" + round);
+                            }
+                        } catch (Exception e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertNull(failure[0]);
+            awaitCleanup(cache);
+            cache.close();
+
+            cache = DiskLruCache.open(dir, 1, 1, Long.MAX_VALUE, options);
+            for (int t = 0; t < writers.length; t++) {
+                for (int i = 0; i < 300; i++) {
+                    // Only the key removed in the last round stays removed
+                    if (i == 9) {
+                        assertNull(cache.get("t" + t + "_" + i));
+                    } else {
+                        assertEquals("9" + pad(i), get(cache, "t" + t + "_" + i));
+                    }
+                }
+            }
+            cache.close();
+        }
+    }
+
+    private static String pad(int i) {
+        StringBuilder result = new StringBuilder(Integer.toString(i));
+        while (result.length() < 99) {
+            result.append('.');
+        }
+        return result.toString();
+    }
+
+    private static int countDeleted(File dir) {
+        int count = 0;
+        for (String name : dir.list()) {
+            if (name.endsWith(FileValueStore.DELETED_SUFFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Waits for work queued on the cache's single cleanup thread. */
+    private static void awaitCleanup(DiskLruCache cache) throws Exception {
+        cache.executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    private static DiskLruCache open(File dir) throws Exception {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.deferDeletes = true;
+        return DiskLruCache.open(dir, 1, 1, Long.MAX_VALUE, options);
+    }
+
+    private static void set(DiskLruCache cache, String key, String value) throws Exception {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static String get(DiskLruCache cache, String key) throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(snapshot);
+        try {
+            return snapshot.getString(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package kim.hsl.bm.diskcache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the group-committed {@link JournalWriter} batches bursts of
+ * records and that a cache using it survives a reopen.
+ */
+public class JournalWriterTest {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void burstIsWrittenInFewBatches() throws Exception {
+        File file = new File(tempDir.getRoot(), "journal");
+        JournalWriter writer = new JournalWriter(file, false, 50, false, false, 0);
+        long ticket = 0;
+        for (int i = 0; i < 1000; i++) {
+            writer.writeDirty("key" + i);
+            ticket = writer.writeClean("key" + i, new long[] {i});
+            writer.requestFlush();
+        }
+        writer.awaitDurable(ticket);
+
+        System.out.println("JournalWriter " + writer.getRecordCount() + " records in "
+                + writer.getBatchCount() + " batches");
+        assertEquals(2000, writer.getRecordCount());
+        assertTrue(writer.getBatchCount() * 10 <= writer.getRecordCount());
+        assertTrue(read(file).endsWith("CLEAN key999 999\n"));
+        writer.close();
+    }
+
+    @Test
+    public void inlineWriterFlushesOnRequest() throws Exception {
+        File file = new File(tempDir.getRoot(), "journal");
+        JournalWriter writer = new JournalWriter(file, false);
+        writer.writeRead("a");
+        assertEquals("", read(file));
+        writer.requestFlush();
+        assertEquals("READ a\n", read(file));
+        writer.close();
+    }
+
+    @Test
+    public void groupCommittedCacheSurvivesReopen() throws Exception {
+        File dir = tempDir.newFolder("cache");
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.journalFlushLatencyMillis = 20;
+        DiskLruCache cache = DiskLruCache.open(dir, 1, 1, Integer.MAX_VALUE, options);
+        for (int i = 0; i < 100; i++) {
+            DiskLruCache.Editor editor = cache.edit("k" + i);
+            editor.set(0, "v" + i);
+            if (i == 99) {
+                editor.commitDurably();
+            } else {
+                editor.commit();
+            }
+        }
+        cache.close();
+
+        cache = DiskLruCache.open(dir, 1, 1, Integer.MAX_VALUE, options);
+        for (int i = 0; i < 100; i++) {
+            DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+            assertNotNull(snapshot);
+            assertEquals("v" + i, snapshot.getString(0));
+            snapshot.close();
+        }
+        cache.close();
+    }
+
+    private static String read(File file) throws Exception {
+        return Util.readFully(new InputStreamReader(new FileInputStream(file), Util.US_ASCII));
+    }
+}
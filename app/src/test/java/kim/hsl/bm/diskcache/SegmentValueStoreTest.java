@@ -0,0 +1,191 @@
+package kim.hsl.bm.diskcache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers {@link DiskLruCache} with values packed into segments by a
+ * {@link SegmentValueStore}, and compares small-value reads with the
+ * one-file-per-value layout.
+ */
+public class SegmentValueStoreTest {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void valuesSurviveReopenInFewFiles() throws Exception {
+        File dir = tempDir.newFolder("reopen");
+        DiskLruCache cache = open(dir, 64 * 1024, 2);
+        for (int i = 0; i < 200; i++) {
+            DiskLruCache.Editor editor = cache.edit("k" + i);
+            editor.set(0, "value" + i);
+            editor.set(1, i % 2 == 0 ? "" : "second" + i);
+            editor.commit();
+        }
+        cache.remove("k3");
+        cache.close();
+        assertTrue(dir.list().length < 5);
+
+        cache = open(dir, 64 * 1024, 2);
+        for (int i = 0; i < 200; i++) {
+            DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+            if (i == 3) {
+                assertNull(snapshot);
+                continue;
+            }
+            assertEquals("value" + i, snapshot.getString(0));
+            assertEquals(i % 2 == 0 ? "" : "second" + i, snapshot.getString(1));
+            snapshot.close();
+        }
+        cache.close();
+    }
+
+    @Test
+    public void overwrittenSegmentsAreCompacted() throws Exception {
+        File dir = tempDir.newFolder("compact");
+        DiskLruCache cache = open(dir, 4096, 1);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                set(cache, "k" + i, round + pad(i));
+            }
+        }
+        awaitCleanup(cache);
+        // Five rounds of 100 values of 100 bytes; only the last round is live.
+        assertTrue("segments " + segmentCount(dir), segmentCount(dir) <= 5);
+        cache.close();
+
+        cache = open(dir, 4096, 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("4" + pad(i), get(cache, "k" + i));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void snapshotOutlivesCompactionOfItsSegment() throws Exception {
+        File dir = tempDir.newFolder("reader");
+        DiskLruCache cache = open(dir, 1024, 1);
+        set(cache, "a", pad(1));
+        DiskLruCache.Snapshot snapshot = cache.get("a");
+        for (int i = 0; i < 50; i++) {
+            set(cache, "a", pad(i));
+        }
+        awaitCleanup(cache);
+        assertEquals(pad(1), snapshot.getString(0));
+        snapshot.close();
+        assertEquals(pad(49), get(cache, "a"));
+        cache.close();
+    }
+
+    @Test
+    public void switchingLayoutsClearsTheCache() throws Exception {
+        File dir = tempDir.newFolder("switch");
+        DiskLruCache cache = open(dir, 0, 1);
+        set(cache, "a", "apple");
+        cache.close();
+
+        cache = open(dir, 4096, 1);
+        assertNull(cache.get("a"));
+        set(cache, "b", "banana");
+        cache.close();
+
+        cache = open(dir, 0, 1);
+        assertNull(cache.get("b"));
+        cache.close();
+    }
+
+    @Test
+    public void smallValueReadBenchmark() throws Exception {
+        int entries = 2000;
+        byte[] value = new byte[2048];
+        Arrays.fill(value, (byte) 'x');
+        for (long segmentSize : new long[] {0, 4 * 1024 * 1024}) {
+            File dir = tempDir.newFolder();
+            DiskLruCache cache = open(dir, segmentSize, 1);
+            for (int i = 0; i < entries; i++) {
+                DiskLruCache.Editor editor = cache.edit("k" + i);
+                editor.newOutputStream(0).write(value);
+                editor.commit();
+            }
+
+            byte[] buffer = new byte[value.length];
+            long start = System.nanoTime();
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < entries; i++) {
+                    DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+                    InputStream in = snapshot.getInputStream(0);
+                    int total = 0;
+                    for (int n; (n = in.read(buffer, total, buffer.length - total)) > 0; ) {
+                        total += n;
+                    }
+                    assertEquals(value.length, total);
+                    snapshot.close();
+                }
+            }
+            long micros = (System.nanoTime() - start) / 1000 / (3 * entries);
+            System.out.println("DiskLruCache 2 KB get, segmentSize " + segmentSize + ": "
+                    + micros + " us, " + dir.list().length + " files");
+            cache.close();
+        }
+    }
+
+    private static String pad(int i) {
+        StringBuilder result = new StringBuilder(Integer.toString(i));
+        while (result.length() < 99) {
+            result.append('.');
+        }
+        return result.toString();
+    }
+
+    private static int segmentCount(File dir) {
+        int count = 0;
+        for (String name : dir.list()) {
+            if (name.startsWith(SegmentValueStore.SEGMENT_PREFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Waits for compaction queued on the cache's single cleanup thread. */
+    private static void awaitCleanup(DiskLruCache cache) throws Exception {
+        cache.executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    private static DiskLruCache open(File dir, long segmentSize, int valueCount)
+            throws Exception {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.segmentSize = segmentSize;
+        return DiskLruCache.open(dir, 1, valueCount, Long.MAX_VALUE, options);
+    }
+
+    private static void set(DiskLruCache cache, String key, String value) throws Exception {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static String get(DiskLruCache cache, String key) throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(snapshot);
+        try {
+            return snapshot.getString(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+}
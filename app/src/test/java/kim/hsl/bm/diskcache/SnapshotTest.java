@@ -0,0 +1,86 @@
+package kim.hsl.bm.diskcache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Covers lazily opened {@link DiskLruCache.Snapshot} values and their channel
+ * views, with values in files and in segments.
+ */
+public class SnapshotTest {
+    private static final long[] SEGMENT_SIZES = {0, 64 * 1024};
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void unopenedValuesSurviveLaterEdits() throws Exception {
+        for (long segmentSize : SEGMENT_SIZES) {
+            DiskLruCache cache = open(tempDir.newFolder(), segmentSize);
+            set(cache, "a", "apple", "avocado");
+            DiskLruCache.Snapshot first = cache.get("a");
+            DiskLruCache.Snapshot second = cache.get("a");
+            assertEquals("apple", first.getString(0));
+
+            set(cache, "a", "apricot", "artichoke");
+            assertEquals("avocado", first.getString(1));
+            cache.remove("a");
+            assertEquals("apple", second.getString(0));
+            assertEquals("avocado", second.getString(1));
+            first.close();
+            second.close();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void valuesCanBeMappedReadAndTransferred() throws Exception {
+        for (long segmentSize : SEGMENT_SIZES) {
+            DiskLruCache cache = open(tempDir.newFolder(), segmentSize);
+            set(cache, "b", "banana", "");
+            DiskLruCache.Snapshot snapshot = cache.get("b");
+
+            ByteBuffer mapped = snapshot.map(0);
+            assertEquals(6, mapped.remaining());
+            assertEquals('b', mapped.get(0));
+            assertEquals(0, snapshot.map(1).remaining());
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(16);
+            assertEquals(4, snapshot.read(0, direct, 2));
+            direct.flip();
+            assertEquals('n', direct.get(0));
+            assertEquals(4, direct.remaining());
+            assertEquals(-1, snapshot.read(0, direct, 6));
+            assertEquals(-1, snapshot.read(1, direct, 0));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(6, snapshot.transferTo(0, Channels.newChannel(out)));
+            assertEquals("banana", out.toString("US-ASCII"));
+            snapshot.close();
+            cache.close();
+        }
+    }
+
+    private static DiskLruCache open(File dir, long segmentSize) throws Exception {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.segmentSize = segmentSize;
+        return DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, options);
+    }
+
+    private static void set(DiskLruCache cache, String key, String a, String b) throws Exception {
+        DiskLruCache.Editor editor = cache.edit(key);
+        assertNotNull(editor);
+        editor.set(0, a);
+        editor.set(1, b);
+        editor.commit();
+    }
+}
@@ -0,0 +1,75 @@
+package kim.hsl.bm.diskcache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Covers the memory-mapped mode of {@link StrictLineReader} and its reusable
+ * {@link StrictLineReader.Line} views.
+ */
+public class StrictLineReaderTest {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void mappedLinesAreSplitIntoTokens() throws Exception {
+        StrictLineReader reader = open("libcore.io.DiskLruCache\r\nCLEAN key 12 345\nREAD key\nDIRTY");
+        assertEquals("libcore.io.DiskLruCache", reader.readLine());
+
+        StrictLineReader.Line line = new StrictLineReader.Line();
+        reader.readLine(line);
+        assertEquals("CLEAN key 12 345", line.toString());
+        assertEquals(4, line.tokenCount());
+        assertTrue(line.tokenEquals(0, "CLEAN"));
+        assertFalse(line.tokenEquals(0, "CLEA"));
+        assertEquals("key", line.tokenString(1));
+        assertEquals(12, line.tokenLong(2));
+        assertEquals(345, line.tokenLong(3));
+
+        reader.readLine(line);
+        assertEquals(2, line.tokenCount());
+        assertTrue(line.tokenEquals(0, "READ"));
+
+        // The unterminated last line is dropped, as in stream mode.
+        try {
+            reader.readLine(line);
+            fail();
+        } catch (EOFException expected) {
+        }
+        reader.close();
+    }
+
+    @Test
+    public void malformedNumbersAreRejected() throws Exception {
+        StrictLineReader reader = open("CLEAN key 1x 99999999999999999999\n");
+        StrictLineReader.Line line = new StrictLineReader.Line();
+        reader.readLine(line);
+        for (int token = 2; token < 4; token++) {
+            try {
+                line.tokenLong(token);
+                fail();
+            } catch (NumberFormatException expected) {
+            }
+        }
+        reader.close();
+    }
+
+    private StrictLineReader open(String content) throws Exception {
+        File file = tempDir.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes(Util.US_ASCII));
+        out.close();
+        return new StrictLineReader(new FileInputStream(file).getChannel(), Util.US_ASCII);
+    }
+}
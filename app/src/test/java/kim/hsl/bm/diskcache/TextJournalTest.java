@@ -0,0 +1,192 @@
+package kim.hsl.bm.diskcache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Covers {@link TextJournal} parsing and reports how many bytes replaying a
+ * text journal allocates per record, compared with the String based parsing
+ * that {@code readJournalLine} used to do.
+ */
+public class TextJournalTest {
+    private static final int KEYS = 2000;
+    private static final int READS = 100000;
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void recordsAreReplayedWithSharedKeys() throws Exception {
+        File journal = write(new String[] {
+                "DIRTY k1", "CLEAN k1 3 4", "READ k1", "DIRTY k2", "REMOVE k2"}, 2);
+        final List<String> events = new ArrayList<String>();
+        final List<String> keys = new ArrayList<String>();
+        int records = TextJournal.read(journal, 1, 2, new BinaryJournal.Handler() {
+            @Override
+            public void onClean(String key, long[] lengths, long[] locations) {
+                events.add("CLEAN " + key + " " + lengths[0] + " " + lengths[1]);
+                keys.add(key);
+            }
+
+            @Override
+            public void onDirty(String key) {
+                events.add("DIRTY " + key);
+                keys.add(key);
+            }
+
+            @Override
+            public void onRemove(String key) {
+                events.add("REMOVE " + key);
+            }
+
+            @Override
+            public void onRead(String key) {
+                events.add("READ " + key);
+                keys.add(key);
+            }
+        });
+        assertEquals(5, records);
+        assertEquals("[DIRTY k1, CLEAN k1 3 4, READ k1, DIRTY k2, REMOVE k2]",
+                events.toString());
+        // Every record for k1 gets the same String instance.
+        assertTrue(keys.get(0) == keys.get(1) && keys.get(1) == keys.get(2));
+    }
+
+    @Test
+    public void malformedLinesAreRejected() throws Exception {
+        String[][] journals = {{"CLEAN k1 3"}, {"CLEAN k1 3 x"}, {"READ"}, {"TOUCH k1"}};
+        for (String[] lines : journals) {
+            try {
+                TextJournal.read(write(lines, 2), 1, 2, new CountingHandler());
+                fail(lines[0]);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void allocationBenchmark() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("TextJournal allocation benchmark skipped: no allocation counter");
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        String[] lines = new String[KEYS + READS];
+        for (int i = 0; i < KEYS; i++) {
+            lines[i] = "CLEAN 3400330d1dfc7f3f7f4b8d4d803d" + i + " " + (1000 + i);
+        }
+        for (int i = 0; i < READS; i++) {
+            lines[KEYS + i] = "READ 3400330d1dfc7f3f7f4b8d4d803d" + (i % KEYS);
+        }
+        File journal = write(lines, 1);
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up both parsers once before measuring.
+        readWithStrings(journal);
+        TextJournal.read(journal, 1, 1, new CountingHandler());
+
+        long start = threads.getThreadAllocatedBytes(threadId);
+        assertEquals(lines.length, readWithStrings(journal));
+        long before = threads.getThreadAllocatedBytes(threadId) - start;
+
+        CountingHandler handler = new CountingHandler();
+        start = threads.getThreadAllocatedBytes(threadId);
+        assertEquals(lines.length, TextJournal.read(journal, 1, 1, handler));
+        long after = threads.getThreadAllocatedBytes(threadId) - start;
+        assertEquals(lines.length, handler.count);
+
+        System.out.println("Journal replay allocations per record: String parsing "
+                + before / lines.length + " bytes, TextJournal " + after / lines.length + " bytes");
+        assertTrue("allocated " + after, after * 10 < before);
+    }
+
+    /** The parsing that DiskLruCache.readJournalLine did before TextJournal. */
+    private static int readWithStrings(File journal) throws Exception {
+        StrictLineReader reader = new StrictLineReader(new FileInputStream(journal), Util.US_ASCII);
+        long lengthSum = 0;
+        int count = 0;
+        try {
+            for (int i = 0; i < 5; i++) {
+                reader.readLine();
+            }
+            while (true) {
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (EOFException endOfJournal) {
+                    break;
+                }
+                int firstSpace = line.indexOf(' ');
+                int secondSpace = line.indexOf(' ', firstSpace + 1);
+                String key = secondSpace == -1
+                        ? line.substring(firstSpace + 1)
+                        : line.substring(firstSpace + 1, secondSpace);
+                if (secondSpace != -1 && line.startsWith("CLEAN")) {
+                    for (String part : line.substring(secondSpace + 1).split(" ")) {
+                        lengthSum += Long.parseLong(part);
+                    }
+                }
+                lengthSum += key.length();
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        assertTrue(lengthSum > 0);
+        return count;
+    }
+
+    private File write(String[] lines, int valueCount) throws Exception {
+        File file = tempDir.newFile();
+        JournalWriter writer = new JournalWriter(file, false);
+        writer.writeHeader(1, valueCount);
+        writer.close();
+        StringBuilder body = new StringBuilder();
+        for (String line : lines) {
+            body.append(line).append('\n');
+        }
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(body.toString().getBytes(Util.US_ASCII));
+        out.close();
+        return file;
+    }
+
+    private static final class CountingHandler implements BinaryJournal.Handler {
+        int count;
+
+        @Override
+        public void onClean(String key, long[] lengths, long[] locations) {
+            count++;
+        }
+
+        @Override
+        public void onDirty(String key) {
+            count++;
+        }
+
+        @Override
+        public void onRemove(String key) {
+            count++;
+        }
+
+        @Override
+        public void onRead(String key) {
+            count++;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package kim.hsl.bm.utils;
+
+import android.graphics.Bitmap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import kim.hsl.bm.diskcache.DiskLruCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers {@link BitmapLoader#cacheKey}, which must always be a legal
+ * {@link DiskLruCache} key whatever the caller's key looks like.
+ */
+public class BitmapLoaderKeyTest {
+    private static final String LEGAL_KEY = "[a-z0-9_-]{1,64}";
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void longKeysStayLegal() throws Exception {
+        String key = repeat('a', 64);
+        String cacheKey = BitmapLoader.cacheKey(key, 1080, 1920, Bitmap.Config.RGB_565);
+        assertTrue(cacheKey, cacheKey.matches(LEGAL_KEY));
+
+        DiskLruCache cache = DiskLruCache.open(tempDir.newFolder(), 1, 1, Long.MAX_VALUE);
+        DiskLruCache.Editor editor = cache.edit(cacheKey);
+        assertNotNull(editor);
+        editor.set(0, "value");
+        editor.commit();
+        assertEquals("value", cache.get(cacheKey).getString(0));
+        cache.close();
+    }
+
+    @Test
+    public void anyCharactersStayLegal() {
+        String cacheKey = BitmapLoader.cacheKey("https://example.com/Photo 1.PNG?w=100", 100, 100,
+                Bitmap.Config.RGB_565);
+        assertTrue(cacheKey, cacheKey.matches(LEGAL_KEY));
+    }
+
+    @Test
+    public void sizesGetDistinctKeys() {
+        String key = repeat('b', 64);
+        String small = BitmapLoader.cacheKey(key, 100, 100, Bitmap.Config.RGB_565);
+        assertEquals(small, BitmapLoader.cacheKey(key, 100, 100, Bitmap.Config.RGB_565));
+        assertNotEquals(small, BitmapLoader.cacheKey(key, 200, 100, Bitmap.Config.RGB_565));
+        assertNotEquals(small, BitmapLoader.cacheKey(key, 100, 200, Bitmap.Config.RGB_565));
+        assertEquals(small.length(), BitmapLoader.cacheKey("c", 1, 1, Bitmap.Config.RGB_565).length());
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}